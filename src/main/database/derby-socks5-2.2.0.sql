@@ -0,0 +1,112 @@
+--
+-- Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+-- Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+--
+-- This program is free software: you can redistribute it and/or modify
+-- it under the terms of the GNU Affero General Public License as published by
+-- the Free Software Foundation, version 3 of the License.
+--
+-- This program is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+-- GNU Affero General Public License for more details.
+--
+-- You should have received a copy of the GNU Affero General Public License
+-- along with this program. Look for COPYING file in the top folder.
+-- If not, see http://www.gnu.org/licenses/.
+--
+
+
+-- QUERY START:
+create table tig_socks5_usage_users (
+	-- uid of user (uid of jid)
+	uid bigint NOT NULL references tig_socks5_users(uid),
+	-- month of transfer as YYYYMM
+	period int NOT NULL,
+	-- count of bytes transferred by user in this month
+	transferred_bytes bigint default 0,
+
+	primary key (uid, period)
+);
+-- QUERY END:
+
+-- QUERY START:
+create table tig_socks5_usage_domains (
+	-- domain part of jid of user
+	"domain" varchar(2049) NOT NULL,
+	-- month of transfer as YYYYMM
+	period int NOT NULL,
+	-- count of bytes transferred by users of domain in this month
+	transferred_bytes bigint default 0,
+
+	primary key ("domain", period)
+);
+-- QUERY END:
+
+-- QUERY START:
+create table tig_socks5_usage_instances (
+	-- month of transfer as YYYYMM
+	period int NOT NULL,
+	-- server instance used as proxy
+	instance varchar(128) NOT NULL,
+	-- shard of counter (conn_id modulo 16), so concurrent updates do not wait for a single row lock
+	shard smallint NOT NULL,
+	-- count of bytes transferred thru instance in this month (sum of all shards),
+	-- global usage is sum of all instances
+	transferred_bytes bigint default 0,
+
+	primary key (period, instance, shard)
+);
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_socks5_usage_users (uid, period, transferred_bytes)
+	select c.uid, YEAR(c.transfer_timestamp) * 100 + MONTH(c.transfer_timestamp), sum(c.transferred_bytes)
+	from tig_socks5_connections c
+	group by c.uid, YEAR(c.transfer_timestamp) * 100 + MONTH(c.transfer_timestamp);
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_socks5_usage_domains ("domain", period, transferred_bytes)
+	select u."domain", YEAR(c.transfer_timestamp) * 100 + MONTH(c.transfer_timestamp), sum(c.transferred_bytes)
+	from tig_socks5_connections c
+	inner join tig_socks5_users u on u.uid = c.uid
+	group by u."domain", YEAR(c.transfer_timestamp) * 100 + MONTH(c.transfer_timestamp);
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_socks5_usage_instances (period, instance, shard, transferred_bytes)
+	select YEAR(c.transfer_timestamp) * 100 + MONTH(c.transfer_timestamp), c.instance, 0, sum(c.transferred_bytes)
+	from tig_socks5_connections c
+	group by c.instance, YEAR(c.transfer_timestamp) * 100 + MONTH(c.transfer_timestamp);
+-- QUERY END:
+
+-- QUERY START:
+create index tig_socks5_connections_transfer_timestamp on tig_socks5_connections ( transfer_timestamp );
+-- QUERY END:
+
+-- QUERY START:
+drop index tig_socks5_connections_uid_transfer_timestamp;
+-- QUERY END:
+
+-- QUERY START:
+drop index tig_socks5_connections_instance_transfer_timestamp;
+-- QUERY END:
+
+-- QUERY START:
+CREATE procedure TigSocks5PurgeConnections(before timestamp, "limit" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.socks5.repository.derby.StoredProcedures.tigSocks5PurgeConnections';
+-- QUERY END:
+
+-- QUERY START:
+CREATE procedure TigSocks5CheckQuota(cid bigint, transferredBytes bigint)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.socks5.repository.derby.StoredProcedures.tigSocks5CheckQuota';
+-- QUERY END:
@@ -0,0 +1,236 @@
+--
+-- Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+-- Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+--
+-- This program is free software: you can redistribute it and/or modify
+-- it under the terms of the GNU Affero General Public License as published by
+-- the Free Software Foundation, version 3 of the License.
+--
+-- This program is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+-- GNU Affero General Public License for more details.
+--
+-- You should have received a copy of the GNU Affero General Public License
+-- along with this program. Look for COPYING file in the top folder.
+-- If not, see http://www.gnu.org/licenses/.
+--
+
+
+-- QUERY START:
+create table if not exists tig_socks5_usage_users (
+	-- uid of user (uid of jid)
+	uid bigint unsigned NOT NULL,
+	-- month of transfer as YYYYMM
+	period int NOT NULL,
+	-- count of bytes transferred by user in this month
+	transferred_bytes bigint default 0,
+
+	primary key (uid, period),
+	foreign key (uid) references tig_socks5_users(uid)
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_socks5_usage_domains (
+	-- sha1 hash of domain part of jid of user
+	sha1_domain char(128) NOT NULL,
+	-- month of transfer as YYYYMM
+	period int NOT NULL,
+	-- count of bytes transferred by users of domain in this month
+	transferred_bytes bigint default 0,
+
+	primary key (sha1_domain, period)
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_socks5_usage_instances (
+	-- month of transfer as YYYYMM
+	period int NOT NULL,
+	-- server instance used as proxy
+	instance varchar(128) NOT NULL,
+	-- shard of counter (conn_id modulo 16), so concurrent updates do not wait for a single row lock
+	shard smallint NOT NULL,
+	-- count of bytes transferred thru instance in this month (sum of all shards),
+	-- global usage is sum of all instances
+	transferred_bytes bigint default 0,
+
+	primary key (period, instance, shard)
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_socks5_usage_users (uid, period, transferred_bytes)
+	select c.uid, EXTRACT(YEAR_MONTH FROM c.transfer_timestamp), sum(c.transferred_bytes)
+	from tig_socks5_connections c
+	where not exists (select 1 from tig_socks5_usage_instances)
+	group by c.uid, EXTRACT(YEAR_MONTH FROM c.transfer_timestamp);
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_socks5_usage_domains (sha1_domain, period, transferred_bytes)
+	select u.sha1_domain, EXTRACT(YEAR_MONTH FROM c.transfer_timestamp), sum(c.transferred_bytes)
+	from tig_socks5_connections c
+	inner join tig_socks5_users u on u.uid = c.uid
+	where not exists (select 1 from tig_socks5_usage_instances)
+	group by u.sha1_domain, EXTRACT(YEAR_MONTH FROM c.transfer_timestamp);
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_socks5_usage_instances (period, instance, shard, transferred_bytes)
+	select EXTRACT(YEAR_MONTH FROM c.transfer_timestamp), c.instance, 0, sum(c.transferred_bytes)
+	from tig_socks5_connections c
+	where not exists (select 1 from tig_socks5_usage_instances)
+	group by c.instance, EXTRACT(YEAR_MONTH FROM c.transfer_timestamp);
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigSocks5TransferUsedGeneral;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigSocks5TransferUsedInstance;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigSocks5TransferUsedDomain;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigSocks5TransferUsedUser;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigSocks5UpdateTransferUsed;
+-- QUERY END:
+
+delimiter //
+
+-- QUERY START:
+create procedure TigSocks5TransferUsedGeneral()
+begin
+	select sum(transferred_bytes) from tig_socks5_usage_instances
+		where period = EXTRACT(YEAR_MONTH FROM now());
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigSocks5TransferUsedInstance(_instance varchar(128) CHARSET utf8)
+begin
+	select sum(transferred_bytes) from tig_socks5_usage_instances
+		where period = EXTRACT(YEAR_MONTH FROM now()) and instance = _instance;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigSocks5TransferUsedDomain(_domain varchar(2049) CHARSET utf8)
+begin
+	select sum(transferred_bytes) from tig_socks5_usage_domains
+		where sha1_domain = sha1(lower(_domain)) and period = EXTRACT(YEAR_MONTH FROM now());
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigSocks5TransferUsedUser(_uid bigint unsigned)
+begin
+	select sum(transferred_bytes) from tig_socks5_usage_users
+		where uid = _uid and period = EXTRACT(YEAR_MONTH FROM now());
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigSocks5UpdateTransferUsed(_conn_id bigint unsigned, _transferred_bytes bigint unsigned)
+begin
+	declare _uid bigint unsigned;
+	declare _sha1_domain char(128);
+	declare _instance varchar(128) CHARSET utf8;
+	declare _delta bigint;
+	declare _period int;
+
+	start transaction;
+
+	select c.uid, u.sha1_domain, c.instance, cast(_transferred_bytes as signed) - ifnull(c.transferred_bytes, 0)
+		into _uid, _sha1_domain, _instance, _delta
+		from tig_socks5_connections c
+		inner join tig_socks5_users u on u.uid = c.uid
+		where c.conn_id = _conn_id
+		for update;
+
+	if _uid is not null then
+		update tig_socks5_connections set transferred_bytes = _transferred_bytes
+			where conn_id = _conn_id;
+
+		if _delta <> 0 then
+			set _period = EXTRACT(YEAR_MONTH FROM now());
+
+			insert into tig_socks5_usage_users (uid, period, transferred_bytes) values (_uid, _period, _delta)
+				on duplicate key update transferred_bytes = transferred_bytes + _delta;
+			insert into tig_socks5_usage_domains (sha1_domain, period, transferred_bytes) values (_sha1_domain, _period, _delta)
+				on duplicate key update transferred_bytes = transferred_bytes + _delta;
+			insert into tig_socks5_usage_instances (period, instance, shard, transferred_bytes)
+				values (_period, _instance, _conn_id mod 16, _delta)
+				on duplicate key update transferred_bytes = transferred_bytes + _delta;
+		end if;
+	end if;
+
+	commit;
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- QUERY START:
+create index transfer_timestamp on tig_socks5_connections (transfer_timestamp);
+-- QUERY END:
+
+-- QUERY START:
+drop index instance__transfer_timestamp on tig_socks5_connections;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigSocks5PurgeConnections;
+-- QUERY END:
+
+delimiter //
+
+-- QUERY START:
+create procedure TigSocks5PurgeConnections(_before timestamp, _limit int)
+begin
+	delete from tig_socks5_connections where transfer_timestamp < _before limit _limit;
+
+	select row_count();
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- QUERY START:
+drop procedure if exists TigSocks5CheckQuota;
+-- QUERY END:
+
+delimiter //
+
+-- QUERY START:
+create procedure TigSocks5CheckQuota(_conn_id bigint unsigned, _transferred_bytes bigint unsigned)
+begin
+	declare _period int;
+
+	call TigSocks5UpdateTransferUsed(_conn_id, _transferred_bytes);
+
+	set _period = EXTRACT(YEAR_MONTH FROM now());
+
+	select ifnull((select uu.transferred_bytes from tig_socks5_usage_users uu
+				where uu.uid = c.uid and uu.period = _period), 0),
+			ifnull((select ud.transferred_bytes from tig_socks5_usage_domains ud
+				where ud.sha1_domain = u.sha1_domain and ud.period = _period), 0),
+			ifnull((select sum(ui.transferred_bytes) from tig_socks5_usage_instances ui
+				where ui.period = _period and ui.instance = c.instance), 0),
+			ifnull((select sum(ug.transferred_bytes) from tig_socks5_usage_instances ug
+				where ug.period = _period), 0)
+		from tig_socks5_connections c
+		inner join tig_socks5_users u on u.uid = c.uid
+		where c.conn_id = _conn_id;
+end //
+-- QUERY END:
+
+delimiter ;
@@ -0,0 +1,247 @@
+--
+-- Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+-- Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+--
+-- This program is free software: you can redistribute it and/or modify
+-- it under the terms of the GNU Affero General Public License as published by
+-- the Free Software Foundation, version 3 of the License.
+--
+-- This program is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+-- GNU Affero General Public License for more details.
+--
+-- You should have received a copy of the GNU Affero General Public License
+-- along with this program. Look for COPYING file in the top folder.
+-- If not, see http://www.gnu.org/licenses/.
+--
+
+
+-- QUERY START:
+create table if not exists tig_socks5_usage_users (
+	-- uid of user (uid of jid)
+	uid bigint NOT NULL references tig_socks5_users(uid),
+	-- month of transfer as YYYYMM
+	period int NOT NULL,
+	-- count of bytes transferred by user in this month
+	transferred_bytes bigint default 0,
+
+	primary key (uid, period)
+);
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_socks5_usage_domains (
+	-- domain part of jid of user
+	"domain" varchar(2049) NOT NULL,
+	-- month of transfer as YYYYMM
+	period int NOT NULL,
+	-- count of bytes transferred by users of domain in this month
+	transferred_bytes bigint default 0,
+
+	primary key ("domain", period)
+);
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_socks5_usage_instances (
+	-- month of transfer as YYYYMM
+	period int NOT NULL,
+	-- server instance used as proxy
+	instance varchar(128) NOT NULL,
+	-- shard of counter (conn_id modulo 16), so concurrent updates do not wait for a single row lock
+	shard smallint NOT NULL,
+	-- count of bytes transferred thru instance in this month (sum of all shards),
+	-- global usage is sum of all instances
+	transferred_bytes bigint default 0,
+
+	primary key (period, instance, shard)
+);
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+	if not exists (select 1 from tig_socks5_usage_instances) then
+		insert into tig_socks5_usage_users (uid, period, transferred_bytes)
+			select c.uid, cast(to_char(c.transfer_timestamp, 'YYYYMM') as int), sum(c.transferred_bytes)
+			from tig_socks5_connections c
+			group by c.uid, cast(to_char(c.transfer_timestamp, 'YYYYMM') as int);
+
+		insert into tig_socks5_usage_domains ("domain", period, transferred_bytes)
+			select u."domain", cast(to_char(c.transfer_timestamp, 'YYYYMM') as int), sum(c.transferred_bytes)
+			from tig_socks5_connections c
+			inner join tig_socks5_users u on u.uid = c.uid
+			group by u."domain", cast(to_char(c.transfer_timestamp, 'YYYYMM') as int);
+
+		insert into tig_socks5_usage_instances (period, instance, shard, transferred_bytes)
+			select cast(to_char(c.transfer_timestamp, 'YYYYMM') as int), c.instance, 0, sum(c.transferred_bytes)
+			from tig_socks5_connections c
+			group by c.instance, cast(to_char(c.transfer_timestamp, 'YYYYMM') as int);
+	end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5TransferUsedGeneral()
+	returns bigint as '
+declare
+	_res bigint;
+begin
+	select sum(transferred_bytes) into _res from tig_socks5_usage_instances
+		where period = cast(to_char(now(), ''YYYYMM'') as int);
+
+	return _res;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5TransferUsedInstance(varchar(128))
+	returns bigint as '
+declare
+	_instance alias for $1;
+	_res bigint;
+begin
+	select sum(transferred_bytes) into _res from tig_socks5_usage_instances
+		where period = cast(to_char(now(), ''YYYYMM'') as int) and instance = _instance;
+
+	return _res;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5TransferUsedDomain(varchar(2049))
+	returns bigint as '
+declare
+	_domain alias for $1;
+	_res bigint;
+begin
+	select transferred_bytes into _res from tig_socks5_usage_domains
+		where "domain" = _domain and period = cast(to_char(now(), ''YYYYMM'') as int);
+
+	return _res;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5TransferUsedUser(bigint)
+	returns bigint as '
+declare
+	_uid alias for $1;
+	_res bigint;
+begin
+	select transferred_bytes into _res from tig_socks5_usage_users
+		where uid = _uid and period = cast(to_char(now(), ''YYYYMM'') as int);
+
+	return _res;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5UpdateTransferUsed(bigint, bigint)
+	returns void as '
+declare
+	_conn_id alias for $1;
+	_transferred_bytes alias for $2;
+	_uid bigint;
+	_domain varchar(2049);
+	_instance varchar(128);
+	_delta bigint;
+	_period int;
+begin
+	select c.uid, u."domain", c.instance, _transferred_bytes - coalesce(c.transferred_bytes, 0)
+		into _uid, _domain, _instance, _delta
+		from tig_socks5_connections c
+		inner join tig_socks5_users u on u.uid = c.uid
+		where c.conn_id = _conn_id
+		for update of c;
+
+	if not found then
+		return;
+	end if;
+
+	update tig_socks5_connections set transferred_bytes = _transferred_bytes, transfer_timestamp = now()
+		where conn_id = _conn_id;
+
+	if _delta = 0 then
+		return;
+	end if;
+
+	_period := cast(to_char(now(), ''YYYYMM'') as int);
+
+	insert into tig_socks5_usage_users (uid, period, transferred_bytes) values (_uid, _period, _delta)
+		on conflict (uid, period) do update
+		set transferred_bytes = tig_socks5_usage_users.transferred_bytes + excluded.transferred_bytes;
+	insert into tig_socks5_usage_domains ("domain", period, transferred_bytes) values (_domain, _period, _delta)
+		on conflict ("domain", period) do update
+		set transferred_bytes = tig_socks5_usage_domains.transferred_bytes + excluded.transferred_bytes;
+	insert into tig_socks5_usage_instances (period, instance, shard, transferred_bytes)
+		values (_period, _instance, _conn_id % 16, _delta)
+		on conflict (period, instance, shard) do update
+		set transferred_bytes = tig_socks5_usage_instances.transferred_bytes + excluded.transferred_bytes;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create index if not exists tig_socks5_connections_transfer_timestamp on tig_socks5_connections ( transfer_timestamp );
+-- QUERY END:
+
+-- QUERY START:
+drop index if exists tig_socks5_connections_uid_transfer_timestamp;
+-- QUERY END:
+
+-- QUERY START:
+drop index if exists tig_socks5_connections_instance_transfer_timestamp;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5PurgeConnections(timestamp with time zone, int)
+	returns int as '
+declare
+	_before alias for $1;
+	_limit alias for $2;
+	_res int;
+begin
+	delete from tig_socks5_connections where conn_id in (
+		select conn_id from tig_socks5_connections where transfer_timestamp < _before limit _limit
+	);
+
+	get diagnostics _res = row_count;
+
+	return _res;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5CheckQuota(bigint, bigint, OUT _user_used bigint, OUT _domain_used bigint,
+	OUT _instance_used bigint, OUT _global_used bigint) as '
+declare
+	_conn_id alias for $1;
+	_transferred_bytes alias for $2;
+	_period int;
+begin
+	perform TigSocks5UpdateTransferUsed(_conn_id, _transferred_bytes);
+
+	_period := cast(to_char(now(), ''YYYYMM'') as int);
+
+	select coalesce((select uu.transferred_bytes from tig_socks5_usage_users uu
+				where uu.uid = c.uid and uu.period = _period), 0),
+			coalesce((select ud.transferred_bytes from tig_socks5_usage_domains ud
+				where ud."domain" = u."domain" and ud.period = _period), 0),
+			coalesce((select sum(ui.transferred_bytes) from tig_socks5_usage_instances ui
+				where ui.period = _period and ui.instance = c.instance), 0),
+			coalesce((select sum(ug.transferred_bytes) from tig_socks5_usage_instances ug
+				where ug.period = _period), 0)
+		into _user_used, _domain_used, _instance_used, _global_used
+		from tig_socks5_connections c
+		inner join tig_socks5_users u on u.uid = c.uid
+		where c.conn_id = _conn_id;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
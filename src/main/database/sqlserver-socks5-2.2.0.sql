@@ -0,0 +1,294 @@
+--
+-- Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+-- Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+--
+-- This program is free software: you can redistribute it and/or modify
+-- it under the terms of the GNU Affero General Public License as published by
+-- the Free Software Foundation, version 3 of the License.
+--
+-- This program is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+-- GNU Affero General Public License for more details.
+--
+-- You should have received a copy of the GNU Affero General Public License
+-- along with this program. Look for COPYING file in the top folder.
+-- If not, see http://www.gnu.org/licenses/.
+--
+
+
+-- QUERY START:
+if not exists (select * from sysobjects where name='tig_socks5_usage_users' and xtype='U')
+	create table [dbo].[tig_socks5_usage_users] (
+	-- uid of user (uid of jid)
+	[uid] [bigint] NOT NULL,
+	-- month of transfer as YYYYMM
+	[period] int NOT NULL,
+	-- count of bytes transferred by user in this month
+	[transferred_bytes] bigint default 0,
+
+	primary key ([uid], [period]),
+	foreign key ([uid]) references [dbo].[tig_socks5_users]([uid])
+	);
+-- QUERY END:
+GO
+
+-- QUERY START:
+if not exists (select * from sysobjects where name='tig_socks5_usage_domains' and xtype='U')
+	create table [dbo].[tig_socks5_usage_domains] (
+	-- sha1 hash of domain part of jid of user
+	[sha1_domain] [varbinary](128) NOT NULL,
+	-- month of transfer as YYYYMM
+	[period] int NOT NULL,
+	-- count of bytes transferred by users of domain in this month
+	[transferred_bytes] bigint default 0,
+
+	primary key ([sha1_domain], [period])
+	);
+-- QUERY END:
+GO
+
+-- QUERY START:
+if not exists (select * from sysobjects where name='tig_socks5_usage_instances' and xtype='U')
+	create table [dbo].[tig_socks5_usage_instances] (
+	-- month of transfer as YYYYMM
+	[period] int NOT NULL,
+	-- server instance used as proxy
+	[instance] nvarchar(128) NOT NULL,
+	-- shard of counter (conn_id modulo 16), so concurrent updates do not wait for a single row lock
+	[shard] smallint NOT NULL,
+	-- count of bytes transferred thru instance in this month (sum of all shards),
+	-- global usage is sum of all instances
+	[transferred_bytes] bigint default 0,
+
+	primary key ([period], [instance], [shard])
+	);
+-- QUERY END:
+GO
+
+-- QUERY START:
+if not exists (select 1 from [dbo].[tig_socks5_usage_instances])
+begin
+	insert into [dbo].[tig_socks5_usage_users] ([uid], [period], [transferred_bytes])
+		select c.[uid], YEAR(c.[transfer_timestamp]) * 100 + MONTH(c.[transfer_timestamp]), sum(c.[transferred_bytes])
+		from [dbo].[tig_socks5_connections] c
+		group by c.[uid], YEAR(c.[transfer_timestamp]) * 100 + MONTH(c.[transfer_timestamp]);
+
+	insert into [dbo].[tig_socks5_usage_domains] ([sha1_domain], [period], [transferred_bytes])
+		select u.[sha1_domain], YEAR(c.[transfer_timestamp]) * 100 + MONTH(c.[transfer_timestamp]), sum(c.[transferred_bytes])
+		from [dbo].[tig_socks5_connections] c
+		inner join [dbo].[tig_socks5_users] u on u.[uid] = c.[uid]
+		group by u.[sha1_domain], YEAR(c.[transfer_timestamp]) * 100 + MONTH(c.[transfer_timestamp]);
+
+	insert into [dbo].[tig_socks5_usage_instances] ([period], [instance], [shard], [transferred_bytes])
+		select YEAR(c.[transfer_timestamp]) * 100 + MONTH(c.[transfer_timestamp]), c.[instance], 0, sum(c.[transferred_bytes])
+		from [dbo].[tig_socks5_connections] c
+		group by c.[instance], YEAR(c.[transfer_timestamp]) * 100 + MONTH(c.[transfer_timestamp]);
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5TransferUsedGeneral')
+DROP PROCEDURE [dbo].[TigSocks5TransferUsedGeneral]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5TransferUsedGeneral]
+AS
+begin
+	select sum([transferred_bytes]) from [dbo].[tig_socks5_usage_instances]
+		where [period] = YEAR(GETDATE()) * 100 + MONTH(GETDATE());
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5TransferUsedInstance')
+DROP PROCEDURE [dbo].[TigSocks5TransferUsedInstance]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5TransferUsedInstance]
+	@_instance nvarchar(128)
+AS
+begin
+	select sum([transferred_bytes]) from [dbo].[tig_socks5_usage_instances]
+		where [period] = YEAR(GETDATE()) * 100 + MONTH(GETDATE()) and [instance] = @_instance;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5TransferUsedDomain')
+DROP PROCEDURE [dbo].[TigSocks5TransferUsedDomain]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5TransferUsedDomain]
+	@_domain nvarchar(2049)
+AS
+begin
+	select sum([transferred_bytes]) from [dbo].[tig_socks5_usage_domains]
+		where [sha1_domain] = HASHBYTES('SHA1', lower(@_domain)) and [period] = YEAR(GETDATE()) * 100 + MONTH(GETDATE());
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5TransferUsedUser')
+DROP PROCEDURE [dbo].[TigSocks5TransferUsedUser]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5TransferUsedUser]
+	@_uid bigint
+AS
+begin
+	select sum([transferred_bytes]) from [dbo].[tig_socks5_usage_users]
+		where [uid] = @_uid and [period] = YEAR(GETDATE()) * 100 + MONTH(GETDATE());
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5UpdateTransferUsed')
+DROP PROCEDURE [dbo].[TigSocks5UpdateTransferUsed]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5UpdateTransferUsed]
+	@_conn_id bigint,
+	@_transferred_bytes bigint
+AS
+begin
+	SET NOCOUNT ON;
+	declare @_uid bigint;
+	declare @_sha1_domain varbinary(128);
+	declare @_instance nvarchar(128);
+	declare @_delta bigint;
+	declare @_period int;
+
+	begin transaction;
+
+	select @_uid = c.[uid], @_sha1_domain = u.[sha1_domain], @_instance = c.[instance],
+			@_delta = @_transferred_bytes - isnull(c.[transferred_bytes], 0)
+		from [dbo].[tig_socks5_connections] c with (updlock, rowlock)
+		inner join [dbo].[tig_socks5_users] u on u.[uid] = c.[uid]
+		where c.[conn_id] = @_conn_id;
+
+	if @_uid is not null
+	begin
+		update [dbo].[tig_socks5_connections] set [transferred_bytes] = @_transferred_bytes,
+				[transfer_timestamp] = GETDATE()
+			where [conn_id] = @_conn_id;
+
+		if @_delta <> 0
+		begin
+			set @_period = YEAR(GETDATE()) * 100 + MONTH(GETDATE());
+
+			update [dbo].[tig_socks5_usage_users] with (updlock, holdlock) set [transferred_bytes] = [transferred_bytes] + @_delta
+				where [uid] = @_uid and [period] = @_period;
+			if @@ROWCOUNT = 0
+				insert into [dbo].[tig_socks5_usage_users] ([uid], [period], [transferred_bytes])
+					values (@_uid, @_period, @_delta);
+
+			update [dbo].[tig_socks5_usage_domains] with (updlock, holdlock) set [transferred_bytes] = [transferred_bytes] + @_delta
+				where [sha1_domain] = @_sha1_domain and [period] = @_period;
+			if @@ROWCOUNT = 0
+				insert into [dbo].[tig_socks5_usage_domains] ([sha1_domain], [period], [transferred_bytes])
+					values (@_sha1_domain, @_period, @_delta);
+
+			update [dbo].[tig_socks5_usage_instances] with (updlock, holdlock) set [transferred_bytes] = [transferred_bytes] + @_delta
+				where [period] = @_period and [instance] = @_instance and [shard] = @_conn_id % 16;
+			if @@ROWCOUNT = 0
+				insert into [dbo].[tig_socks5_usage_instances] ([period], [instance], [shard], [transferred_bytes])
+					values (@_period, @_instance, @_conn_id % 16, @_delta);
+		end
+	end
+
+	commit transaction;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+if not exists (select * from sys.indexes where name = 'tig_socks5_connections_transfer_timestamp')
+	create index tig_socks5_connections_transfer_timestamp on dbo.tig_socks5_connections ( transfer_timestamp );
+-- QUERY END:
+GO
+
+-- QUERY START:
+if exists (select * from sys.indexes where name = 'tig_socks5_connections_uid_transfer_timestamp')
+	drop index tig_socks5_connections_uid_transfer_timestamp on dbo.tig_socks5_connections;
+-- QUERY END:
+GO
+
+-- QUERY START:
+if exists (select * from sys.indexes where name = 'tig_socks5_connections_instance_transfer_timestamp')
+	drop index tig_socks5_connections_instance_transfer_timestamp on dbo.tig_socks5_connections;
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5PurgeConnections')
+DROP PROCEDURE [dbo].[TigSocks5PurgeConnections]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5PurgeConnections]
+	@_before datetime,
+	@_limit int
+AS
+begin
+	SET NOCOUNT ON;
+	declare @_res int;
+
+	delete top (@_limit) from [dbo].[tig_socks5_connections]
+		where [transfer_timestamp] < @_before;
+	set @_res = @@ROWCOUNT;
+
+	select @_res;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5CheckQuota')
+DROP PROCEDURE [dbo].[TigSocks5CheckQuota]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5CheckQuota]
+	@_conn_id bigint,
+	@_transferred_bytes bigint
+AS
+begin
+	SET NOCOUNT ON;
+	declare @_period int;
+
+	exec [dbo].[TigSocks5UpdateTransferUsed] @_conn_id, @_transferred_bytes;
+
+	set @_period = YEAR(GETDATE()) * 100 + MONTH(GETDATE());
+
+	select isnull((select uu.[transferred_bytes] from [dbo].[tig_socks5_usage_users] uu
+				where uu.[uid] = c.[uid] and uu.[period] = @_period), 0),
+			isnull((select ud.[transferred_bytes] from [dbo].[tig_socks5_usage_domains] ud
+				where ud.[sha1_domain] = u.[sha1_domain] and ud.[period] = @_period), 0),
+			isnull((select sum(ui.[transferred_bytes]) from [dbo].[tig_socks5_usage_instances] ui
+				where ui.[period] = @_period and ui.[instance] = c.[instance]), 0),
+			isnull((select sum(ug.[transferred_bytes]) from [dbo].[tig_socks5_usage_instances] ug
+				where ug.[period] = @_period), 0)
+		from [dbo].[tig_socks5_connections] c
+		inner join [dbo].[tig_socks5_users] u on u.[uid] = c.[uid]
+		where c.[conn_id] = @_conn_id;
+end
+-- QUERY END:
+GO
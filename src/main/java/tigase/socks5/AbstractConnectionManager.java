@@ -233,6 +233,12 @@ public abstract class AbstractConnectionManager<IO extends IOService<?>>
 		return ports.stream().mapToInt(i -> i).toArray();
 	}
 
+	/**
+	 * Called when configuration of a port was changed or a port was removed
+	 */
+	protected void portsChanged() {
+	}
+
 	/**
 	 * Returns true if instance should handle high throughtput
 	 *
@@ -338,6 +344,7 @@ public abstract class AbstractConnectionManager<IO extends IOService<?>>
 			}
 
 			connectionOpenListener = connectionManager.startService(getProps());
+			connectionManager.portsChanged();
 		}
 
 		@Override
@@ -345,6 +352,9 @@ public abstract class AbstractConnectionManager<IO extends IOService<?>>
 			if (connectionOpenListener != null) {
 				connectionManager.releaseListener(connectionOpenListener);
 			}
+			if (connectionManager != null) {
+				connectionManager.portsChanged();
+			}
 		}
 
 		@Override
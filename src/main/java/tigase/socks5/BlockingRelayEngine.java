@@ -0,0 +1,194 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.stats.StatisticsList;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Relay engine using blocking reads and writes.
+ * <br>
+ * Each activated stream gets two threads, one for each direction, which read data from one connection and write it
+ * to the other one. Virtual threads are used if they are supported by JVM, otherwise platform threads are used.
+ * <br>
+ * Channels may be switched to blocking mode only after they are deregistered from selectors of
+ * <code>SocketThread</code>s, so connections using this engine are not registered again after handshake is
+ * completed and relaying starts when <code>SocketThread</code> released both of them.
+ * <br>
+ * End of data in one direction only shuts down output of the other connection, so the other direction is relayed
+ * until it ends as well and stream is closed after both directions are finished.
+ *
+ * @author andrzej
+ */
+public class BlockingRelayEngine
+		implements RelayEngineIfc {
+
+	private static final Logger log = Logger.getLogger(BlockingRelayEngine.class.getCanonicalName());
+
+	private static final long DEREGISTRATION_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+	private final AtomicInteger activeThreads = new AtomicInteger(0);
+	private final Socks5ConnectionManager manager;
+	private final AtomicLong streamsFailed = new AtomicLong(0);
+	private ThreadFactory threadFactory;
+	private boolean virtualThreads = false;
+
+	public BlockingRelayEngine(Socks5ConnectionManager manager) {
+		this.manager = manager;
+	}
+
+	@Override
+	public void start() {
+		threadFactory = createVirtualThreadFactory();
+		virtualThreads = threadFactory != null;
+		if (threadFactory == null) {
+			log.log(Level.CONFIG, "virtual threads are not supported, using platform threads for relaying data");
+			AtomicInteger counter = new AtomicInteger(0);
+			threadFactory = task -> {
+				Thread thread = new Thread(task, "socks5-relay-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			};
+		}
+	}
+
+	@Override
+	public void stop() {
+		// threads will finish when connections are closed
+	}
+
+	@Override
+	public void attach(Stream stream) {
+		Socks5IOService requester = stream.getConnection(Socks5ConnectionType.Requester);
+		Socks5IOService target = stream.getConnection(Socks5ConnectionType.Target);
+		if (requester == null || target == null) {
+			return;
+		}
+
+		// number of directions still relayed
+		AtomicInteger open = new AtomicInteger(2);
+		threadFactory.newThread(() -> {
+			try {
+				switchToBlocking(requester);
+				switchToBlocking(target);
+			} catch (IOException ex) {
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "could not switch connections of stream " + stream + " to blocking mode", ex);
+				}
+				streamsFailed.incrementAndGet();
+				stream.close();
+				return;
+			}
+
+			threadFactory.newThread(() -> pump(stream, target, requester, open)).start();
+			pump(stream, requester, target, open);
+		}).start();
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Relay threads", activeThreads.get(), Level.FINE);
+		list.add(compName, "Relay threads are virtual", String.valueOf(virtualThreads), Level.FINE);
+		list.add(compName, "Relay streams failed", streamsFailed.get(), Level.FINE);
+	}
+
+	/**
+	 * Relay data from one connection of stream to the other one until end of data is reached. Output of the other
+	 * connection is then shut down and stream is closed when both directions are finished. Any error closes stream at
+	 * once.
+	 *
+	 * @param stream
+	 * @param from
+	 * @param to
+	 * @param open
+	 */
+	private void pump(Stream stream, Socks5IOService from, Socks5IOService to, AtomicInteger open) {
+		activeThreads.incrementAndGet();
+		ByteBuffer buf = manager.getBufferPool().acquire(manager.getRelayBufferSize());
+		SocketChannel in = from.getSocketChannel();
+		SocketChannel out = to.getSocketChannel();
+		boolean finished = false;
+		try {
+			while (true) {
+				buf.clear();
+				int read = in.read(buf);
+				if (read < 0) {
+					// half-close, so data sent in the other direction is still relayed
+					out.shutdownOutput();
+					finished = true;
+					break;
+				}
+				from.addBytesReceived(read);
+				buf.flip();
+				while (buf.hasRemaining()) {
+					out.write(buf);
+				}
+				to.addBytesSent(read);
+				manager.socketDataProcessed(from);
+				if (from.getState() == Socks5IOService.State.Closed) {
+					break;
+				}
+			}
+		} catch (IOException ex) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "stopping stream " + stream + " after exception " + ex.getMessage(), ex);
+			}
+		} finally {
+			manager.getBufferPool().release(buf);
+			activeThreads.decrementAndGet();
+			if (finished ? open.decrementAndGet() == 0 : open.getAndSet(0) > 0) {
+				stream.close();
+			}
+		}
+	}
+
+	private void switchToBlocking(Socks5IOService service) throws IOException {
+		try {
+			if (!service.awaitReleased(DEREGISTRATION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				throw new IOException("Connection was not released by SocketThread");
+			}
+		} catch (InterruptedException ex) {
+			throw new IOException("Interrupted while waiting for release of connection", ex);
+		}
+		SocketChannel channel = service.getSocketChannel();
+		if (channel.isRegistered()) {
+			throw new IOException("Channel is still registered with selector");
+		}
+		channel.configureBlocking(true);
+	}
+
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "socks5-relay-", 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.stats.StatisticsList;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Shared pool of direct <code>ByteBuffer</code>s grouped in power of two size classes.
+ * <br>
+ * Buffers are taken by connections when they are activated and returned when connections are closed, so under
+ * load the same native memory is reused by subsequent streams instead of being allocated for each of them.
+ * Requests bigger than the largest size class are served by unpooled direct buffers.
+ *
+ * @author andrzej
+ */
+public class BufferPool {
+
+	private static final int MIN_SIZE_SHIFT = 10;
+	private static final int MAX_SIZE_SHIFT = 20;
+
+	private final AtomicLong acquired = new AtomicLong(0);
+	private final AtomicLong allocated = new AtomicLong(0);
+	private final AtomicLong discarded = new AtomicLong(0);
+	private final AtomicLong pooledBytes = new AtomicLong(0);
+	private final Queue<ByteBuffer>[] pools;
+	private final AtomicLong released = new AtomicLong(0);
+	private final AtomicLong reused = new AtomicLong(0);
+	private volatile long maxPooledBytes;
+
+	@SuppressWarnings("unchecked")
+	public BufferPool(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+		this.pools = new Queue[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+		for (int i = 0; i < pools.length; i++) {
+			pools[i] = new ConcurrentLinkedQueue<>();
+		}
+	}
+
+	/**
+	 * Returns cleared direct buffer with capacity not smaller than requested size
+	 *
+	 * @param size
+	 *
+	 * @return
+	 */
+	public ByteBuffer acquire(int size) {
+		acquired.incrementAndGet();
+		int idx = sizeClass(size);
+		if (idx < 0) {
+			allocated.incrementAndGet();
+			return ByteBuffer.allocateDirect(size);
+		}
+
+		ByteBuffer buf = pools[idx].poll();
+		if (buf != null) {
+			pooledBytes.addAndGet(-buf.capacity());
+			reused.incrementAndGet();
+			buf.clear();
+			return buf;
+		}
+
+		allocated.incrementAndGet();
+		return ByteBuffer.allocateDirect(1 << (idx + MIN_SIZE_SHIFT));
+	}
+
+	/**
+	 * Returns buffer to the pool. Buffers not obtained from the pool or exceeding pool capacity are dropped.
+	 *
+	 * @param buf
+	 */
+	public void release(ByteBuffer buf) {
+		if (buf == null || !buf.isDirect()) {
+			return;
+		}
+
+		released.incrementAndGet();
+		int capacity = buf.capacity();
+		int idx = sizeClass(capacity);
+		if (idx < 0 || (1 << (idx + MIN_SIZE_SHIFT)) != capacity ||
+				pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+			if (idx >= 0 && (1 << (idx + MIN_SIZE_SHIFT)) == capacity) {
+				pooledBytes.addAndGet(-capacity);
+			}
+			discarded.incrementAndGet();
+			return;
+		}
+
+		buf.clear();
+		pools[idx].offer(buf);
+	}
+
+	public long getMaxPooledBytes() {
+		return maxPooledBytes;
+	}
+
+	public void setMaxPooledBytes(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+	}
+
+	/**
+	 * Fill statistics list with statistics of the pool
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Direct buffers allocated", allocated.get(), Level.FINE);
+		list.add(compName, "Direct buffers reused", reused.get(), Level.FINE);
+		list.add(compName, "Direct buffers discarded", discarded.get(), Level.FINE);
+		list.add(compName, "Direct buffers in use", acquired.get() - released.get(), Level.FINE);
+		list.add(compName, "Direct buffers pooled KB", pooledBytes.get() / 1024, Level.FINE);
+	}
+
+	private int sizeClass(int size) {
+		int shift = MIN_SIZE_SHIFT;
+		while ((1 << shift) < size) {
+			shift++;
+			if (shift > MAX_SIZE_SHIFT) {
+				return -1;
+			}
+		}
+		return shift - MIN_SIZE_SHIFT;
+	}
+}
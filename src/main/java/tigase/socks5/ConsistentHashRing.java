@@ -0,0 +1,112 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Immutable consistent hash ring mapping keys to nodes.
+ * <br>
+ * Each node is placed on the ring at a number of points (virtual nodes) calculated only from its name, so every
+ * node of a cluster with the same set of members maps a key to the same node, and adding or removing a node moves
+ * only keys of that node.
+ *
+ * @author andrzej
+ */
+public class ConsistentHashRing<N> {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final TreeMap<Long, N> ring = new TreeMap<>();
+
+	/**
+	 * Creates ring
+	 *
+	 * @param nodes nodes placed on the ring, identified by result of <code>toString()</code>
+	 * @param virtualNodes number of points of each node on the ring
+	 */
+	public ConsistentHashRing(Collection<N> nodes, int virtualNodes) {
+		for (N node : nodes) {
+			String name = node.toString();
+			for (int i = 0; i < virtualNodes; i++) {
+				ring.put(hash(name + "#" + i), node);
+			}
+		}
+	}
+
+	/**
+	 * Returns node responsible for key or null if ring is empty
+	 *
+	 * @param key
+	 *
+	 * @return
+	 */
+	public N get(String key) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, N> entry = ring.ceilingEntry(hash(key));
+		return (entry != null ? entry : ring.firstEntry()).getValue();
+	}
+
+	/**
+	 * Returns first node accepted by filter, starting from node responsible for key and following the ring, or null
+	 * if no node is accepted
+	 *
+	 * @param key
+	 * @param filter
+	 *
+	 * @return
+	 */
+	public N get(String key, Predicate<N> filter) {
+		long hash = hash(key);
+		for (N node : ring.tailMap(hash, true).values()) {
+			if (filter.test(node)) {
+				return node;
+			}
+		}
+		for (N node : ring.headMap(hash, false).values()) {
+			if (filter.test(node)) {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	public boolean isEmpty() {
+		return ring.isEmpty();
+	}
+
+	private static long hash(String value) {
+		// FNV-1a with final mixing, so results do not depend on JVM
+		long hash = FNV_OFFSET_BASIS;
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= (b & 0xff);
+			hash *= FNV_PRIME;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
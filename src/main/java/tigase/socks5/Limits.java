@@ -26,6 +26,20 @@ public class Limits {
 	private long transferLimitPerFile = 0;
 	private long transferLimitPerUser = 0;
 
+	public Limits() {
+	}
+
+	/**
+	 * Creates copy of limits
+	 *
+	 * @param limits
+	 */
+	public Limits(Limits limits) {
+		this.transferLimitPerDomain = limits.transferLimitPerDomain;
+		this.transferLimitPerFile = limits.transferLimitPerFile;
+		this.transferLimitPerUser = limits.transferLimitPerUser;
+	}
+
 	public long getTransferLimitPerFile() {
 		return transferLimitPerFile;
 	}
@@ -0,0 +1,89 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+/**
+ * Summary of load of a node of cluster: number of open streams, bytes relayed per second and bytes buffered and
+ * waiting to be written.
+ *
+ * @author andrzej
+ */
+public class NodeLoad {
+
+	private final long bufferedBytes;
+	private final long bytesPerSecond;
+	private final int openStreams;
+	private final long timestamp;
+
+	public NodeLoad(int openStreams, long bytesPerSecond, long bufferedBytes, long timestamp) {
+		this.openStreams = openStreams;
+		this.bytesPerSecond = bytesPerSecond;
+		this.bufferedBytes = bufferedBytes;
+		this.timestamp = timestamp;
+	}
+
+	public long getBufferedBytes() {
+		return bufferedBytes;
+	}
+
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	public int getOpenStreams() {
+		return openStreams;
+	}
+
+	/**
+	 * Returns time in milliseconds when load was measured or received from other node
+	 *
+	 * @return
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Returns highest ratio of load to its limit, limits equal to 0 are ignored
+	 *
+	 * @param maxStreams
+	 * @param maxBytesPerSecond
+	 * @param maxBufferedBytes
+	 *
+	 * @return
+	 */
+	public double getUtilization(int maxStreams, long maxBytesPerSecond, long maxBufferedBytes) {
+		double utilization = 0;
+		if (maxStreams > 0) {
+			utilization = Math.max(utilization, ((double) openStreams) / maxStreams);
+		}
+		if (maxBytesPerSecond > 0) {
+			utilization = Math.max(utilization, ((double) bytesPerSecond) / maxBytesPerSecond);
+		}
+		if (maxBufferedBytes > 0) {
+			utilization = Math.max(utilization, ((double) bufferedBytes) / maxBufferedBytes);
+		}
+		return utilization;
+	}
+
+	@Override
+	public String toString() {
+		return "NodeLoad[streams=" + openStreams + ", bytesPerSecond=" + bytesPerSecond + ", bufferedBytes=" +
+				bufferedBytes + "]";
+	}
+}
@@ -0,0 +1,1029 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.stats.StatisticsList;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bridge relaying data of streams which connections were made to different nodes of cluster.
+ * <br>
+ * Nodes are connected by a pool of TCP channels, each of them multiplexing links of many streams. Every frame sent
+ * over a channel starts with a header containing its type, key of stream and length of payload:
+ * <ul>
+ * <li><code>OPEN</code> - opens link of a stream, node accepting link responds with <code>OPEN</code> frame or with
+ * <code>CLOSE</code> frame if it does not hold the stream,</li>
+ * <li><code>DATA</code> - data received by connection of a stream, to be written to its connection on other
+ * node,</li>
+ * <li><code>CLOSE</code> - closes link of a stream,</li>
+ * <li><code>WINDOW</code> - grants other node credit for sending more data of a stream, after data received from it
+ * was written to connection of the stream.</li>
+ * </ul>
+ * Node may send only as much data of a stream as it was granted by other node, so a slow receiver of one stream
+ * suspends reading of its sender on other node instead of blocking channel shared with other streams.
+ * <br>
+ * Channels are accepted only from addresses of known nodes of cluster. Before any frame is sent, node accepting
+ * channel sends a random challenge, which node opening channel needs to answer with its HMAC computed using secret
+ * shared by nodes of cluster.
+ * <br>
+ * All channels of a bridge are served by a single selector thread, which accepts, connects and authenticates
+ * channels, reads frames and writes frames queued by other threads, so sending data of a link never blocks its
+ * caller. Instances of the bridge do not share any state, so many of them may run in a single JVM.
+ *
+ * @author andrzej
+ */
+public class RelayBridge {
+
+	private static final Logger log = Logger.getLogger(RelayBridge.class.getCanonicalName());
+
+	private static final int CHALLENGE_LENGTH = 32;
+	private static final byte FRAME_CLOSE = 3;
+	private static final byte FRAME_DATA = 2;
+	private static final byte FRAME_OPEN = 1;
+	private static final byte FRAME_WINDOW = 4;
+	private static final int HEADER_LENGTH = 1 + StreamKey.LENGTH + 4;
+	// data sent in frames fitting pooled buffers, so links sharing channel are interleaved
+	private static final int DATA_FRAME_LENGTH = 64 * 1024 - HEADER_LENGTH;
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+	private static final int MAX_FRAME_LENGTH = 1024 * 1024;
+	// frames read from or written to channel at once, before other channels are served
+	private static final int READ_BATCH = 16;
+	private static final int WRITE_BATCH = 16;
+
+	private final BufferPool bufferPool;
+	private final Set<Channel> channels = ConcurrentHashMap.newKeySet();
+	private final int connectionsPerNode;
+	private final long connectTimeout;
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final Handler handler;
+	private final AtomicInteger links = new AtomicInteger(0);
+	private final String name;
+	private final ConcurrentHashMap<InetSocketAddress, Channel[]> pools = new ConcurrentHashMap<>();
+	private final SecretKeySpec secret;
+	private final SecureRandom random = new SecureRandom();
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final int window;
+	private Thread loop = null;
+	private volatile boolean running = false;
+	private Selector selector = null;
+	private ServerSocketChannel server = null;
+	private ScheduledExecutorService timer = null;
+
+	/**
+	 * Creates bridge
+	 *
+	 * @param name used in names of threads
+	 * @param handler handler of links opened by other nodes
+	 * @param bufferPool pool of buffers for data received from other nodes
+	 * @param secret secret shared by nodes of cluster
+	 * @param connectionsPerNode number of channels to each node
+	 * @param connectTimeout time in milliseconds in which channel needs to be connected and authenticated and link
+	 * needs to be accepted
+	 * @param window number of bytes of a stream which may be sent before other node grants more credit
+	 */
+	public RelayBridge(String name, Handler handler, BufferPool bufferPool, byte[] secret, int connectionsPerNode,
+					   long connectTimeout, int window) {
+		if (secret == null || secret.length == 0) {
+			throw new IllegalArgumentException("Secret of relay bridge is not set");
+		}
+		this.name = name;
+		this.handler = handler;
+		this.bufferPool = bufferPool;
+		this.secret = new SecretKeySpec(secret, HMAC_ALGORITHM);
+		this.connectionsPerNode = Math.max(1, connectionsPerNode);
+		this.connectTimeout = connectTimeout;
+		this.window = window;
+	}
+
+	/**
+	 * Starts accepting channels from other nodes
+	 *
+	 * @param address local address or null to listen on all addresses
+	 * @param port local port, 0 to use an ephemeral port
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void start(String address, int port) throws IOException {
+		if (running) {
+			return;
+		}
+		Selector selector = Selector.open();
+		ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.bind(address == null ? new InetSocketAddress(port) : new InetSocketAddress(address, port));
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException ex) {
+			server.close();
+			selector.close();
+			throw ex;
+		}
+		this.selector = selector;
+		this.server = server;
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> newThread(r, name + "-timer"));
+		this.running = true;
+		this.loop = newThread(this::run, name + "-loop");
+		this.loop.start();
+	}
+
+	/**
+	 * Stops bridge, closing all channels and links
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		selector.wakeup();
+		timer.shutdownNow();
+		if (Thread.currentThread() != loop) {
+			try {
+				loop.join(connectTimeout);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		pools.clear();
+	}
+
+	/**
+	 * Returns port on which bridge accepts channels from other nodes or -1 if bridge is not started
+	 *
+	 * @return
+	 */
+	public int getLocalPort() {
+		ServerSocketChannel server = this.server;
+		return (running && server != null) ? server.socket().getLocalPort() : -1;
+	}
+
+	/**
+	 * Opens link of stream to other node
+	 *
+	 * @param remote address of bridge of other node
+	 * @param key key of stream
+	 * @param endpoint local endpoint of link receiving data from other node
+	 *
+	 * @return future completed when other node accepts link
+	 */
+	public CompletableFuture<Link> open(InetSocketAddress remote, StreamKey key, Endpoint endpoint) {
+		CompletableFuture<Link> future = new CompletableFuture<>();
+		if (!running) {
+			future.completeExceptionally(new IOException("Relay bridge is not started"));
+			return future;
+		}
+
+		try {
+			Channel channel = getChannel(remote, key);
+			Link link = new Link(channel, key, endpoint, future);
+			link.credit.set(window);
+			if (channel.links.putIfAbsent(key, link) != null) {
+				throw new IOException("Link for stream " + key + " is already open");
+			}
+			links.incrementAndGet();
+			timer.schedule(() -> {
+				if (future.completeExceptionally(new TimeoutException("Link for stream " + key + " not accepted"))) {
+					link.close();
+				}
+			}, connectTimeout, TimeUnit.MILLISECONDS);
+			channel.enqueue(channel.frame(FRAME_OPEN, key, 0));
+		} catch (IOException | RuntimeException ex) {
+			future.completeExceptionally(ex);
+		}
+		return future;
+	}
+
+	/**
+	 * Fill statistics list with statistics of bridge
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Bridge channels", channels.size(), Level.FINE);
+		list.add(compName, "Bridge links", links.get(), Level.FINE);
+		list.add(compName, "Bridge KBytes sent", bytesSent.sum() / 1024, Level.FINE);
+		list.add(compName, "Bridge KBytes received", bytesReceived.sum() / 1024, Level.FINE);
+	}
+
+	private void run() {
+		while (running) {
+			try {
+				selector.select();
+				runTasks();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Channel channel = (Channel) key.attachment();
+					try {
+						channel.process(key.readyOps());
+					} catch (IOException | CancelledKeyException ex) {
+						if (running && log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "closing bridge channel after exception " + ex.getMessage(), ex);
+						}
+						channel.close();
+					}
+				}
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, "exception in bridge loop " + name, ex);
+			}
+		}
+
+		runTasks();
+		for (Channel channel : new ArrayList<>(channels)) {
+			channel.close();
+		}
+		try {
+			server.close();
+			selector.close();
+		} catch (IOException ex) {
+			log.log(Level.FINEST, "exception while closing bridge server", ex);
+		}
+	}
+
+	/**
+	 * Runs task in thread of bridge, as only this thread may use selector and buffers of channels
+	 */
+	private void execute(Runnable task) {
+		tasks.offer(task);
+		selector.wakeup();
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException ex) {
+				log.log(Level.WARNING, "exception in task of bridge loop " + name, ex);
+			}
+		}
+	}
+
+	private void accept() {
+		SocketChannel socket;
+		while (true) {
+			try {
+				if ((socket = server.accept()) == null) {
+					return;
+				}
+			} catch (IOException ex) {
+				log.log(Level.WARNING, "Could not accept bridge channel: {0}", ex.getMessage());
+				return;
+			}
+			Channel channel = null;
+			try {
+				InetAddress remote = ((InetSocketAddress) socket.getRemoteAddress()).getAddress();
+				if (!handler.isAllowed(remote)) {
+					log.log(Level.WARNING, "Rejected bridge channel from {0}, which is not a node of cluster", remote);
+					socket.close();
+					continue;
+				}
+				channel = new Channel(socket, null);
+				channel.register(true);
+			} catch (IOException ex) {
+				log.log(Level.WARNING, "Could not accept bridge channel: {0}", ex.getMessage());
+				if (channel != null) {
+					channel.close();
+				} else {
+					closeQuietly(socket);
+				}
+			}
+		}
+	}
+
+	private Channel getChannel(InetSocketAddress remote, StreamKey key) throws IOException {
+		Channel[] pool = pools.computeIfAbsent(remote, addr -> new Channel[connectionsPerNode]);
+		int idx = Math.floorMod(key.hashCode(), pool.length);
+		synchronized (pool) {
+			Channel channel = pool[idx];
+			if (channel == null || !channel.isOpen()) {
+				SocketChannel socket = SocketChannel.open();
+				boolean connected;
+				try {
+					socket.configureBlocking(false);
+					connected = socket.connect(remote);
+				} catch (IOException | RuntimeException ex) {
+					socket.close();
+					throw ex;
+				}
+				Channel opened = new Channel(socket, remote);
+				execute(() -> {
+					try {
+						opened.register(connected);
+					} catch (IOException ex) {
+						log.log(Level.FINE, "Could not open bridge channel to {0}: {1}",
+								new Object[]{remote, ex.getMessage()});
+						opened.close();
+					}
+				});
+				channel = opened;
+				pool[idx] = channel;
+			}
+			return channel;
+		}
+	}
+
+	private byte[] hmac(byte[] challenge) throws IOException {
+		try {
+			Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(secret);
+			return mac.doFinal(challenge);
+		} catch (GeneralSecurityException ex) {
+			throw new IOException("Could not compute " + HMAC_ALGORITHM + " of bridge challenge", ex);
+		}
+	}
+
+	private void closeQuietly(SocketChannel socket) {
+		try {
+			socket.close();
+		} catch (IOException ex) {
+			log.log(Level.FINEST, "exception while closing bridge channel", ex);
+		}
+	}
+
+	private Thread newThread(Runnable task, String threadName) {
+		Thread thread = new Thread(task, threadName);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * Handler of links opened by other nodes
+	 */
+	public interface Handler {
+
+		/**
+		 * Called when other node opens link of stream
+		 *
+		 * @param link
+		 *
+		 * @return endpoint receiving data of link or null if stream is not known
+		 */
+		Endpoint linkOpened(Link link);
+
+		/**
+		 * Called when channel is accepted to check if it was opened by node of cluster. Called by thread of bridge,
+		 * so it should not block, ie. by resolving names of nodes.
+		 *
+		 * @param address remote address of channel
+		 *
+		 * @return true if channel may be authenticated
+		 */
+		boolean isAllowed(InetAddress address);
+
+	}
+
+	/**
+	 * Local side of link, receiving data sent by other node
+	 */
+	public interface Endpoint {
+
+		/**
+		 * Called with data received from other node. Buffer is taken from pool of bridge and after this method
+		 * returns it is owned by endpoint, which needs to return it to the pool and call {@link
+		 * Link#acknowledge(int)} when its data is written. If exception is thrown, buffer is returned by bridge.
+		 *
+		 * @param data
+		 *
+		 * @throws IOException closes link
+		 */
+		void received(ByteBuffer data) throws IOException;
+
+		/**
+		 * Called when other node granted credit for sending data after all credit of link was used
+		 */
+		void writable();
+
+		/**
+		 * Called when link was closed by other node or channel was broken
+		 */
+		void closed();
+
+	}
+
+	/**
+	 * Link of a single stream between two nodes
+	 */
+	public class Link {
+
+		private final Channel channel;
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+		// bytes which may be sent before other node grants more credit
+		private final AtomicLong credit = new AtomicLong(0);
+		private volatile Endpoint endpoint;
+		// credit to be granted to other node by next window frame
+		private final AtomicLong granting = new AtomicLong(0);
+		private final AtomicBoolean grantQueued = new AtomicBoolean(false);
+		private final CompletableFuture<Link> opening;
+		private final StreamKey key;
+		// bytes received but not acknowledged by endpoint yet
+		private final AtomicLong received = new AtomicLong(0);
+		// bytes written by endpoint but not granted back to other node yet
+		private int unacknowledged = 0;
+
+		private Link(Channel channel, StreamKey key, Endpoint endpoint, CompletableFuture<Link> opening) {
+			this.channel = channel;
+			this.key = key;
+			this.endpoint = endpoint;
+			this.opening = opening;
+		}
+
+		public StreamKey getKey() {
+			return key;
+		}
+
+		/**
+		 * Check if credit granted by other node allows sending more data
+		 *
+		 * @return
+		 */
+		public boolean isWritable() {
+			return credit.get() > 0;
+		}
+
+		/**
+		 * Confirms that data received from other node was written, granting it credit for sending more data. Credit is
+		 * sent in batches of a quarter of window, so other node never runs out of it while data is written. Grants
+		 * not sent yet are merged into a single window frame.
+		 *
+		 * @param bytes
+		 */
+		public void acknowledge(int bytes) {
+			received.addAndGet(-bytes);
+			int granted = 0;
+			synchronized (this) {
+				unacknowledged += bytes;
+				if (unacknowledged >= window / 4) {
+					granted = unacknowledged;
+					unacknowledged = 0;
+				}
+			}
+			if (granted == 0 || closed.get()) {
+				return;
+			}
+			granting.addAndGet(granted);
+			if (grantQueued.compareAndSet(false, true)) {
+				channel.grants.offer(this);
+				channel.scheduleFlush();
+			}
+		}
+
+		/**
+		 * Queues all remaining data of buffer for sending to other node. Credit of link may be exceeded by at most
+		 * size of buffer, so caller should check {@link #isWritable()} before reading data to send.
+		 *
+		 * @param data
+		 *
+		 * @throws IOException
+		 */
+		public void send(ByteBuffer data) throws IOException {
+			if (closed.get()) {
+				throw new IOException("Link for stream " + key + " is closed");
+			}
+			int limit = data.limit();
+			credit.addAndGet(-data.remaining());
+			try {
+				while (data.hasRemaining()) {
+					int length = Math.min(data.remaining(), DATA_FRAME_LENGTH);
+					ByteBuffer frame = channel.frame(FRAME_DATA, key, length);
+					data.limit(data.position() + length);
+					frame.put(data);
+					data.limit(limit);
+					frame.flip();
+					channel.enqueue(frame);
+				}
+			} finally {
+				data.limit(limit);
+			}
+		}
+
+		/**
+		 * Closes link and notifies other node
+		 */
+		public void close() {
+			if (release()) {
+				try {
+					channel.enqueue(channel.frame(FRAME_CLOSE, key, 0));
+				} catch (IOException ex) {
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "could not send close of link " + key, ex);
+					}
+				}
+			}
+		}
+
+		private boolean release() {
+			if (!closed.compareAndSet(false, true)) {
+				return false;
+			}
+			channel.links.remove(key, this);
+			links.decrementAndGet();
+			return true;
+		}
+
+		private void granted(int bytes) {
+			long before = credit.getAndAdd(bytes);
+			Endpoint endpoint = this.endpoint;
+			if (before <= 0 && before + bytes > 0 && endpoint != null) {
+				endpoint.writable();
+			}
+		}
+
+		private void remoteClosed() {
+			if (!release()) {
+				return;
+			}
+			if (opening != null && opening.completeExceptionally(
+					new IOException("Link for stream " + key + " rejected"))) {
+				return;
+			}
+			Endpoint endpoint = this.endpoint;
+			if (endpoint != null) {
+				endpoint.closed();
+			}
+		}
+	}
+
+	/**
+	 * TCP channel between nodes carrying frames of many links. Frames are queued by any thread, while socket and
+	 * buffers of channel are used only by thread of bridge.
+	 */
+	private class Channel {
+
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+		private final ByteBuffer credit = ByteBuffer.allocate(4);
+		private final ByteBuffer empty = ByteBuffer.allocate(0);
+		// true while flush is queued or channel waits until socket is writable
+		private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+		private final Queue<Link> grants = new ConcurrentLinkedQueue<>();
+		private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		private final ConcurrentHashMap<StreamKey, Link> links = new ConcurrentHashMap<>();
+		private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+		private final InetSocketAddress pooledAs;
+		private final SocketChannel socket;
+		private final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+		private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+		// challenge received or response to challenge sent, until channel is authenticated
+		private ByteBuffer auth = ByteBuffer.allocate(CHALLENGE_LENGTH);
+		private byte[] expected = null;
+		private StreamKey frameKey = null;
+		private byte frameType = 0;
+		// bytes of authentication which need to be sent before any frame
+		private ByteBuffer handshake = null;
+		private SelectionKey key = null;
+		private ByteBuffer payload = null;
+		private volatile boolean ready = false;
+
+		private Channel(SocketChannel socket, InetSocketAddress pooledAs) {
+			this.socket = socket;
+			this.pooledAs = pooledAs;
+		}
+
+		private boolean isOpen() {
+			return !closed.get();
+		}
+
+		/**
+		 * Registers channel in selector of bridge and starts authentication, which needs to be finished in time
+		 *
+		 * @param connected true if socket is already connected
+		 */
+		private void register(boolean connected) throws IOException {
+			channels.add(this);
+			if (closed.get() || !running) {
+				close();
+				return;
+			}
+			socket.configureBlocking(false);
+			socket.socket().setTcpNoDelay(true);
+			key = socket.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+			if (pooledAs == null) {
+				byte[] challenge = new byte[CHALLENGE_LENGTH];
+				random.nextBytes(challenge);
+				expected = hmac(challenge);
+				handshake = ByteBuffer.wrap(challenge);
+				flushScheduled.set(true);
+				flush();
+			}
+			timer.schedule(() -> execute(() -> {
+				if (!ready) {
+					log.log(Level.FINE, "Bridge channel {0} not authenticated in time", this);
+					close();
+				}
+			}), connectTimeout, TimeUnit.MILLISECONDS);
+		}
+
+		private void process(int readyOps) throws IOException {
+			if ((readyOps & SelectionKey.OP_CONNECT) != 0) {
+				if (!socket.finishConnect()) {
+					return;
+				}
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			if ((readyOps & SelectionKey.OP_READ) != 0) {
+				read();
+			}
+			if ((readyOps & SelectionKey.OP_WRITE) != 0) {
+				flush();
+			}
+		}
+
+		private void close() {
+			if (!closed.compareAndSet(false, true)) {
+				return;
+			}
+			closeQuietly(socket);
+			channels.remove(this);
+			if (pooledAs != null) {
+				Channel[] pool = pools.get(pooledAs);
+				if (pool != null) {
+					synchronized (pool) {
+						for (int i = 0; i < pool.length; i++) {
+							if (pool[i] == this) {
+								pool[i] = null;
+							}
+						}
+					}
+				}
+			}
+			if (payload != null && frameType == FRAME_DATA) {
+				bufferPool.release(payload);
+			}
+			payload = null;
+			ByteBuffer buf;
+			while ((buf = writing.poll()) != null) {
+				bufferPool.release(buf);
+			}
+			while ((buf = outbound.poll()) != null) {
+				bufferPool.release(buf);
+			}
+			for (Link link : new ArrayList<>(links.values())) {
+				link.remoteClosed();
+			}
+		}
+
+		/**
+		 * Returns pooled buffer containing header of frame, ready for writing payload of frame
+		 */
+		private ByteBuffer frame(byte type, StreamKey key, int length) {
+			ByteBuffer frame = bufferPool.acquire(HEADER_LENGTH + length);
+			frame.put(type);
+			key.writeTo(frame);
+			frame.putInt(length);
+			if (length == 0) {
+				frame.flip();
+			}
+			return frame;
+		}
+
+		private void enqueue(ByteBuffer frame) throws IOException {
+			if (closed.get()) {
+				bufferPool.release(frame);
+				throw new IOException("Bridge channel is closed");
+			}
+			outbound.offer(frame);
+			scheduleFlush();
+		}
+
+		private void scheduleFlush() {
+			if (flushScheduled.compareAndSet(false, true)) {
+				execute(() -> {
+					try {
+						flush();
+					} catch (IOException | CancelledKeyException ex) {
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "closing bridge channel after exception " + ex.getMessage(), ex);
+						}
+						close();
+					}
+				});
+			}
+		}
+
+		/**
+		 * Writes queued frames until socket is not able to accept more data
+		 */
+		private void flush() throws IOException {
+			if (closed.get() || key == null) {
+				return;
+			}
+			if (handshake != null) {
+				socket.write(handshake);
+				if (handshake.hasRemaining()) {
+					setWriteInterest(true);
+					return;
+				}
+				handshake = null;
+			}
+			if (!ready) {
+				// frames will be written after channel is authenticated
+				setWriteInterest(false);
+				return;
+			}
+			while (true) {
+				fillWriting();
+				if (writing.isEmpty()) {
+					break;
+				}
+				int count = 0;
+				for (ByteBuffer buf : writing) {
+					batch[count++] = buf;
+					if (count == batch.length) {
+						break;
+					}
+				}
+				long written = socket.write(batch, 0, count);
+				Arrays.fill(batch, 0, count, null);
+				bytesSent.add(written);
+				ByteBuffer buf;
+				while ((buf = writing.peek()) != null && !buf.hasRemaining()) {
+					bufferPool.release(writing.poll());
+				}
+				if (buf != null) {
+					// socket is not able to accept more data now
+					setWriteInterest(true);
+					return;
+				}
+			}
+			setWriteInterest(false);
+			flushScheduled.set(false);
+			if (!outbound.isEmpty() || !grants.isEmpty()) {
+				scheduleFlush();
+			}
+		}
+
+		private void fillWriting() {
+			Link link;
+			while (writing.size() < WRITE_BATCH && (link = grants.poll()) != null) {
+				link.grantQueued.set(false);
+				long granted = link.granting.getAndSet(0);
+				if (granted > 0 && !link.closed.get()) {
+					ByteBuffer frame = frame(FRAME_WINDOW, link.key, 4);
+					frame.putInt((int) granted);
+					frame.flip();
+					writing.add(frame);
+				}
+			}
+			ByteBuffer frame;
+			while (writing.size() < WRITE_BATCH && (frame = outbound.poll()) != null) {
+				writing.add(frame);
+			}
+		}
+
+		private void setWriteInterest(boolean enabled) {
+			int ops = key.interestOps();
+			int newOps = enabled ? (ops | SelectionKey.OP_WRITE) : (ops & ~SelectionKey.OP_WRITE);
+			if (ops != newOps) {
+				key.interestOps(newOps);
+			}
+		}
+
+		/**
+		 * Node accepting channel verifies response to its challenge, node opening channel responds to challenge
+		 */
+		private void authenticate() throws IOException {
+			int read = socket.read(auth);
+			if (read < 0) {
+				throw new EOFException("Bridge channel closed during authentication");
+			}
+			bytesReceived.add(read);
+			if (auth.hasRemaining()) {
+				return;
+			}
+			if (pooledAs == null) {
+				if (!MessageDigest.isEqual(expected, auth.array())) {
+					throw new IOException("Bridge channel from " + socket.getRemoteAddress() + " failed authentication");
+				}
+			} else {
+				handshake = ByteBuffer.wrap(hmac(auth.array()));
+			}
+			auth = null;
+			expected = null;
+			ready = true;
+			// frames queued during authentication were held back
+			flushScheduled.set(true);
+			flush();
+		}
+
+		private void read() throws IOException {
+			if (!ready) {
+				authenticate();
+				if (!ready) {
+					return;
+				}
+			}
+			for (int frames = 0; frames < READ_BATCH; frames++) {
+				if (payload == null && !readHeader()) {
+					return;
+				}
+				if (payload.hasRemaining()) {
+					int read = socket.read(payload);
+					if (read < 0) {
+						throw new EOFException("Bridge channel closed");
+					}
+					bytesReceived.add(read);
+					if (payload.hasRemaining()) {
+						return;
+					}
+				}
+				ByteBuffer data = payload;
+				payload = null;
+				dispatch(frameType, frameKey, data);
+			}
+		}
+
+		/**
+		 * Reads header of next frame and prepares buffer for its payload
+		 *
+		 * @return false if whole header is not available yet
+		 */
+		private boolean readHeader() throws IOException {
+			int read = socket.read(header);
+			if (read < 0) {
+				throw new EOFException("Bridge channel closed");
+			}
+			bytesReceived.add(read);
+			if (header.hasRemaining()) {
+				return false;
+			}
+			header.flip();
+			byte type = header.get();
+			byte[] digest = new byte[StreamKey.LENGTH];
+			header.get(digest);
+			int length = header.getInt();
+			header.clear();
+			if (length < 0 || length > MAX_FRAME_LENGTH) {
+				throw new IOException("Invalid length of bridge frame: " + length);
+			}
+			switch (type) {
+				case FRAME_DATA:
+					payload = bufferPool.acquire(length);
+					payload.limit(length);
+					break;
+				case FRAME_WINDOW:
+					if (length != credit.capacity()) {
+						throw new IOException("Invalid length of bridge window frame: " + length);
+					}
+					credit.clear();
+					payload = credit;
+					break;
+				case FRAME_OPEN:
+				case FRAME_CLOSE:
+					if (length != 0) {
+						throw new IOException("Invalid length of bridge frame: " + length);
+					}
+					payload = empty;
+					break;
+				default:
+					throw new IOException("Invalid type of bridge frame: " + type);
+			}
+			frameType = type;
+			frameKey = new StreamKey(digest);
+			return true;
+		}
+
+		private void dispatch(byte type, StreamKey key, ByteBuffer data) throws IOException {
+			switch (type) {
+				case FRAME_OPEN:
+					opened(key);
+					break;
+				case FRAME_DATA:
+					data.flip();
+					received(key, data);
+					break;
+				case FRAME_WINDOW:
+					data.flip();
+					Link granted = links.get(key);
+					if (granted != null) {
+						granted.granted(data.getInt());
+					}
+					break;
+				case FRAME_CLOSE:
+					Link link = links.get(key);
+					if (link != null) {
+						link.remoteClosed();
+					}
+					break;
+				default:
+					throw new IOException("Invalid type of bridge frame: " + type);
+			}
+		}
+
+		private void opened(StreamKey key) throws IOException {
+			Link link = links.get(key);
+			if (link != null && link.opening != null) {
+				// other node accepted link opened by this node
+				link.opening.complete(link);
+				return;
+			}
+			if (link != null) {
+				return;
+			}
+
+			link = new Link(this, key, null, null);
+			link.credit.set(window);
+			Endpoint endpoint = null;
+			if (links.putIfAbsent(key, link) == null) {
+				RelayBridge.this.links.incrementAndGet();
+				try {
+					endpoint = handler.linkOpened(link);
+				} catch (RuntimeException ex) {
+					log.log(Level.WARNING, "exception while opening link for stream " + key, ex);
+				}
+			}
+			if (endpoint == null) {
+				link.close();
+				return;
+			}
+			link.endpoint = endpoint;
+			enqueue(frame(FRAME_OPEN, key, 0));
+		}
+
+		private void received(StreamKey key, ByteBuffer data) {
+			Link link = links.get(key);
+			Endpoint endpoint = link != null ? link.endpoint : null;
+			if (endpoint == null) {
+				bufferPool.release(data);
+				return;
+			}
+			try {
+				// other node may exceed its credit only by a single buffer of data
+				if (link.received.addAndGet(data.remaining()) > window + MAX_FRAME_LENGTH) {
+					throw new IOException("Credit of link exceeded by other node");
+				}
+				endpoint.received(data);
+			} catch (IOException ex) {
+				bufferPool.release(data);
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "closing link " + key + " after exception " + ex.getMessage(), ex);
+				}
+				link.close();
+				endpoint.closed();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return pooledAs != null ? "to " + pooledAs : "from " + socket.socket().getRemoteSocketAddress();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Set of buffers used by connection to relay data in <code>direct</code> mode when more than one buffer is
+ * configured.
+ * <br>
+ * Buffer filled with data is passed to the other connection of stream for writing and stays in flight until all
+ * of its data is written. In the meantime next buffer is used for reading, so reading and writing overlap. Amount of
+ * data in flight is bounded by high and low watermarks.
+ * <br>
+ * Positions of buffers in flight are changed by the thread writing them to the other connection, so all methods of
+ * this class need to be called while holding <code>transferInProgress</code> lock of the other connection of stream,
+ * which is held by that connection while it writes data.
+ *
+ * @author andrzej
+ */
+public class RelayBuffers {
+
+	private final ByteBuffer[] buffers;
+	private final boolean[] inFlight;
+	private final RelayWatermarks watermarks;
+
+	public RelayBuffers(ByteBuffer[] buffers, int highWatermarkPercent, int lowWatermarkPercent) {
+		this.buffers = buffers;
+		this.inFlight = new boolean[buffers.length];
+		int capacity = 0;
+		for (ByteBuffer buf : buffers) {
+			capacity += buf.capacity();
+		}
+		this.watermarks = new RelayWatermarks(capacity, highWatermarkPercent, lowWatermarkPercent);
+	}
+
+	/**
+	 * Returns cleared buffer ready for reading data from socket or null if all buffers are in flight
+	 *
+	 * @return
+	 */
+	public ByteBuffer next() {
+		for (int i = 0; i < buffers.length; i++) {
+			if (!inFlight[i] || !buffers[i].hasRemaining()) {
+				inFlight[i] = false;
+				buffers[i].clear();
+				return buffers[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Mark buffer as passed to other connection for writing
+	 *
+	 * @param buf
+	 */
+	public void sent(ByteBuffer buf) {
+		for (int i = 0; i < buffers.length; i++) {
+			if (buffers[i] == buf) {
+				inFlight[i] = buf.hasRemaining();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns number of bytes passed for writing but not written yet
+	 *
+	 * @return
+	 */
+	public int buffered() {
+		int buffered = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			if (inFlight[i]) {
+				buffered += buffers[i].remaining();
+			}
+		}
+		return buffered;
+	}
+
+	/**
+	 * Check if more data may be read from socket
+	 *
+	 * @return
+	 */
+	public boolean isReadAllowed() {
+		boolean free = false;
+		for (int i = 0; i < buffers.length; i++) {
+			if (!inFlight[i] || !buffers[i].hasRemaining()) {
+				free = true;
+				break;
+			}
+		}
+		return free && watermarks.isReadAllowed(this::buffered);
+	}
+
+	/**
+	 * Check if reading was suspended and amount of data in flight dropped below low watermark
+	 *
+	 * @return
+	 */
+	public boolean isResumable() {
+		return watermarks.isResumable(buffered());
+	}
+
+	public ByteBuffer[] getBuffers() {
+		return buffers;
+	}
+
+}
@@ -0,0 +1,446 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.stats.StatisticsList;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Relay engine with dedicated selector loops, one per core by default.
+ * <br>
+ * When stream is activated both of its connections are detached from <code>SocketThread</code>s and registered on
+ * the same loop, which relays data between them using ring buffers. Loop for a new stream is chosen based on
+ * number of bytes per second relayed by each loop. Streams may be moved from an overloaded loop to the least loaded
+ * one, based on number of bytes per second relayed by each stream.
+ * <br>
+ * When one connection of a stream reaches end of its input, data buffered from it is written to the other
+ * connection, which output is then shut down. Stream is closed after both directions are finished.
+ *
+ * @author andrzej
+ */
+public class RelayEngine
+		implements RelayEngineIfc {
+
+	private static final Logger log = Logger.getLogger(RelayEngine.class.getCanonicalName());
+
+	private static final long HOUSEKEEPING_INTERVAL = 1000;
+	private static final int REBALANCE_RATIO = 2;
+	private static final int REBALANCE_BATCH = 16;
+
+	private final Loop[] loops;
+	private final Socks5ConnectionManager manager;
+	private final AtomicLong streamsMoved = new AtomicLong(0);
+
+	public RelayEngine(Socks5ConnectionManager manager, int loopsCount) {
+		this.manager = manager;
+		this.loops = new Loop[loopsCount > 0 ? loopsCount : Runtime.getRuntime().availableProcessors()];
+	}
+
+	/**
+	 * Start selector loops
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void start() throws IOException {
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new Loop(i);
+			loops[i].start();
+		}
+	}
+
+	/**
+	 * Stop selector loops
+	 */
+	@Override
+	public void stop() {
+		for (Loop loop : loops) {
+			if (loop != null) {
+				loop.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Register both connections of activated stream on the least loaded loop
+	 *
+	 * @param stream
+	 */
+	@Override
+	public void attach(Stream stream) {
+		Socks5IOService requester = stream.getConnection(Socks5ConnectionType.Requester);
+		Socks5IOService target = stream.getConnection(Socks5ConnectionType.Target);
+		if (requester == null || target == null) {
+			return;
+		}
+
+		Relay relay = new Relay(stream, requester, target);
+		Loop loop = leastLoaded();
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "attaching stream {0} to relay loop {1}", new Object[]{stream, loop.id});
+		}
+		loop.enqueue(relay);
+	}
+
+	/**
+	 * Fill statistics list with statistics of loops
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		for (Loop loop : loops) {
+			if (loop != null) {
+				list.add(compName, "Relay loop " + loop.id + " streams", loop.relayCount, Level.FINE);
+				list.add(compName, "Relay loop " + loop.id + " bytes/sec", loop.bytesPerSecond, Level.FINE);
+			}
+		}
+		list.add(compName, "Relay streams moved", streamsMoved.get(), Level.FINE);
+	}
+
+	private Loop leastLoaded() {
+		long totalRate = 0;
+		int totalRelays = 0;
+		for (Loop loop : loops) {
+			totalRate += loop.bytesPerSecond;
+			totalRelays += loop.relayCount;
+		}
+		// each relay is assumed to have average rate, so new streams arriving
+		// within single measurement interval are not all placed on the same loop
+		long relayWeight = totalRelays == 0 ? 1 : Math.max(1, totalRate / totalRelays);
+
+		Loop result = loops[0];
+		long resultScore = Long.MAX_VALUE;
+		for (Loop loop : loops) {
+			long score = loop.bytesPerSecond + (loop.relayCount + loop.pending.size()) * relayWeight;
+			if (score < resultScore) {
+				result = loop;
+				resultScore = score;
+			}
+		}
+		return result;
+	}
+
+	private class Endpoint {
+
+		private final SocketChannel channel;
+		private final RingBuffer inbound;
+		private final Relay relay;
+		private final Socks5IOService service;
+		private final RelayWatermarks watermarks;
+		// end of input of this endpoint was reached
+		private boolean inputClosed = false;
+		private SelectionKey key;
+		private Endpoint peer;
+		// output of peer was shut down after all data read by this endpoint was written
+		private boolean peerOutputClosed = false;
+
+		private Endpoint(Relay relay, Socks5IOService service) {
+			this.relay = relay;
+			this.service = service;
+			this.channel = service.getSocketChannel();
+			this.inbound = new RingBuffer(manager.getBufferPool().acquire(manager.getRingBufferSize()));
+			this.watermarks = new RelayWatermarks(inbound.capacity(), manager.getRelayHighWatermark(),
+												  manager.getRelayLowWatermark());
+		}
+
+		private void updateInterestOps() {
+			if (key == null || !key.isValid()) {
+				return;
+			}
+			int ops = 0;
+			if (!inputClosed && inbound.free() > 0 && watermarks.isReadAllowed(inbound::size)) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (!peer.inbound.isEmpty()) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+
+		/**
+		 * Write data read by this endpoint to the other endpoint of relay
+		 */
+		private void writeToPeer() throws IOException {
+			if (peerOutputClosed) {
+				return;
+			}
+			int written = inbound.writeTo(peer.channel);
+			if (written > 0) {
+				peer.service.addBytesSent(written);
+			}
+			if (inputClosed && inbound.isEmpty()) {
+				// all data of this direction was written, so peer may see end of its input
+				peer.channel.shutdownOutput();
+				peerOutputClosed = true;
+			}
+		}
+	}
+
+	private class Relay {
+
+		private final Endpoint requester;
+		private final Stream stream;
+		private final Endpoint target;
+		private long bytesPerSecond = 0;
+		private long bytesTransferred = 0;
+		private boolean closed = false;
+
+		private Relay(Stream stream, Socks5IOService requester, Socks5IOService target) {
+			this.stream = stream;
+			this.requester = new Endpoint(this, requester);
+			this.target = new Endpoint(this, target);
+			this.requester.peer = this.target;
+			this.target.peer = this.requester;
+		}
+
+		private boolean isFinished() {
+			return requester.peerOutputClosed && target.peerOutputClosed;
+		}
+
+		private boolean isOpen() {
+			return requester.channel.isOpen() && target.channel.isOpen();
+		}
+
+		private void cancelKeys() {
+			if (requester.key != null) {
+				requester.key.cancel();
+				requester.key = null;
+			}
+			if (target.key != null) {
+				target.key.cancel();
+				target.key = null;
+			}
+		}
+	}
+
+	private class Loop
+			implements Runnable {
+
+		private final int id;
+		private final Queue<Relay> pending = new ConcurrentLinkedQueue<>();
+		private final List<Relay> relays = new ArrayList<>();
+		// size of relays, read by other threads choosing loop for a new stream
+		private volatile int relayCount = 0;
+		private final Selector selector;
+		private final Thread thread;
+		private volatile long bytesPerSecond = 0;
+		private long bytesTransferred = 0;
+		private long lastHousekeeping = System.currentTimeMillis();
+		private volatile boolean running = true;
+
+		private Loop(int id) throws IOException {
+			this.id = id;
+			this.selector = Selector.open();
+			this.thread = new Thread(this, "socks5-relay-loop-" + id);
+			this.thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					selector.select(HOUSEKEEPING_INTERVAL);
+					registerPending();
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						Endpoint endpoint = (Endpoint) key.attachment();
+						try {
+							if (key.isValid()) {
+								process(endpoint, key.readyOps());
+							}
+						} catch (IOException | CancelledKeyException ex) {
+							if (log.isLoggable(Level.FINEST)) {
+								log.log(Level.FINEST, "closing stream " + endpoint.relay.stream + " after exception", ex);
+							}
+							close(endpoint.relay);
+						}
+					}
+
+					long now = System.currentTimeMillis();
+					if (now - lastHousekeeping >= HOUSEKEEPING_INTERVAL) {
+						housekeeping(now);
+					}
+				} catch (Throwable ex) {
+					log.log(Level.WARNING, "exception in relay loop " + id, ex);
+				}
+			}
+
+			for (Relay relay : new ArrayList<>(relays)) {
+				close(relay);
+			}
+			try {
+				selector.close();
+			} catch (IOException ex) {
+				log.log(Level.FINEST, "exception while closing selector", ex);
+			}
+		}
+
+		private void start() {
+			thread.start();
+		}
+
+		private void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		private void enqueue(Relay relay) {
+			pending.offer(relay);
+			selector.wakeup();
+		}
+
+		private void registerPending() {
+			Relay relay;
+			while ((relay = pending.poll()) != null) {
+				try {
+					relay.requester.key = relay.requester.channel.register(selector, 0, relay.requester);
+					relay.target.key = relay.target.channel.register(selector, 0, relay.target);
+					relays.add(relay);
+					relayCount = relays.size();
+					relay.requester.updateInterestOps();
+					relay.target.updateInterestOps();
+				} catch (IOException | CancelledKeyException ex) {
+					relays.add(relay);
+					relayCount = relays.size();
+					close(relay);
+				}
+			}
+		}
+
+		private void process(Endpoint endpoint, int readyOps) throws IOException {
+			Relay relay = endpoint.relay;
+			int read = 0;
+
+			if ((readyOps & SelectionKey.OP_READ) != 0) {
+				read = endpoint.inbound.readFrom(endpoint.channel);
+				if (read < 0) {
+					// only this direction is finished, after buffered data is written
+					endpoint.inputClosed = true;
+					read = 0;
+				}
+				if (read > 0) {
+					endpoint.service.addBytesReceived(read);
+					bytesTransferred += read;
+					relay.bytesTransferred += read;
+				}
+			}
+
+			endpoint.writeToPeer();
+			endpoint.peer.writeToPeer();
+
+			if (read > 0) {
+				manager.socketDataProcessed(endpoint.service);
+			}
+
+			if (!relay.isOpen() || relay.isFinished()) {
+				close(relay);
+				return;
+			}
+			endpoint.updateInterestOps();
+			endpoint.peer.updateInterestOps();
+		}
+
+		private void close(Relay relay) {
+			if (relay.closed) {
+				return;
+			}
+			relay.closed = true;
+			relays.remove(relay);
+			relayCount = relays.size();
+			relay.cancelKeys();
+			relay.stream.close();
+			manager.getBufferPool().release(relay.requester.inbound.getStorage());
+			manager.getBufferPool().release(relay.target.inbound.getStorage());
+		}
+
+		private void housekeeping(long now) {
+			long elapsed = now - lastHousekeeping;
+			lastHousekeeping = now;
+			bytesPerSecond = (bytesPerSecond + (bytesTransferred * 1000 / Math.max(1, elapsed))) / 2;
+			bytesTransferred = 0;
+
+			for (Relay relay : new ArrayList<>(relays)) {
+				relay.bytesPerSecond = (relay.bytesPerSecond + (relay.bytesTransferred * 1000 / Math.max(1, elapsed))) / 2;
+				relay.bytesTransferred = 0;
+				if (!relay.isOpen()) {
+					close(relay);
+				}
+			}
+
+			rebalance();
+		}
+
+		private void rebalance() {
+			Loop target = leastLoaded();
+			if (target == this || bytesPerSecond <= target.bytesPerSecond * REBALANCE_RATIO) {
+				return;
+			}
+
+			// moving half of difference of rates evens loads of both loops, streams faster than that are kept as
+			// they would only make target loop overloaded
+			long excess = (bytesPerSecond - target.bytesPerSecond) / 2;
+			List<Relay> candidates = new ArrayList<>(relays);
+			candidates.sort((r1, r2) -> Long.compare(r2.bytesPerSecond, r1.bytesPerSecond));
+
+			int moved = 0;
+			long movedRate = 0;
+			for (Relay relay : candidates) {
+				if (moved >= REBALANCE_BATCH || movedRate >= excess) {
+					break;
+				}
+				if (relay.bytesPerSecond > excess - movedRate) {
+					continue;
+				}
+				relays.remove(relay);
+				relay.cancelKeys();
+				target.enqueue(relay);
+				movedRate += relay.bytesPerSecond;
+				moved++;
+			}
+			relayCount = relays.size();
+			// moved streams are counted by target loop from now on
+			bytesPerSecond -= movedRate;
+
+			if (moved > 0) {
+				streamsMoved.addAndGet(moved);
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "moved {0} streams relaying {1} bytes/sec from relay loop {2} to {3}",
+							new Object[]{moved, movedRate, id, target.id});
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.stats.StatisticsList;
+
+import java.io.IOException;
+
+/**
+ * Engine relaying data between connections of activated streams instead of <code>SocketThread</code>s
+ */
+public interface RelayEngineIfc {
+
+	void start() throws IOException;
+
+	void stop();
+
+	void attach(Stream stream);
+
+	void getStatistics(String compName, StatisticsList list);
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+/**
+ * Modes of relaying data between connections of a stream
+ */
+public enum RelayMode {
+
+	/**
+	 * Data read by one connection is written directly by the other connection of stream
+	 */
+	direct,
+	/**
+	 * Each direction of stream uses single-producer/single-consumer ring buffer, reading thread of one connection
+	 * fills it and writing thread of the other connection drains it
+	 */
+	ring,
+	/**
+	 * Both connections of stream are detached from <code>SocketThread</code>s and relayed by one of dedicated
+	 * selector loops of {@link RelayEngine}
+	 */
+	event_loop,
+	/**
+	 * Each direction of stream is relayed by a separate (virtual if supported) thread using blocking reads and
+	 * writes by {@link BlockingRelayEngine}
+	 */
+	blocking
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import java.util.function.IntSupplier;
+
+/**
+ * High and low watermarks of data buffered in a single direction of stream.
+ * <br>
+ * Reading is suspended when amount of buffered data reaches high watermark and resumed only after it drops to low
+ * watermark, so connection is not woken up for each small chunk of data written to the other side.
+ * <br>
+ * Reading connection checks watermarks before reading and writing connection checks them after writing, possibly at
+ * the same time. Reading connection checks amount of buffered data again after suspending reading, so it does not
+ * stay suspended if all data was written before writing connection could notice that reading was suspended.
+ *
+ * @author andrzej
+ */
+public class RelayWatermarks {
+
+	private final int high;
+	private final int low;
+	private volatile boolean suspended = false;
+
+	public RelayWatermarks(int capacity, int highPercent, int lowPercent) {
+		this.high = Math.max(1, (int) ((long) capacity * Math.min(100, highPercent) / 100));
+		this.low = Math.min(high - 1, (int) ((long) capacity * Math.max(0, lowPercent) / 100));
+	}
+
+	/**
+	 * Check if data may be read, suspending reading when amount of buffered data reaches high watermark
+	 *
+	 * @param buffered supplier of current amount of buffered data
+	 *
+	 * @return
+	 */
+	public boolean isReadAllowed(IntSupplier buffered) {
+		if (suspended) {
+			if (buffered.getAsInt() > low) {
+				return false;
+			}
+			suspended = false;
+			return true;
+		}
+		if (buffered.getAsInt() < high) {
+			return true;
+		}
+		suspended = true;
+		if (buffered.getAsInt() <= low) {
+			// data was written before writing connection could see that reading was suspended
+			suspended = false;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check if reading is suspended and may be resumed when specified amount of data is buffered
+	 *
+	 * @param buffered
+	 *
+	 * @return
+	 */
+	public boolean isResumable(int buffered) {
+		return suspended && buffered <= low;
+	}
+
+	public int getHigh() {
+		return high;
+	}
+
+	public int getLow() {
+		return low;
+	}
+
+}
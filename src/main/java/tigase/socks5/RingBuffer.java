@@ -0,0 +1,178 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-capacity single-producer/single-consumer ring buffer backed by a direct <code>ByteBuffer</code>.
+ * <br>
+ * Only one thread at a time may call {@link #readFrom(ReadableByteChannel)} and only one thread at a time may call
+ * {@link #writeTo(WritableByteChannel)}. Positions are published with ordered writes, so no locks are needed and
+ * no objects are allocated while data is transferred.
+ *
+ * @author andrzej
+ */
+public class RingBuffer {
+
+	private final int capacity;
+	private final ByteBuffer consumerView;
+	// number of bytes consumed from the ring
+	private final AtomicLong head = new AtomicLong(0);
+	private final ByteBuffer producerView;
+	private final ByteBuffer storage;
+	// number of bytes produced to the ring
+	private final AtomicLong tail = new AtomicLong(0);
+
+	public RingBuffer(ByteBuffer storage) {
+		this.storage = storage;
+		this.capacity = storage.capacity();
+		this.producerView = storage.duplicate();
+		this.consumerView = storage.duplicate();
+	}
+
+	/**
+	 * Reads data from channel to free space of the ring. Called only by producer.
+	 *
+	 * @param channel
+	 *
+	 * @return number of bytes read or -1 if end of stream was reached
+	 *
+	 * @throws IOException
+	 */
+	public int readFrom(ReadableByteChannel channel) throws IOException {
+		long tail = this.tail.get();
+		int free = (int) (capacity - (tail - head.get()));
+		int total = 0;
+
+		while (free > 0) {
+			int offset = (int) (tail % capacity);
+			int length = Math.min(free, capacity - offset);
+
+			producerView.clear();
+			producerView.position(offset);
+			producerView.limit(offset + length);
+
+			int read = channel.read(producerView);
+			if (read < 0) {
+				return total == 0 ? -1 : total;
+			}
+			if (read == 0) {
+				break;
+			}
+
+			total += read;
+			free -= read;
+			tail += read;
+			this.tail.lazySet(tail);
+
+			if (read < length) {
+				break;
+			}
+		}
+
+		return total;
+	}
+
+	/**
+	 * Writes data from the ring to channel. Called only by consumer.
+	 *
+	 * @param channel
+	 *
+	 * @return number of bytes written
+	 *
+	 * @throws IOException
+	 */
+	public int writeTo(WritableByteChannel channel) throws IOException {
+		long head = this.head.get();
+		int available = (int) (tail.get() - head);
+		int total = 0;
+
+		while (available > 0) {
+			int offset = (int) (head % capacity);
+			int length = Math.min(available, capacity - offset);
+
+			consumerView.clear();
+			consumerView.position(offset);
+			consumerView.limit(offset + length);
+
+			int written = channel.write(consumerView);
+			if (written <= 0) {
+				break;
+			}
+
+			total += written;
+			available -= written;
+			head += written;
+			this.head.lazySet(head);
+
+			if (written < length) {
+				break;
+			}
+		}
+
+		return total;
+	}
+
+	/**
+	 * Returns capacity of the ring
+	 *
+	 * @return
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns number of bytes which may be read to the ring
+	 *
+	 * @return
+	 */
+	public int free() {
+		return capacity - size();
+	}
+
+	/**
+	 * Returns buffer in which data of the ring is stored
+	 *
+	 * @return
+	 */
+	public ByteBuffer getStorage() {
+		return storage;
+	}
+
+	public boolean isEmpty() {
+		return tail.get() == head.get();
+	}
+
+	/**
+	 * Returns number of bytes waiting in the ring
+	 *
+	 * @return
+	 */
+	public int size() {
+		// head must be read first as it never overtakes tail
+		long head = this.head.get();
+		return (int) (tail.get() - head);
+	}
+
+}
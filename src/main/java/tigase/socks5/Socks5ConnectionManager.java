@@ -19,10 +19,12 @@ package tigase.socks5;
 
 //~--- non-JDK imports --------------------------------------------------------
 
+import tigase.kernel.beans.config.ConfigField;
 import tigase.stats.StatisticsList;
-import tigase.util.common.TimerTask;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -41,12 +43,45 @@ public abstract class Socks5ConnectionManager
 		extends AbstractConnectionManager<Socks5IOService<?>> {
 
 	private static final Logger log = Logger.getLogger(Socks5ConnectionManager.class.getCanonicalName());
-	private static final long STREAM_CREATION_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+	private static final long HANDSHAKE_TIMEOUT_VAL = TimeUnit.SECONDS.toMillis(30);
+	private static final long STREAM_CREATION_TIMEOUT_VAL = TimeUnit.MINUTES.toMillis(2);
+	private static final long TIMEOUTS_TICK = 250;
+	private static final int TIMEOUTS_WHEEL_SIZE = 1024;
+	private static final long DIRECT_BUFFERS_POOL_SIZE_VAL = 64 * 1024 * 1024;
+	private static final int RING_BUFFER_SIZE_VAL = 64 * 1024;
 
 	//~--- fields ---------------------------------------------------------------
+	private final BufferPool bufferPool = new BufferPool(DIRECT_BUFFERS_POOL_SIZE_VAL);
+	@ConfigField(desc = "Use pooled direct buffers for relaying data", alias = "direct-buffers")
+	private boolean directBuffers = true;
+	@ConfigField(desc = "Maximal size in bytes of direct buffers kept in pool", alias = "direct-buffers-pool-size")
+	private long directBuffersPoolSize = DIRECT_BUFFERS_POOL_SIZE_VAL;
+	@ConfigField(desc = "Time in milliseconds in which client needs to complete SOCKS5 handshake", alias = "handshake-timeout")
+	private long handshakeTimeout = HANDSHAKE_TIMEOUT_VAL;
+	@ConfigField(desc = "Time in milliseconds after which active stream without transfer is closed, 0 - disabled", alias = "idle-timeout")
+	private long idleTimeout = 0;
+	private RelayEngineIfc relayEngine = null;
+	@ConfigField(desc = "Number of buffers used for each direction of stream in direct relay mode", alias = "relay-buffers")
+	private int relayBuffers = 1;
+	@ConfigField(desc = "Percent of relay buffers capacity at which reading is suspended", alias = "relay-high-watermark")
+	private int relayHighWatermark = 100;
+	@ConfigField(desc = "Percent of relay buffers capacity at which suspended reading is resumed", alias = "relay-low-watermark")
+	private int relayLowWatermark = 50;
+	@ConfigField(desc = "Number of relay loops, 0 - one per core", alias = "relay-loops")
+	private int relayLoops = 0;
+	@ConfigField(desc = "Mode of relaying data between connections of stream", alias = "relay-mode")
+	private RelayMode relayMode = RelayMode.direct;
+	@ConfigField(desc = "Size of ring buffer used for each direction of stream", alias = "ring-buffer-size")
+	private int ringBufferSize = RING_BUFFER_SIZE_VAL;
+	@ConfigField(desc = "Time in milliseconds in which stream needs to be activated after handshake", alias = "stream-creation-timeout")
+	private long streamCreationTimeout = STREAM_CREATION_TIMEOUT_VAL;
+	private final TimingWheel timeouts = new TimingWheel("socks5-timeouts", TIMEOUTS_TICK, TIMEOUTS_WHEEL_SIZE);
 	private AtomicLong kbytesTransferred = new AtomicLong(0);
+	private long lastLoadBytes = -1;
+	private long lastLoadTime = 0;
+	private AtomicLong relayedCompleted = new AtomicLong(0);
 	private AtomicLong servicesCompleted = new AtomicLong(0);
-	private ConcurrentHashMap<String, Stream> streams = new ConcurrentHashMap<String, Stream>();
+	private ConcurrentHashMap<StreamKey, Stream> streams = new ConcurrentHashMap<StreamKey, Stream>();
 
 	//~--- methods --------------------------------------------------------------
 
@@ -63,43 +98,116 @@ public abstract class Socks5ConnectionManager
 	 * @param sid
 	 * @param con
 	 */
-	public void registerStream(String sid, Socks5IOService con) {
+	public void registerStream(StreamKey sid, Socks5IOService con) {
 		Stream stream = streams.get(sid);
 
 		if (stream == null) {
-			stream = new Stream(sid, this);
-			streams.put(sid, stream);
+			Stream newStream = new Stream(sid, this);
+			stream = streams.putIfAbsent(sid, newStream);
+			if (stream == null) {
+				stream = newStream;
+				streamRegistered(stream);
+			}
 		}
 		if (log.isLoggable(Level.FINER)) {
 			log.log(Level.FINER, "registered connection = {0} for stream = {1}",
 					new Object[]{con.toString(), stream.toString()});
 		}
 		stream.addConnection(con);
+
+		TimingWheel.Timeout timeout = con.getTimeout();
+		if (timeout != null) {
+			timeouts.schedule(timeout, streamCreationTimeout);
+		}
+	}
+
+	@Override
+	public void start() {
+		bufferPool.setMaxPooledBytes(directBuffersPoolSize);
+		timeouts.start();
+		if (relayEngine == null && (relayMode == RelayMode.event_loop || relayMode == RelayMode.blocking)) {
+			try {
+				RelayEngineIfc relayEngine = relayMode == RelayMode.event_loop
+											 ? new RelayEngine(this, relayLoops)
+											 : new BlockingRelayEngine(this);
+				relayEngine.start();
+				this.relayEngine = relayEngine;
+			} catch (IOException ex) {
+				throw new RuntimeException("Could not start relay engine", ex);
+			}
+		}
+		super.start();
+	}
+
+	@Override
+	public void stop() {
+		super.stop();
+		if (relayEngine != null) {
+			relayEngine.stop();
+			relayEngine = null;
+		}
+		timeouts.stop();
 	}
 
 	@Override
 	public void serviceStarted(Socks5IOService<?> serv) {
 		super.serviceStarted(serv);
 		serv.setConnectionManager(this);
-		addTimerTask(new AuthenticationTimer(serv.getUniqueId()), STREAM_CREATION_TIMEOUT);
+		ConnectionTimeout timeout = new ConnectionTimeout(serv);
+		serv.setTimeout(timeout);
+		timeouts.schedule(timeout, handshakeTimeout);
 	}
 
 	@Override
 	public boolean serviceStopped(Socks5IOService<?> serv) {
+		TimingWheel.Timeout timeout = serv.getTimeout();
+		if (timeout != null) {
+			timeouts.cancel(timeout);
+		}
+
 		long bytesTransferred = serv.getBytesReceived() + serv.getBytesSent();
 
 		this.kbytesTransferred.addAndGet(bytesTransferred / 1024);
+		this.relayedCompleted.addAndGet(serv.getBytesReceived());
 		this.servicesCompleted.incrementAndGet();
 
 		return super.serviceStopped(serv);
 	}
 
+	/**
+	 * Called when stream was activated and data may be relayed between its connections
+	 *
+	 * @param stream
+	 */
+	public void streamActivated(Stream stream) {
+		for (Socks5ConnectionType type : Socks5ConnectionType.values()) {
+			Socks5IOService<?> con = stream.getConnection(type);
+			TimingWheel.Timeout timeout = con != null ? con.getTimeout() : null;
+			if (timeout == null) {
+				continue;
+			}
+			if (idleTimeout > 0) {
+				con.setLastActivity(timeouts.now());
+				timeouts.schedule(timeout, idleTimeout);
+			} else {
+				timeouts.cancel(timeout);
+			}
+		}
+		RelayEngineIfc relayEngine = this.relayEngine;
+		if (relayEngine != null) {
+			relayEngine.attach(stream);
+		}
+	}
+
 	/**
 	 * Process stream after each time data from socket is processed
 	 *
 	 * @param service is a <code>Socks5IOService</code>
 	 */
 	public void socketDataProcessed(Socks5IOService service) {
+		if (idleTimeout > 0) {
+			service.setLastActivity(timeouts.now());
+		}
 	}
 
 	@Override
@@ -115,7 +223,9 @@ public abstract class Socks5ConnectionManager
 	 * @param stream
 	 */
 	public void unregisterStream(Stream stream) {
-		streams.remove(stream.getSID());
+		if (streams.remove(stream.getSID(), stream)) {
+			streamUnregistered(stream);
+		}
 		if (log.isLoggable(Level.FINER)) {
 			log.log(Level.FINER, "unregistered connections for stream = {0}", new Object[]{stream.toString()});
 		}
@@ -142,6 +252,117 @@ public abstract class Socks5ConnectionManager
 			servicesCompleted = 1;
 		}
 		list.add(getName(), "Average transfer size in KB", kbytesTransferred / servicesCompleted, Level.INFO);
+		bufferPool.getStatistics(getName(), list);
+		timeouts.getStatistics(getName(), list);
+		RelayEngineIfc relayEngine = this.relayEngine;
+		if (relayEngine != null) {
+			relayEngine.getStatistics(getName(), list);
+		}
+	}
+
+	/**
+	 * Measures current load of this manager. Bytes per second are calculated from data received since previous
+	 * measurement.
+	 *
+	 * @return
+	 */
+	public synchronized NodeLoad getLoad() {
+		long now = System.currentTimeMillis();
+		long relayed = relayedCompleted.get();
+		long buffered = 0;
+		for (Stream stream : streams.values()) {
+			for (Socks5ConnectionType type : Socks5ConnectionType.values()) {
+				Socks5IOService<?> con = stream.getConnection(type);
+				if (con == null || con.getState() == Socks5IOService.State.Closed) {
+					continue;
+				}
+				relayed += con.getBytesReceived();
+				buffered += con.waitingToSendSize();
+				buffered += con.getRelayBuffered();
+			}
+		}
+
+		long bytesPerSecond = 0;
+		if (lastLoadBytes >= 0 && now > lastLoadTime) {
+			// connections closed between measurements may be counted twice or not at all
+			bytesPerSecond = Math.max(0, (relayed - lastLoadBytes) * 1000 / (now - lastLoadTime));
+		}
+		lastLoadBytes = relayed;
+		lastLoadTime = now;
+
+		return new NodeLoad(streams.size(), bytesPerSecond, buffered, now);
+	}
+
+	/**
+	 * Returns pool of direct buffers shared by connections of this manager
+	 *
+	 * @return
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Returns size of a buffer used to relay data of an active connection
+	 *
+	 * @return
+	 */
+	public int getRelayBufferSize() {
+		return net_buffer;
+	}
+
+	/**
+	 * Returns number of buffers used for each direction of stream in <code>direct</code> relay mode
+	 *
+	 * @return
+	 */
+	public int getRelayBuffers() {
+		return relayBuffers;
+	}
+
+	/**
+	 * Returns percent of relay buffers capacity at which reading is suspended
+	 *
+	 * @return
+	 */
+	public int getRelayHighWatermark() {
+		return relayHighWatermark;
+	}
+
+	/**
+	 * Returns percent of relay buffers capacity at which suspended reading is resumed
+	 *
+	 * @return
+	 */
+	public int getRelayLowWatermark() {
+		return relayLowWatermark;
+	}
+
+	/**
+	 * Returns mode in which data is relayed between connections of stream
+	 *
+	 * @return
+	 */
+	public RelayMode getRelayMode() {
+		return relayMode;
+	}
+
+	/**
+	 * Returns size of ring buffer used for each direction of stream in <code>ring</code> relay mode
+	 *
+	 * @return
+	 */
+	public int getRingBufferSize() {
+		return ringBufferSize;
+	}
+
+	/**
+	 * Check if active connections should relay data using pooled direct buffers
+	 *
+	 * @return
+	 */
+	public boolean isDirectBuffersEnabled() {
+		return directBuffers;
 	}
 
 	/**
@@ -151,7 +372,7 @@ public abstract class Socks5ConnectionManager
 	 *
 	 * @return
 	 */
-	public Stream getStream(String cid) {
+	public Stream getStream(StreamKey cid) {
 		return streams.get(cid);
 	}
 
@@ -162,8 +383,33 @@ public abstract class Socks5ConnectionManager
 	 *
 	 * @return
 	 */
-	public boolean hasStream(String cid) {
-		return streams.contains(cid);
+	public boolean hasStream(StreamKey cid) {
+		return streams.containsKey(cid);
+	}
+
+	/**
+	 * Returns ids of all registered streams
+	 *
+	 * @return
+	 */
+	public Set<StreamKey> getStreamKeys() {
+		return Collections.unmodifiableSet(streams.keySet());
+	}
+
+	/**
+	 * Called when first connection of stream was registered and stream was created
+	 *
+	 * @param stream
+	 */
+	protected void streamRegistered(Stream stream) {
+	}
+
+	/**
+	 * Called when stream was removed from registered streams
+	 *
+	 * @param stream
+	 */
+	protected void streamUnregistered(Stream stream) {
 	}
 
 	@Override
@@ -179,41 +425,69 @@ public abstract class Socks5ConnectionManager
 	//~--- inner classes --------------------------------------------------------
 
 	/**
-	 * Timer task used to close connection if it is not activated within specified time period
+	 * Timeout of connection, scheduled again for each phase of connection: handshake, waiting for activation of
+	 * stream and transfer of data by active stream
 	 */
-	private class AuthenticationTimer
-			extends TimerTask {
+	private class ConnectionTimeout
+			extends TimingWheel.Timeout {
 
-		private final String connId;
+		private final Socks5IOService<?> serv;
 
-		public AuthenticationTimer(String connId) {
-			this.connId = connId;
+		public ConnectionTimeout(Socks5IOService<?> serv) {
+			this.serv = serv;
 		}
 
 		@Override
-		public void run() {
-			Socks5IOService serv = services.get(connId);
-
-			if (serv == null) {
+		protected void expired() {
+			if (!services.containsKey(serv.getUniqueId())) {
 				return;
 			}
 			try {
-				if (serv.getState() != Socks5IOService.State.Active) {
-					if (log.isLoggable(Level.FINER)) {
-						log.log(Level.FINER, "closing Socks5 connection not in active state with id  = {0}",
-								serv.getUniqueId());
-					}
-					services.remove(serv.getUniqueId());
-					if (serv.isConnected()) {
-						serv.stop();
-					}
+				switch (serv.getState()) {
+					case Active:
+						checkIdle();
+						break;
+					case Closed:
+						break;
+					default:
+						if (log.isLoggable(Level.FINER)) {
+							log.log(Level.FINER, "closing Socks5 connection not in active state with id  = {0}",
+									serv.getUniqueId());
+						}
+						services.remove(serv.getUniqueId());
+						if (serv.isConnected()) {
+							serv.stop();
+						}
+						break;
 				}
 			} catch (Exception ex) {
-				log.log(Level.FINE, "exception while checking for if service " + serv.getUniqueId() +
-						" timed out before activation", ex);
+				log.log(Level.FINE, "exception while checking for if service " + serv.getUniqueId() + " timed out",
+						ex);
+			}
+		}
+
+		private void checkIdle() {
+			Stream stream = serv.getStream();
+			if (stream == null || idleTimeout <= 0) {
+				return;
 			}
+
+			// stream is idle only if there was no transfer in any direction
+			long lastActivity = serv.getLastActivity();
+			Socks5IOService<?> secondServ = stream.getSecondConnection(serv);
+			if (secondServ != null) {
+				lastActivity = Math.max(lastActivity, secondServ.getLastActivity());
+			}
+			long idle = timeouts.now() - lastActivity;
+			if (idle < idleTimeout) {
+				timeouts.schedule(this, idleTimeout - idle);
+				return;
+			}
+
+			if (log.isLoggable(Level.FINER)) {
+				log.log(Level.FINER, "closing stream {0} idle for {1}ms", new Object[]{stream, idle});
+			}
+			stream.close();
 		}
 	}
 }
-
-//~ Formatted in Tigase Code Convention on 13/10/15
@@ -0,0 +1,231 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Resumable parser of SOCKS5 greeting and CONNECT command sent by clients of the proxy.
+ * <br>
+ * Data is consumed directly from the buffer passed to {@link #parse(ByteBuffer)}, one call for each read from the
+ * socket, and parsing continues from the same place on the next call, so fragmented and pipelined requests are
+ * handled without copying data or catching <code>BufferUnderflowException</code>. DST.ADDR is stored in the frame
+ * used for reply to the command and decoded from it directly to {@link StreamKey}.
+ *
+ * @author andrzej
+ */
+public class Socks5Handshake {
+
+	/**
+	 * Result of parsing of received data
+	 */
+	public static enum Result {
+		/** More data is needed to complete current step */
+		NeedMore,
+		/** Greeting was received and reply from {@link #getWelcomeReply()} should be sent */
+		Welcome,
+		/** Command was received and reply from {@link #getCommandReply()} should be sent */
+		Command,
+		/** Received data is not valid, reason is available from {@link #getError()} */
+		Failed
+	}
+
+	private static enum Step {
+		Version,
+		MethodsCount,
+		Methods,
+		CommandVersion,
+		Command,
+		Reserved,
+		AddressType,
+		AddressLength,
+		Address,
+		PortHigh,
+		PortLow,
+		Done,
+		Failed
+	}
+
+	private static final byte ATYP_DOMAIN = 0x03;
+	private static final byte CMD_CONNECT = 0x01;
+	private static final int DST_ADDR_OFFSET = 5;
+	private static final byte METHOD_NO_AUTH = 0x00;
+	private static final byte VERSION = 0x05;
+
+	// reply to command has the same layout as command, so DST.ADDR is read directly to it
+	private final byte[] frame = new byte[DST_ADDR_OFFSET + 255 + 2];
+	private final ByteBuffer commandReply = ByteBuffer.wrap(frame);
+	private final ByteBuffer welcomeReply = ByteBuffer.wrap(new byte[]{VERSION, METHOD_NO_AUTH});
+	private int addrLen = 0;
+	private int addrRead = 0;
+	private String error = null;
+	private int methodsLeft = 0;
+	private boolean noAuthOffered = false;
+	private Step step = Step.Version;
+	private StreamKey streamKey = null;
+
+	/**
+	 * Parses data available in buffer. Parsing stops after the greeting or the command is completed, leaving data
+	 * sent after them in the buffer, so method should be called again if it returned {@link Result#Welcome} and buffer
+	 * has remaining data.
+	 *
+	 * @param in
+	 *
+	 * @return
+	 */
+	public Result parse(ByteBuffer in) {
+		while (in.hasRemaining()) {
+			switch (step) {
+				case Version:
+					if (in.get() != VERSION) {
+						return fail("unsupported protocol");
+					}
+					step = Step.MethodsCount;
+					break;
+				case MethodsCount:
+					methodsLeft = in.get() & 0xFF;
+					if (methodsLeft == 0) {
+						return fail("no authentication methods offered");
+					}
+					step = Step.Methods;
+					break;
+				case Methods:
+					if (in.get() == METHOD_NO_AUTH) {
+						noAuthOffered = true;
+					}
+					if (--methodsLeft == 0) {
+						if (!noAuthOffered) {
+							return fail("no acceptable authentication method offered");
+						}
+						step = Step.CommandVersion;
+						welcomeReply.clear();
+						return Result.Welcome;
+					}
+					break;
+				case CommandVersion:
+					if (in.get() != VERSION) {
+						return fail("bad protocol version");
+					}
+					step = Step.Command;
+					break;
+				case Command:
+					if (in.get() != CMD_CONNECT) {
+						return fail("unsupported command");
+					}
+					step = Step.Reserved;
+					break;
+				case Reserved:
+					in.get();
+					step = Step.AddressType;
+					break;
+				case AddressType:
+					if (in.get() != ATYP_DOMAIN) {
+						return fail("unsupported address type");
+					}
+					step = Step.AddressLength;
+					break;
+				case AddressLength:
+					addrLen = in.get() & 0xFF;
+					addrRead = 0;
+					step = addrLen == 0 ? Step.PortHigh : Step.Address;
+					break;
+				case Address:
+					int len = Math.min(in.remaining(), addrLen - addrRead);
+					in.get(frame, DST_ADDR_OFFSET + addrRead, len);
+					addrRead += len;
+					if (addrRead == addrLen) {
+						step = Step.PortHigh;
+					}
+					break;
+				case PortHigh:
+					in.get();
+					step = Step.PortLow;
+					break;
+				case PortLow:
+					in.get();
+					streamKey = StreamKey.fromHex(frame, DST_ADDR_OFFSET, addrLen);
+					if (streamKey == null) {
+						return fail("invalid stream id");
+					}
+					step = Step.Done;
+					prepareCommandReply();
+					return Result.Command;
+				case Failed:
+					return Result.Failed;
+				default:
+					// nothing more is expected until stream is activated
+					return Result.NeedMore;
+			}
+		}
+		return step == Step.Failed ? Result.Failed : Result.NeedMore;
+	}
+
+	/**
+	 * Returns buffer with reply to greeting
+	 *
+	 * @return
+	 */
+	public ByteBuffer getWelcomeReply() {
+		return welcomeReply;
+	}
+
+	/**
+	 * Returns buffer with reply to command
+	 *
+	 * @return
+	 */
+	public ByteBuffer getCommandReply() {
+		return commandReply;
+	}
+
+	/**
+	 * Returns key of stream decoded from DST.ADDR received in command
+	 *
+	 * @return
+	 */
+	public StreamKey getStreamKey() {
+		return streamKey;
+	}
+
+	/**
+	 * Returns reason of failure of the handshake
+	 *
+	 * @return
+	 */
+	public String getError() {
+		return error;
+	}
+
+	private Result fail(String error) {
+		this.error = error;
+		this.step = Step.Failed;
+		return Result.Failed;
+	}
+
+	private void prepareCommandReply() {
+		frame[0] = VERSION;
+		frame[1] = 0x00;
+		frame[2] = 0x00;
+		frame[3] = ATYP_DOMAIN;
+		frame[4] = (byte) addrLen;
+		frame[DST_ADDR_OFFSET + addrLen] = 0x00;
+		frame[DST_ADDR_OFFSET + addrLen + 1] = 0x00;
+		commandReply.clear();
+		commandReply.limit(DST_ADDR_OFFSET + addrLen + 2);
+	}
+}
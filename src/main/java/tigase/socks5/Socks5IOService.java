@@ -22,9 +22,11 @@ import tigase.net.SocketThread;
 import tigase.xmpp.jid.JID;
 
 import java.io.IOException;
-import java.net.ProtocolException;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -50,13 +52,32 @@ public class Socks5IOService<RefObject>
 	protected final ReentrantLock transferInProgress = new ReentrantLock();
 
 	;
+	private final AtomicBoolean accountingPending = new AtomicBoolean(false);
+	private final AtomicBoolean bufferReleased = new AtomicBoolean(false);
+	// buffers with data received from bridge which are queued for writing, guarded by transferInProgress
+	private final ArrayDeque<ByteBuffer> bridgedBuffers = new ArrayDeque<>();
+	private final Socks5Handshake handshake = new Socks5Handshake();
+	// released when SocketThread returned this service for the last time and will not register it again
+	private final CountDownLatch released = new CountDownLatch(1);
+	private final AtomicBoolean stopReported = new AtomicBoolean(false);
 	private ByteBuffer buf = null;
 	private int bytesReceived = 0;
 	private int bytesSent = 0;
 	private Socks5ConnectionType connectionType;
+	// connection is handled by relay engine and is detached from SocketThread
+	private volatile boolean detached = false;
 	private Socks5ConnectionManager manager;
+	private volatile ByteBuffer relayBuffer = null;
+	private volatile RelayBuffers relayBuffers = null;
+	private volatile RingBuffer ring = null;
+	// set while ring of other connection is written, so it has a single consumer even if stream is closed by
+	// other thread while SocketThread is writing
+	private final AtomicBoolean ringConsuming = new AtomicBoolean(false);
+	private RelayWatermarks ringWatermarks = null;
+	private volatile long lastActivity = 0;
 	private State state = State.Welcome;
 	private Stream stream;
+	private volatile TimingWheel.Timeout timeout = null;
 
 	/**
 	 * Activate service
@@ -64,10 +85,115 @@ public class Socks5IOService<RefObject>
 	 * @return
 	 */
 	public boolean activate() {
+		// connection of stream bridged to other node relays data using a single buffer
+		boolean bridged = stream != null && stream.isBridged();
+		if (bridged) {
+			if (manager != null && manager.isDirectBuffersEnabled() && relayBuffer == null) {
+				ByteBuffer relayBuffer = manager.getBufferPool().acquire(manager.getRelayBufferSize());
+				this.buf = relayBuffer;
+				this.relayBuffer = relayBuffer;
+			}
+		} else if (manager != null &&
+				(manager.getRelayMode() == RelayMode.event_loop || manager.getRelayMode() == RelayMode.blocking)) {
+			detached = true;
+		} else if (manager != null && manager.getRelayMode() == RelayMode.ring) {
+			if (ring == null) {
+				RingBuffer ring = new RingBuffer(manager.getBufferPool().acquire(manager.getRingBufferSize()));
+				ringWatermarks = new RelayWatermarks(ring.capacity(), manager.getRelayHighWatermark(),
+													 manager.getRelayLowWatermark());
+				this.ring = ring;
+			}
+		} else if (manager != null && manager.isDirectBuffersEnabled() && manager.getRelayBuffers() > 1) {
+			if (relayBuffers == null) {
+				ByteBuffer[] buffers = new ByteBuffer[manager.getRelayBuffers()];
+				for (int i = 0; i < buffers.length; i++) {
+					buffers[i] = manager.getBufferPool().acquire(manager.getRelayBufferSize());
+				}
+				relayBuffers = new RelayBuffers(buffers, manager.getRelayHighWatermark(),
+												manager.getRelayLowWatermark());
+			}
+		} else if (manager != null && manager.isDirectBuffersEnabled() && relayBuffer == null) {
+			ByteBuffer relayBuffer = manager.getBufferPool().acquire(manager.getRelayBufferSize());
+			this.buf = relayBuffer;
+			this.relayBuffer = relayBuffer;
+		}
 		this.state = State.Active;
 		return true;
 	}
 
+	/**
+	 * Returns direct buffer used to relay data to the other connection of stream to the pool. Should be called only
+	 * when none of connections of stream is using this buffer.
+	 */
+	public void releaseRelayBuffer() {
+		if (manager == null || !bufferReleased.compareAndSet(false, true)) {
+			return;
+		}
+		ByteBuffer relayBuffer = this.relayBuffer;
+		if (relayBuffer != null) {
+			manager.getBufferPool().release(relayBuffer);
+		}
+		RelayBuffers relayBuffers = this.relayBuffers;
+		if (relayBuffers != null) {
+			for (ByteBuffer buf : relayBuffers.getBuffers()) {
+				manager.getBufferPool().release(buf);
+			}
+		}
+		RingBuffer ring = this.ring;
+		if (ring != null) {
+			manager.getBufferPool().release(ring.getStorage());
+		}
+		transferInProgress.lock();
+		try {
+			ByteBuffer bridged;
+			while ((bridged = bridgedBuffers.poll()) != null) {
+				manager.getBufferPool().release(bridged);
+			}
+		} finally {
+			transferInProgress.unlock();
+		}
+	}
+
+	/**
+	 * Returns buffers used by this service to relay data in <code>direct</code> mode if more than one buffer is used
+	 *
+	 * @return
+	 */
+	public RelayBuffers getRelayBuffers() {
+		return relayBuffers;
+	}
+
+	/**
+	 * Returns number of bytes read by this service to relay buffers and not written yet by other connection of stream
+	 *
+	 * @return
+	 */
+	public int getRelayBuffered() {
+		RelayBuffers relayBuffers = this.relayBuffers;
+		if (relayBuffers == null) {
+			return 0;
+		}
+		Socks5IOService secondServ = stream != null ? stream.getSecondConnection(this) : null;
+		if (secondServ == null) {
+			return relayBuffers.buffered();
+		}
+		secondServ.transferInProgress.lock();
+		try {
+			return relayBuffers.buffered();
+		} finally {
+			secondServ.transferInProgress.unlock();
+		}
+	}
+
+	/**
+	 * Returns ring buffer with data read by this service and waiting to be written by other connection of stream
+	 *
+	 * @return
+	 */
+	public RingBuffer getRing() {
+		return ring;
+	}
+
 	/**
 	 * Set ConnectionManager
 	 *
@@ -86,6 +212,51 @@ public class Socks5IOService<RefObject>
 		this.stream = stream;
 	}
 
+	/**
+	 * Returns stream assigned with this service
+	 *
+	 * @return
+	 */
+	public Stream getStream() {
+		return stream;
+	}
+
+	/**
+	 * Returns timeout of this service, scheduled again by connection manager for each phase of connection
+	 *
+	 * @return
+	 */
+	public TimingWheel.Timeout getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Set timeout of this service
+	 *
+	 * @param timeout
+	 */
+	public void setTimeout(TimingWheel.Timeout timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Returns time of last transfer of data read by this service
+	 *
+	 * @return
+	 */
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	/**
+	 * Set time of last transfer of data read by this service
+	 *
+	 * @param lastActivity
+	 */
+	public void setLastActivity(long lastActivity) {
+		this.lastActivity = lastActivity;
+	}
+
 	/**
 	 * Returns jid of client connected by this service
 	 *
@@ -135,6 +306,15 @@ public class Socks5IOService<RefObject>
 		return bytesReceived;
 	}
 
+	/**
+	 * Add bytes received from socket by relay engine handling this service
+	 *
+	 * @param bytes
+	 */
+	public void addBytesReceived(int bytes) {
+		bytesReceived += bytes;
+	}
+
 	/**
 	 * Get all bytes sent by this service
 	 *
@@ -144,6 +324,56 @@ public class Socks5IOService<RefObject>
 		return bytesSent;
 	}
 
+	/**
+	 * Add bytes sent to socket by relay engine handling this service
+	 *
+	 * @param bytes
+	 */
+	public void addBytesSent(int bytes) {
+		bytesSent += bytes;
+	}
+
+	/**
+	 * Marks that transfer of this service waits to be verified
+	 *
+	 * @return false if transfer was already waiting to be verified
+	 */
+	public boolean markAccountingPending() {
+		return accountingPending.compareAndSet(false, true);
+	}
+
+	/**
+	 * Clears mark set when transfer of this service was waiting to be verified
+	 */
+	public void clearAccountingPending() {
+		accountingPending.set(false);
+	}
+
+	/**
+	 * Check if service is handled by relay engine instead of <code>SocketThread</code>
+	 *
+	 * @return
+	 */
+	public boolean isDetached() {
+		return detached;
+	}
+
+	/**
+	 * Waits until <code>SocketThread</code> processed this service for the last time and will not register it
+	 * again. Key of the service is cancelled by <code>SocketThread</code> before the service is processed, so after
+	 * that its channel may be switched to blocking mode.
+	 *
+	 * @param timeout
+	 * @param unit
+	 *
+	 * @return <code>true</code> if service was released before timeout
+	 *
+	 * @throws InterruptedException
+	 */
+	public boolean awaitReleased(long timeout, TimeUnit unit) throws InterruptedException {
+		return released.await(timeout, unit);
+	}
+
 	@Override
 	public void processWaitingPackets() throws IOException {
 		// No packets received from sockets so no need to process
@@ -154,13 +384,69 @@ public class Socks5IOService<RefObject>
 		// we need to read data from socket only if buffer is empty
 		// to prevent OutOfMemory if we read data faster than we can
 		// send it
+		if (detached) {
+			return false;
+		}
+		RingBuffer ring = this.ring;
+		if (ring != null) {
+			return ring.free() > 0 && ringWatermarks.isReadAllowed(ring::size);
+		}
+		RelayBuffers relayBuffers = this.relayBuffers;
+		if (relayBuffers != null) {
+			// buffers in flight are written by other connection while it holds its lock
+			Socks5IOService secondServ = stream != null ? stream.getSecondConnection(this) : null;
+			if (secondServ == null) {
+				return relayBuffers.isReadAllowed();
+			}
+			secondServ.transferInProgress.lock();
+			try {
+				return relayBuffers.isReadAllowed();
+			} finally {
+				secondServ.transferInProgress.unlock();
+			}
+		}
+		// data of bridged stream is read only if other node granted credit for sending it
+		RelayBridge.Link bridgeLink = stream != null ? stream.getBridgeLink() : null;
+		if (bridgeLink != null && !bridgeLink.isWritable()) {
+			return false;
+		}
+		ByteBuffer relayBuffer = this.relayBuffer;
+		if (relayBuffer != null) {
+			return relayBuffer.position() == 0;
+		}
 		return super.isInputBufferEmpty();
 	}
 
+	@Override
+	public boolean waitingToSend() {
+		RingBuffer ring = getSecondRing();
+		return super.waitingToSend() || (ring != null && !ring.isEmpty());
+	}
+
+	@Override
+	public int waitingToSendSize() {
+		RingBuffer ring = getSecondRing();
+		return super.waitingToSendSize() + (ring != null ? ring.size() : 0);
+	}
+
 	@Override
 	public IOService<?> call() throws IOException {
+		if (detached) {
+			// returning null prevents SocketThread from registering this
+			// service again, as it is now handled by relay engine
+			released.countDown();
+			return null;
+		}
+
 		IOService<?> serv = super.call();
 
+		if (state == State.Ready && manager.getRelayMode() == RelayMode.blocking && !super.waitingToSend()) {
+			// channel must be deregistered from selector of SocketThread before
+			// blocking relay engine will be able to switch it to blocking mode
+			released.countDown();
+			return null;
+		}
+
 		if (!this.waitingToSend() && stream != null) {
 			// we need to add other service if we sent all data from buffer
 			Socks5IOService secondServ = stream.getSecondConnection(this);
@@ -187,6 +473,23 @@ public class Socks5IOService<RefObject>
 		transferInProgress.unlock();
 	}
 
+	/**
+	 * Queues data received from other node of cluster for stream bridged to that node. Buffer is taken from pool and
+	 * is returned to it when all of its data is written, which grants other node credit for sending more data.
+	 *
+	 * @param data
+	 */
+	public void writeBridgedBytes(ByteBuffer data) {
+		transferInProgress.lock();
+		try {
+			bridgedBuffers.add(data);
+			writeBytes(data);
+			releaseBridgedBuffers();
+		} finally {
+			transferInProgress.unlock();
+		}
+	}
+
 	@Override
 	public void forceStop() {
 		if (state != State.Closed) {
@@ -207,6 +510,16 @@ public class Socks5IOService<RefObject>
 //                }
 
 		super.forceStop();
+
+		// relay buffer may be still used by other connection to write data,
+		// so it is released only after all connections of stream are stopped
+		if (stream != null) {
+			if (stopReported.compareAndSet(false, true)) {
+				stream.connectionStopped(this);
+			}
+		} else {
+			releaseRelayBuffer();
+		}
 	}
 
 	/**
@@ -229,6 +542,21 @@ public class Socks5IOService<RefObject>
 
 	@Override
 	protected ByteBuffer readBytes() throws IOException {
+		RelayBuffers relayBuffers = this.relayBuffers;
+		if (relayBuffers != null && state == State.Active) {
+			ByteBuffer relayBuffer = relayBuffers.next();
+			if (relayBuffer == null) {
+				return null;
+			}
+			this.buf = relayBuffer;
+			return readRelayBytes(relayBuffer);
+		}
+
+		ByteBuffer relayBuffer = this.relayBuffer;
+		if (relayBuffer != null && state == State.Active) {
+			return readRelayBytes(relayBuffer);
+		}
+
 		ByteBuffer buf = super.readBytes();
 
 		if (buf != null) {
@@ -241,15 +569,41 @@ public class Socks5IOService<RefObject>
 
 	@Override
 	protected void writeData(String data) {
+		Socks5IOService secondServ = (stream != null) ? stream.getSecondConnection(this) : null;
+		RingBuffer ring = secondServ != null ? secondServ.ring : null;
+		if (ring != null) {
+			// ring buffers are not guarded by locks, only one thread at a time
+			// may consume ring filled by other connection of stream
+			if (data == null && !super.waitingToSend() && ringConsuming.compareAndSet(false, true)) {
+				try {
+					writeRingBytes(ring);
+				} finally {
+					ringConsuming.set(false);
+				}
+				if (secondServ.ringWatermarks.isResumable(ring.size())) {
+					SocketThread.addSocketService(secondServ);
+				}
+			}
+			super.writeData(data);
+			return;
+		}
+
 		transferInProgress.lock();
 //                int remaining = waitingToSendSize();
-		Socks5IOService secondServ = (stream != null) ? stream.getSecondConnection(this) : null;
-		if (secondServ != null && secondServ.buf.remaining() != secondServ.buf.limit()) {
+		RelayBuffers relayBuffers = secondServ != null ? secondServ.relayBuffers : null;
+		if (relayBuffers != null) {
+			// buffers of other connection are already prepared for writing
+			super.writeData(data);
+			if (relayBuffers.isResumable()) {
+				SocketThread.addSocketService(secondServ);
+			}
+		} else if (secondServ != null && secondServ.buf.remaining() != secondServ.buf.limit()) {
 			secondServ.buf.flip();
 			super.writeData(data);
 			secondServ.buf.compact();
 		} else {
 			super.writeData(data);
+			releaseBridgedBuffers();
 		}
 //                log.log(Level.FINEST, "{0} written data: {1}, remaining: {2}", new Object[] { this, remaining - waitingToSendSize(), waitingToSendSize() });
 		transferInProgress.unlock();
@@ -264,7 +618,7 @@ public class Socks5IOService<RefObject>
 	protected void processSocketData() throws IOException {
 		// Ignore data on socket until it is in Active state - fixes
 		// problems with discovering proxy by Gajim.
-		if (state == State.Ready) {
+		if (state == State.Ready || detached) {
 			return;
 		}
 
@@ -276,6 +630,13 @@ public class Socks5IOService<RefObject>
 			return;
 		}
 
+		RingBuffer ring = this.ring;
+		if (ring != null && state == State.Active) {
+			readRingBytes(ring);
+			manager.socketDataProcessed(this);
+			return;
+		}
+
 		Socks5IOService secondServ = stream != null ? stream.getSecondConnection(this) : null;
 		if (secondServ != null) {
 			secondServ.transferInProgress.lock();
@@ -295,27 +656,9 @@ public class Socks5IOService<RefObject>
 			// if we are not in Active state we need to handle
 			// using Socks5 protocol
 			if (state != State.Active) {
-				ByteBuffer buf = ByteBuffer.allocate(buffer.remaining());
-				buf.put(buffer);
-				buf.flip();
-
-				try {
-					switch (state) {
-						case Welcome:
-							handleWelcome(buf);
-							break;
-						case Auth:
-							handleCommand(buf);
-							break;
-
-						default:
-							break;
-					}
-
-					buffer.clear();
-				} catch (BufferUnderflowException ex) {
-					buffer.compact();
-				}
+				// parser keeps its state between reads, so all received data is consumed
+				handleHandshake(buffer);
+				buffer.clear();
 				return;
 			}
 
@@ -381,95 +724,140 @@ public class Socks5IOService<RefObject>
 //                }
 	}
 
-	@Override
-	protected int receivedPackets() {
-		// return 0 as we do not receive packet to process
-		return 0;
+	/**
+	 * Returns to pool buffers received from bridge which data was written and acknowledges it to other node. Needs to
+	 * be called while holding <code>transferInProgress</code> lock.
+	 */
+	private void releaseBridgedBuffers() {
+		int written = 0;
+		ByteBuffer bridged;
+		while ((bridged = bridgedBuffers.peek()) != null && !bridged.hasRemaining()) {
+			bridgedBuffers.poll();
+			written += bridged.limit();
+			manager.getBufferPool().release(bridged);
+		}
+		RelayBridge.Link bridgeLink = stream != null ? stream.getBridgeLink() : null;
+		if (written > 0 && bridgeLink != null) {
+			bridgeLink.acknowledge(written);
+		}
 	}
 
 	/**
-	 * Handle Socks5 protocol WELCOME
+	 * Reads data from socket directly to the direct relay buffer, bypassing heap input buffer of
+	 * <code>IOService</code>.
 	 *
-	 * @param buf
+	 * @param relayBuffer
 	 *
-	 * @throws IOException
+	 * @return buffer ready to be read or null if no data was read
 	 */
-	private void handleWelcome(ByteBuffer buf) throws IOException {
-		byte ver = buf.get();
-		if (ver != 0x05) {
-			if (log.isLoggable(Level.FINE)) {
-				log.log(Level.FINE, "stopping service {0} after detecting unsupported protocol", toString());
+	private ByteBuffer readRelayBytes(ByteBuffer relayBuffer) {
+		try {
+			int read = getSocketChannel().read(relayBuffer);
+			if (read < 0) {
+				forceStop();
+				return null;
+			}
+			if (read == 0) {
+				return null;
+			}
+			bytesReceived += read;
+			relayBuffer.flip();
+			return relayBuffer;
+		} catch (IOException ex) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "stopping service after exception " + ex.getMessage(), ex);
 			}
 			forceStop();
-			return;
+			return null;
 		}
+	}
 
-		int count = (int) buf.get();
-		boolean ok = false;
-		for (int i = 0; i < count; i++) {
-			if (buf.get() == 0x00) {
-				ok = true;
-				break;
+	/**
+	 * Reads data from socket to ring buffer and schedules other connection of stream to write it.
+	 *
+	 * @param ring
+	 */
+	private void readRingBytes(RingBuffer ring) {
+		try {
+			int read = ring.readFrom(getSocketChannel());
+			if (read < 0) {
+				forceStop();
+				return;
 			}
-		}
-
-		buf.clear();
-		state = State.Auth;
-
-		if (ok) {
-			writeBytes(ByteBuffer.wrap(new byte[]{ver, 0x00}));
-		} else {
+			if (read > 0) {
+				bytesReceived += read;
+				Socks5IOService secondServ = stream != null ? stream.getSecondConnection(this) : null;
+				if (secondServ != null) {
+					SocketThread.addSocketService(secondServ);
+				}
+			}
+		} catch (IOException ex) {
 			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "stopping service {0} after failure during WELCOME step", toString());
+				log.log(Level.FINEST, "stopping service after exception " + ex.getMessage(), ex);
 			}
 			forceStop();
 		}
 	}
 
 	/**
-	 * Handle Socks5 protocol command
+	 * Writes data from ring buffer filled by other connection of stream to socket.
 	 *
-	 * @param buf
-	 *
-	 * @throws IOException
+	 * @param ring
 	 */
-	private void handleCommand(ByteBuffer in) throws IOException {
-		byte ver = in.get();
-		if (ver != 0x05) {
-			throw new ProtocolException("Bad protocol version");
-		}
-
-		byte cmd = in.get();
-		in.get();
-		byte atype = in.get();
-		if (ver == 0x05 && cmd == 0x01 && atype == 0x03) {
-			byte len = in.get();
-			byte[] data = new byte[len];
-			in.get(data);
-			in.clear();
-			ByteBuffer tmp = ByteBuffer.allocate(len + 7);
-			tmp.put(ver);
-			tmp.put((byte) 0x00);
-			tmp.put((byte) 0x00);
-			tmp.put(atype);
-			tmp.put(len);
-			tmp.put(data);
-			tmp.put((byte) 0x00);
-			tmp.put((byte) 0x00);
-			tmp.flip();
-
-			manager.registerStream(new String(data), this);
-			state = State.Ready;
-
-			writeBytes(tmp);
-		} else {
+	private void writeRingBytes(RingBuffer ring) {
+		try {
+			bytesSent += ring.writeTo(getSocketChannel());
+		} catch (IOException ex) {
 			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST,
-						"stopping service {0} after failure during AUTHENTICATION step, version = {1}, cmd = {2}, atype = {3}",
-						new Object[]{toString(), ver, cmd, atype});
+				log.log(Level.FINEST, "stopping service after exception " + ex.getMessage(), ex);
 			}
 			forceStop();
 		}
+	}
 
+	private RingBuffer getSecondRing() {
+		Stream stream = this.stream;
+		if (stream == null) {
+			return null;
+		}
+		Socks5IOService secondServ = stream.getSecondConnection(this);
+		return secondServ != null ? secondServ.ring : null;
+	}
+
+	@Override
+	protected int receivedPackets() {
+		// return 0 as we do not receive packet to process
+		return 0;
+	}
+
+	/**
+	 * Handle Socks5 protocol WELCOME and command
+	 *
+	 * @param in
+	 */
+	private void handleHandshake(ByteBuffer in) {
+		while (state == State.Welcome || state == State.Auth) {
+			switch (handshake.parse(in)) {
+				case Welcome:
+					state = State.Auth;
+					writeBytes(handshake.getWelcomeReply());
+					break;
+				case Command:
+					manager.registerStream(handshake.getStreamKey(), this);
+					state = State.Ready;
+					writeBytes(handshake.getCommandReply());
+					return;
+				case Failed:
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "stopping service {0} after failure during {1} step: {2}",
+								new Object[]{toString(), state == State.Welcome ? "WELCOME" : "AUTHENTICATION",
+											 handshake.getError()});
+					}
+					forceStop();
+					return;
+				default:
+					return;
+			}
+		}
 	}
 }
@@ -31,12 +31,14 @@ import tigase.kernel.beans.config.ConfigField;
 import tigase.kernel.beans.selector.ConfigType;
 import tigase.kernel.beans.selector.ConfigTypeEnum;
 import tigase.kernel.core.Kernel;
+import tigase.net.SocketThread;
+import tigase.server.Command;
 import tigase.server.Iq;
 import tigase.server.Message;
 import tigase.server.Packet;
 import tigase.server.Priority;
 import tigase.socks5.repository.Socks5Repository;
-import tigase.util.Algorithms;
+import tigase.stats.StatisticsList;
 import tigase.util.dns.DNSEntry;
 import tigase.util.dns.DNSResolverFactory;
 import tigase.util.stringprep.TigaseStringprepException;
@@ -44,12 +46,25 @@ import tigase.xml.Element;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.PacketErrorTypeException;
 import tigase.xmpp.StanzaType;
+import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -66,19 +81,99 @@ public class Socks5ProxyComponent
 		implements ClusteredComponentIfc, Initializable {
 
 	private static final String[] IQ_QUERY_ACTIVATE_PATH = {"iq", "query", "activate"};
+	private static final String LIMITS_INVALIDATE_CMD = "socks5-limits-invalidate";
+	private static final String LIMITS_INVALIDATE_JID_KEY = "jid";
+	private static final String LIMITS_INVALIDATE_NODE = "invalidate-transfer-limits";
 	private static final Logger log = Logger.getLogger(Socks5ProxyComponent.class.getCanonicalName());
+	private static final String NODE_ADDRESSES_KEY = "addresses";
+	private static final String NODE_BRIDGE_KEY = "bridge";
+	private static final String NODE_LOAD_BUFFERED_KEY = "buffered";
+	private static final String NODE_LOAD_CMD = "socks5-node-load";
+	private static final String NODE_LOAD_RATE_KEY = "rate";
+	private static final String NODE_LOAD_STREAMS_KEY = "streams";
+	private static final String NODE_PORTS_KEY = "ports";
+	private static final String NODE_STREAMHOSTS_CMD = "socks5-node-streamhosts";
 	private static final String PACKET_FORWARD_CMD = "socks5-packet-forward";
 	private static final String[] QUERY_ACTIVATE_PATH = {"query", "activate"};
+	private static final String STREAM_DIRECTORY_ADDED_KEY = "added";
+	private static final String STREAM_DIRECTORY_CMD = "socks5-stream-directory";
+	private static final String STREAM_DIRECTORY_REMOVED_KEY = "removed";
+	private static final ThreadLocal<MessageDigest> SHA1_DIGEST = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			log.warning(e.getMessage());
+			return null;
+		}
+	});
 	private static final String XMLNS_BYTESTREAMS = "http://jabber.org/protocol/bytestreams";
 
 	//~--- fields ---------------------------------------------------------------
-	private final List<JID> cluster_nodes = new LinkedList<JID>();
+	private final List<JID> cluster_nodes = new CopyOnWriteArrayList<JID>();
+	@ConfigField(desc = "Number of threads verifying transfer of connections, 0 - verify on network threads", alias = "accounting-threads")
+	private int accountingThreads = 2;
+	// single thread executors, so transfer of a stream is verified in order
+	private ExecutorService[] accountingExecutors = null;
+	@ConfigField(desc = "Address on which bridge accepts connections from other nodes, null - address of name of cluster node", alias = "bridge-address")
+	private String bridgeAddress = null;
+	@ConfigField(desc = "Number of bridge connections to each other node of cluster", alias = "bridge-connections")
+	private int bridgeConnections = 2;
+	@ConfigField(desc = "Relay data of streams which connections were made to different nodes of cluster", alias = "bridge-enabled")
+	private boolean bridgeEnabled = false;
+	@ConfigField(desc = "Port on which bridge accepts connections from other nodes, 0 - ephemeral port", alias = "bridge-port")
+	private int bridgePort = 0;
+	@ConfigField(desc = "Secret shared by nodes of cluster used to authenticate bridge connections", alias = "bridge-secret")
+	private String bridgeSecret = null;
+	@ConfigField(desc = "Time in milliseconds for connecting and authenticating bridge connection and opening bridged stream", alias = "bridge-timeout")
+	private long bridgeTimeout = 5000;
+	@ConfigField(desc = "Bytes of bridged stream which may be sent before other node confirms they were written", alias = "bridge-window")
+	private int bridgeWindow = 256 * 1024;
 	private ClusterControllerIfc clusterController = null;
+	private long lastLoadReport = 0;
+	@ConfigField(desc = "Interval in milliseconds of exchanging loads of nodes, 0 - disabled", alias = "load-report-interval")
+	private long loadReportInterval = 5000;
+	private volatile NodeLoad localLoad = null;
+	// loads reported by other nodes of cluster
+	private final ConcurrentHashMap<JID, NodeLoad> nodeLoads = new ConcurrentHashMap<>();
+	private NodeLoadListener nodeLoadCmd = new NodeLoadListener();
+	// streamhosts advertised by other nodes of cluster
+	private final ConcurrentHashMap<JID, NodeStreamhosts> nodeStreamhosts = new ConcurrentHashMap<>();
+	private NodeStreamhostsListener nodeStreamhostsCmd = new NodeStreamhostsListener();
+	private LimitsInvalidateListener limitsInvalidateCmd = new LimitsInvalidateListener();
+	@ConfigField(desc = "Buffered bytes at which node is overloaded, 0 - no limit", alias = "overload-buffered-bytes")
+	private long overloadBufferedBytes = 0;
+	@ConfigField(desc = "Bytes per second at which node is overloaded, 0 - no limit", alias = "overload-bytes-per-second")
+	private long overloadBytesPerSecond = 0;
+	@ConfigField(desc = "Percent of limits below which overloaded node is advertised again", alias = "overload-recovery-percent")
+	private int overloadRecoveryPercent = 80;
+	@ConfigField(desc = "Open streams at which node is overloaded, 0 - no limit", alias = "overload-streams")
+	private int overloadStreams = 0;
+	private final Set<JID> overloadedNodes = ConcurrentHashMap.newKeySet();
 	private PacketForward packetForwardCmd = new PacketForward();
+	private volatile ConsistentHashRing<JID> placementRing = null;
+	private volatile RelayBridge relayBridge = null;
+	private String[] streamhostCacheAddresses = null;
+	private volatile StreamhostCache streamhostCache = null;
+	@ConfigField(desc = "Maximal time in milliseconds for which resolved streamhosts are cached, 0 - disabled", alias = "streamhost-cache-ttl")
+	private long streamhostCacheTtl = 300000;
 	@ConfigField(desc = "Remote IP addresses", alias = "remote-addresses")
 	private String[] remoteAddresses = null;
 	@Inject
 	private Socks5Repository socks5_repo = null;
+	// node holding stream for streams registered on other nodes of cluster
+	private final ConcurrentHashMap<StreamKey, JID> streamDirectory = new ConcurrentHashMap<>();
+	// streams registered and unregistered on this node since last update of stream directory was sent
+	private Set<StreamKey> streamDirectoryAdded = new HashSet<>();
+	private StreamDirectory streamDirectoryCmd = new StreamDirectory();
+	@ConfigField(desc = "Interval in milliseconds of sending batched updates of stream directory, 0 - send each update immediately", alias = "stream-directory-interval")
+	private long streamDirectoryInterval = 1000;
+	private Set<StreamKey> streamDirectoryRemoved = new HashSet<>();
+	private final Object streamDirectoryUpdateLock = new Object();
+	private long lastStreamDirectoryUpdate = 0;
+	@ConfigField(desc = "Placement of streamhosts of node selected for requester", alias = "streamhost-placement")
+	private StreamhostPlacement streamhostPlacement = StreamhostPlacement.first;
+	@ConfigField(desc = "Number of points of each node on placement ring", alias = "streamhost-placement-virtual-nodes")
+	private int streamhostPlacementVirtualNodes = 128;
 	@Inject
 	private VerifierIfc verifier = null;
 
@@ -90,6 +185,20 @@ public class Socks5ProxyComponent
 		super.everyHour();
 	}
 
+	@Override
+	public synchronized void everySecond() {
+		super.everySecond();
+		long now = System.currentTimeMillis();
+		if (loadReportInterval > 0 && now - lastLoadReport >= loadReportInterval) {
+			lastLoadReport = now;
+			publishLoad();
+		}
+		if (now - lastStreamDirectoryUpdate >= streamDirectoryInterval) {
+			lastStreamDirectoryUpdate = now;
+			publishStreamDirectoryUpdates();
+		}
+	}
+
 	/**
 	 * Handle connection of other node of cluster
 	 *
@@ -98,7 +207,14 @@ public class Socks5ProxyComponent
 	@Override
 	public void nodeConnected(String node) {
 		try {
-			cluster_nodes.add(JID.jidInstance(getName() + "@" + node));
+			JID nodeJid = JID.jidInstance(getName() + "@" + node);
+			cluster_nodes.add(nodeJid);
+			// new node needs to know about streams registered before it connected
+			if (!nodeJid.equals(getComponentId())) {
+				publishStreams(STREAM_DIRECTORY_ADDED_KEY, getStreamKeys(), nodeJid);
+				startBridge();
+				publishStreamhosts(nodeJid);
+			}
 		} catch (TigaseStringprepException e) {
 			log.log(Level.WARNING, "TigaseStringprepException occured processing {0}", node);
 		}
@@ -112,7 +228,14 @@ public class Socks5ProxyComponent
 	@Override
 	public void nodeDisconnected(String node) {
 		try {
-			cluster_nodes.remove(JID.jidInstance(getName() + "@" + node));
+			JID nodeJid = JID.jidInstance(getName() + "@" + node);
+			cluster_nodes.remove(nodeJid);
+			streamDirectory.values().removeIf(nodeJid::equals);
+			nodeLoads.remove(nodeJid);
+			overloadedNodes.remove(nodeJid);
+			if (nodeStreamhosts.remove(nodeJid) != null) {
+				rebuildPlacementRing();
+			}
 		} catch (TigaseStringprepException e) {
 			log.log(Level.WARNING, "TigaseStringprepException occured processing {0}", node);
 		}
@@ -136,6 +259,10 @@ public class Socks5ProxyComponent
 				// dropping packet of type error
 				return;
 			}
+			if (packet.isCommand() && LIMITS_INVALIDATE_NODE.equals(packet.getStrCommand())) {
+				processLimitsInvalidateCommand(packet);
+				return;
+			}
 			if (packet.getElement().getChild("query", XMLNS_BYTESTREAMS) != null) {
 				if (log.isLoggable(Level.FINEST)) {
 					log.log(Level.FINEST, "processing bytestream query packet = {0}", packet);
@@ -145,42 +272,35 @@ public class Socks5ProxyComponent
 
 				if (query.getChild("activate") == null) {
 					try {
+						String domain = packet.getStanzaTo().getDomain();
 						String jid = packet.getStanzaTo().getBareJID().toString();
 						String hostname = getComponentId().getDomain();
 
+						if (!isLocalDomainOrComponent(domain)) {
+							// streamhosts are not resolved nor cached for domains not served by component
+							addOutPacket(packet.errorResult("cancel", null, "item-not-found",
+															"Unknown domain of proxy", false));
+							return;
+						}
+
 						// Generate list of streamhosts
 						List<Element> children = new LinkedList<Element>();
+						StreamhostCache streamhostCache = getStreamhostCache();
 
-						if ((remoteAddresses == null) || (remoteAddresses.length == 0)) {
-							DNSEntry[] entries = DNSResolverFactory.getInstance().getHostSRV_Entries(hostname);
-
-							for (DNSEntry entry : entries) {
-								int[] ports = getPorts();
-
-								for (int port : ports) {
-									Element streamhost = new Element("streamhost");
-
-									streamhost.setAttribute("jid", jid);
-									streamhost.setAttribute("host", entry.getIp());
-									streamhost.setAttribute("port", String.valueOf(port));
-									children.add(streamhost);
-								}
-							}
+						if (streamhostCache != null) {
+							children.addAll(streamhostCache.getStreamhosts(domain, jid));
 						} else {
-							for (String addr : remoteAddresses) {
+							for (String addr : getLocalStreamhostAddresses(hostname)) {
 								int[] ports = getPorts();
 
 								for (int port : ports) {
-									Element streamhost = new Element("streamhost");
-
-									streamhost.setAttribute("jid", jid);
-									streamhost.setAttribute("host", addr);
-									streamhost.setAttribute("port", String.valueOf(port));
-									children.add(streamhost);
+									children.add(createStreamhost(jid, addr, port));
 								}
 							}
 						}
 
+						placeStreamhosts(packet, jid, children);
+
 						// Collections.reverse(children);
 						query.addChildren(children);
 						addOutPacket(packet.okResult(query, 0));
@@ -194,11 +314,13 @@ public class Socks5ProxyComponent
 					if (sid != null) {
 
 						// Generate stream unique id
-						String cid = createConnId(sid, packet.getStanzaFrom().toString(),
-												  query.getCDataStaticStr(QUERY_ACTIVATE_PATH));
+						StreamKey cid = createConnId(sid, packet.getStanzaFrom().toString(),
+													 query.getCDataStaticStr(QUERY_ACTIVATE_PATH));
 
 						if (cid == null) {
 							addOutPacket(packet.errorResult("cancel", null, "internal-server-error", null, false));
+
+							return;
 						}
 
 						Stream stream = getStream(cid);
@@ -206,22 +328,10 @@ public class Socks5ProxyComponent
 						if (stream != null) {
 							stream.setRequester(packet.getStanzaFrom());
 							stream.setTarget(JID.jidInstance(query.getCDataStaticStr(QUERY_ACTIVATE_PATH)));
-							if (!verifier.isAllowed(stream)) {
-								stream.close();
-								addOutPacket(packet.errorResult("cancel", null, "not-allowed", null, false));
-
-								return;
-							}
-
-							// Let's try to activate stream
-							if (!stream.activate()) {
-								stream.close();
-								addOutPacket(packet.errorResult("cancel", null, "internal-server-error", null, false));
-
-								return;
-							}
-							addOutPacket(packet.okResult((Element) null, 0));
-						} else if (!sendToNextNode(packet)) {
+							// result is sent when verifier completes, without blocking packet processing thread
+							verifier.isAllowedAsync(stream)
+									.whenComplete((allowed, ex) -> activateStream(packet, stream, allowed, ex));
+						} else if (!sendToStreamNode(cid, packet, getComponentId(), null) && !sendToNextNode(packet)) {
 							addOutPacket(packet.errorResult("cancel", null, "item-not-found", null, true));
 						}
 					} else {
@@ -240,15 +350,61 @@ public class Socks5ProxyComponent
 	}
 
 	@Override
-	public boolean serviceStopped(Socks5IOService<?> serv) {
-		try {
-			verifier.updateTransfer(serv, true);
-		} catch (TigaseDBException ex) {
-			log.log(Level.WARNING, "problem during accessing database ", ex);
-		} catch (QuotaException ex) {
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, ex.getMessage(), ex);
+	public void start() {
+		if (accountingThreads > 0 && accountingExecutors == null) {
+			ExecutorService[] accountingExecutors = new ExecutorService[accountingThreads];
+			for (int i = 0; i < accountingExecutors.length; i++) {
+				String name = "socks5-accounting-" + i;
+				accountingExecutors[i] = Executors.newSingleThreadExecutor(r -> {
+					Thread thread = new Thread(r, name);
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+			this.accountingExecutors = accountingExecutors;
+		}
+		super.start();
+		verifier.start();
+		if (streamhostCacheTtl > 0 && streamhostCache == null) {
+			StreamhostCache streamhostCache = new StreamhostCache(
+					() -> resolveStreamhosts(getComponentId().getDomain()), streamhostCacheTtl);
+			streamhostCache.start();
+			streamhostCacheAddresses = remoteAddresses;
+			this.streamhostCache = streamhostCache;
+		}
+	}
+
+	@Override
+	public void stop() {
+		super.stop();
+		stopBridge();
+		StreamhostCache streamhostCache = this.streamhostCache;
+		if (streamhostCache != null) {
+			this.streamhostCache = null;
+			streamhostCache.stop();
+		}
+		ExecutorService[] accountingExecutors = this.accountingExecutors;
+		if (accountingExecutors != null) {
+			this.accountingExecutors = null;
+			for (ExecutorService executor : accountingExecutors) {
+				executor.shutdown();
 			}
+			try {
+				for (ExecutorService executor : accountingExecutors) {
+					executor.awaitTermination(10, TimeUnit.SECONDS);
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		// stores transfer of connections closed during stop of component
+		verifier.stop();
+	}
+
+	@Override
+	public boolean serviceStopped(Socks5IOService<?> serv) {
+		if (!executeAccounting(serv, () -> updateStoppedTransfer(serv))) {
+			updateStoppedTransfer(serv);
 		}
 
 		return super.serviceStopped(serv);
@@ -256,27 +412,113 @@ public class Socks5ProxyComponent
 
 	@Override
 	public void socketDataProcessed(Socks5IOService service) {
+		super.socketDataProcessed(service);
+
+		Stream stream = service.getStream();
+		if (stream != null && stream.isWithinTransferBudget(System.currentTimeMillis())) {
+			// verifier will be called after stream uses its budget or budget needs to be refreshed
+			return;
+		}
+
+		if (accountingExecutors == null) {
+			updateTransfer(service);
+		} else if (service.markAccountingPending()) {
+			// network thread only posts an event, transfers reported before it is handled are verified once
+			if (!executeAccounting(service, () -> {
+				service.clearAccountingPending();
+				updateTransfer(service);
+			})) {
+				service.clearAccountingPending();
+				updateTransfer(service);
+			}
+		}
+	}
+
+	/**
+	 * Executes task on accounting thread of stream of service
+	 *
+	 * @param service
+	 * @param task
+	 *
+	 * @return false if there is no accounting thread to execute task
+	 */
+	private boolean executeAccounting(Socks5IOService<?> service, Runnable task) {
+		ExecutorService[] accountingExecutors = this.accountingExecutors;
+		if (accountingExecutors == null) {
+			return false;
+		}
 		try {
-			verifier.updateTransfer(service, false);
-			super.socketDataProcessed(service);
-		} catch (Socks5Exception ex) {
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "stopping service after exception from verifier: " + ex.getMessage());
+			accountingExecutors[Math.floorMod(service.hashCode(), accountingExecutors.length)].execute(task);
+			return true;
+		} catch (RejectedExecutionException ex) {
+			return false;
+		}
+	}
+
+	private void updateStoppedTransfer(Socks5IOService<?> serv) {
+		verifier.updateTransferAsync(serv, true).whenComplete((result, error) -> {
+			Throwable ex = (error instanceof CompletionException && error.getCause() != null)
+						   ? error.getCause()
+						   : error;
+			if (ex instanceof TigaseDBException) {
+				log.log(Level.WARNING, "problem during accessing database ", ex);
+			} else if (ex != null) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, ex.getMessage(), ex);
+				}
 			}
+		});
+	}
 
-			// @todo send error
-			Packet message = Message.getMessage(getComponentId(), service.getJID(), StanzaType.error, ex.getMessage(),
-												null, null, null);
+	private void updateTransfer(Socks5IOService service) {
+		if (service.getState() == Socks5IOService.State.Closed) {
+			return;
+		}
 
-			this.addOutPacket(message);
-			service.forceStop();
-		} catch (TigaseDBException ex) {
-			Logger.getLogger(Socks5ProxyComponent.class.getName()).log(Level.SEVERE, null, ex);
+		// if stream has transfer budget, both connections of stream are verified to refresh budgets of both of them
+		Stream stream = service.getStream();
+		Socks5IOService secondServ = (stream != null && stream.hasTransferBudget())
+									 ? stream.getSecondConnection(service)
+									 : null;
+		verifyTransfer(service);
+		if (secondServ != null && secondServ.getState() != Socks5IOService.State.Closed) {
+			verifyTransfer(secondServ);
 		}
 	}
 
+	private void verifyTransfer(Socks5IOService service) {
+		verifier.updateTransferAsync(service, false).whenComplete((result, error) -> {
+			Throwable ex = (error instanceof CompletionException && error.getCause() != null)
+						   ? error.getCause()
+						   : error;
+			if (ex instanceof Socks5Exception) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "stopping service after exception from verifier: " + ex.getMessage());
+				}
+
+				// @todo send error
+				Packet message = Message.getMessage(getComponentId(), service.getJID(), StanzaType.error,
+													ex.getMessage(), null, null, null);
+
+				this.addOutPacket(message);
+				service.forceStop();
+			} else if (ex != null) {
+				Logger.getLogger(Socks5ProxyComponent.class.getName()).log(Level.SEVERE, null, ex);
+			}
+		});
+	}
+
 	//~--- get methods ----------------------------------------------------------
 
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+		RelayBridge relayBridge = this.relayBridge;
+		if (relayBridge != null) {
+			relayBridge.getStatistics(getName(), list);
+		}
+	}
+
 	/**
 	 * Returns disco category
 	 *
@@ -330,10 +572,72 @@ public class Socks5ProxyComponent
 		clusterController = cl_controller;
 		clusterController.removeCommandListener(packetForwardCmd);
 		clusterController.setCommandListener(packetForwardCmd);
+		clusterController.removeCommandListener(streamDirectoryCmd);
+		clusterController.setCommandListener(streamDirectoryCmd);
+		clusterController.removeCommandListener(nodeStreamhostsCmd);
+		clusterController.setCommandListener(nodeStreamhostsCmd);
+		clusterController.removeCommandListener(nodeLoadCmd);
+		clusterController.setCommandListener(nodeLoadCmd);
+		clusterController.removeCommandListener(limitsInvalidateCmd);
+		clusterController.setCommandListener(limitsInvalidateCmd);
 	}
 
 	//~--- methods --------------------------------------------------------------
 
+	@Override
+	protected void streamRegistered(Stream stream) {
+		super.streamRegistered(stream);
+		if (streamDirectoryInterval <= 0) {
+			publishStreams(STREAM_DIRECTORY_ADDED_KEY, Collections.singleton(stream.getSID()), getOtherClusterNodes());
+			return;
+		}
+		synchronized (streamDirectoryUpdateLock) {
+			streamDirectoryRemoved.remove(stream.getSID());
+			streamDirectoryAdded.add(stream.getSID());
+		}
+	}
+
+	@Override
+	protected void streamUnregistered(Stream stream) {
+		super.streamUnregistered(stream);
+		if (streamDirectoryInterval <= 0) {
+			publishStreams(STREAM_DIRECTORY_REMOVED_KEY, Collections.singleton(stream.getSID()),
+						   getOtherClusterNodes());
+			return;
+		}
+		synchronized (streamDirectoryUpdateLock) {
+			// stream which other nodes were not told about does not need to be removed from their directories
+			if (!streamDirectoryAdded.remove(stream.getSID())) {
+				streamDirectoryRemoved.add(stream.getSID());
+			}
+		}
+	}
+
+	/**
+	 * Sends packet directly to node which holds stream according to stream directory
+	 *
+	 * @param cid
+	 * @param packet
+	 * @param fromNode
+	 * @param visitedNodes
+	 *
+	 * @return false if node holding stream is not known
+	 */
+	protected boolean sendToStreamNode(StreamKey cid, Packet packet, JID fromNode, Set<JID> visitedNodes) {
+		JID node = streamDirectory.get(cid);
+		if (node == null || node.equals(getComponentId()) || !cluster_nodes.contains(node) ||
+				(visitedNodes != null && visitedNodes.contains(node))) {
+			return false;
+		}
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Stream {0} found on cluster node: {1}", new Object[]{cid, node});
+		}
+		clusterController.sendToNodes(PACKET_FORWARD_CMD, packet.getElement(), fromNode, visitedNodes, node);
+
+		return true;
+	}
+
 	/**
 	 * Send to next node if there is any available
 	 *
@@ -407,6 +711,78 @@ public class Socks5ProxyComponent
 		return new int[]{1080};
 	}
 
+	/**
+	 * Returns addresses of streamhosts of this node
+	 *
+	 * @param hostname
+	 *
+	 * @return
+	 *
+	 * @throws UnknownHostException
+	 */
+	protected List<String> getLocalStreamhostAddresses(String hostname) throws UnknownHostException {
+		return resolveStreamhosts(hostname).getAddresses();
+	}
+
+	/**
+	 * Resolves addresses and ports of streamhosts of this node, with the shortest TTL of resolved addresses
+	 *
+	 * @param hostname
+	 *
+	 * @return
+	 *
+	 * @throws UnknownHostException
+	 */
+	protected StreamhostCache.Streamhosts resolveStreamhosts(String hostname) throws UnknownHostException {
+		List<String> addresses = new ArrayList<>();
+		long ttl = 0;
+		if ((remoteAddresses == null) || (remoteAddresses.length == 0)) {
+			DNSEntry[] entries = DNSResolverFactory.getInstance().getHostSRV_Entries(hostname);
+
+			for (DNSEntry entry : entries) {
+				addresses.add(entry.getIp());
+				if (entry.getTtl() > 0) {
+					ttl = ttl == 0 ? entry.getTtl() * 1000 : Math.min(ttl, entry.getTtl() * 1000);
+				}
+			}
+		} else {
+			addresses.addAll(Arrays.asList(remoteAddresses));
+		}
+		return new StreamhostCache.Streamhosts(addresses, getPorts(), ttl);
+	}
+
+	/**
+	 * Returns cache of streamhosts of this node, which is refreshed when <code>remote-addresses</code> were changed
+	 *
+	 * @return cache or null if streamhosts are not cached
+	 */
+	protected StreamhostCache getStreamhostCache() {
+		StreamhostCache streamhostCache = this.streamhostCache;
+		if (streamhostCache != null && streamhostCacheAddresses != remoteAddresses) {
+			streamhostCacheAddresses = remoteAddresses;
+			streamhostCache.invalidate();
+		}
+		return streamhostCache;
+	}
+
+	@Override
+	protected void portsChanged() {
+		super.portsChanged();
+		StreamhostCache streamhostCache = this.streamhostCache;
+		if (streamhostCache != null) {
+			streamhostCache.invalidate();
+		}
+	}
+
+	/**
+	 * Returns nodes of cluster other than this node
+	 *
+	 * @return
+	 */
+	protected JID[] getOtherClusterNodes() {
+		return cluster_nodes.stream().filter(node -> !node.equals(getComponentId())).toArray(JID[]::new);
+	}
+
 	/**
 	 * Returns first node of cluster
 	 *
@@ -433,6 +809,451 @@ public class Socks5ProxyComponent
 
 	//~--- methods --------------------------------------------------------------
 
+	/**
+	 * Activates stream after it was checked by verifier and sends response to activation request
+	 *
+	 * @param packet
+	 * @param stream
+	 * @param allowed
+	 * @param error
+	 */
+	private void activateStream(Packet packet, Stream stream, Boolean allowed, Throwable error) {
+		try {
+			// stream could be activated by other request or closed while it was verified
+			if (stream.isActivated()) {
+				addOutPacket(packet.errorResult("cancel", null, "conflict", "Stream is already activated", false));
+				return;
+			}
+			if (!stream.isRegistered()) {
+				addOutPacket(packet.errorResult("cancel", null, "item-not-found", "Stream was closed", false));
+				return;
+			}
+		} catch (PacketErrorTypeException ex) {
+			log.log(Level.FINE, "could not send response to activation request = " + packet, ex);
+			return;
+		}
+
+		if (error == null && allowed != null && allowed && stream.getBridgedConnection() != null &&
+				bridgeStream(packet, stream)) {
+			// response will be sent when other node accepts bridged stream
+			return;
+		}
+
+		try {
+			if (error != null) {
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "exception while verifying stream = " + stream, error);
+				}
+				stream.close();
+				addOutPacket(packet.errorResult("cancel", null, "internal-server-error", null, false));
+
+				return;
+			}
+
+			if (allowed == null || !allowed) {
+				stream.close();
+				addOutPacket(packet.errorResult("cancel", null, "not-allowed", null, false));
+
+				return;
+			}
+
+			// Let's try to activate stream
+			if (!stream.activate()) {
+				if (stream.isActivated()) {
+					// other request activated stream in the meantime
+					addOutPacket(packet.errorResult("cancel", null, "conflict", "Stream is already activated", false));
+					return;
+				}
+				stream.close();
+				addOutPacket(packet.errorResult("cancel", null, "internal-server-error", null, false));
+
+				return;
+			}
+			addOutPacket(packet.okResult((Element) null, 0));
+		} catch (PacketErrorTypeException ex) {
+			log.log(Level.FINE, "could not send response to activation request = " + packet, ex);
+		}
+	}
+
+	/**
+	 * Opens link to node holding other connection of stream and activates stream when link is accepted
+	 *
+	 * @param packet
+	 * @param stream
+	 *
+	 * @return false if stream cannot be bridged
+	 */
+	private boolean bridgeStream(Packet packet, Stream stream) {
+		RelayBridge relayBridge = this.relayBridge;
+		JID node = streamDirectory.get(stream.getSID());
+		NodeStreamhosts streamhosts = node != null ? nodeStreamhosts.get(node) : null;
+		if (relayBridge == null || streamhosts == null || streamhosts.bridge == null) {
+			return false;
+		}
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Bridging stream {0} to cluster node: {1}", new Object[]{stream, node});
+		}
+		relayBridge.open(streamhosts.bridge, stream.getSID(), new BridgeEndpoint(stream))
+				.whenComplete((link, ex) -> {
+					try {
+						if (ex != null || !stream.activateBridged(link)) {
+							if (log.isLoggable(Level.FINE)) {
+								log.log(Level.FINE, "could not bridge stream = " + stream, ex);
+							}
+							if (link != null) {
+								link.close();
+							}
+							if (ex == null && stream.isActivated()) {
+								// other request activated stream in the meantime
+								addOutPacket(packet.errorResult("cancel", null, "conflict",
+																"Stream is already activated", false));
+								return;
+							}
+							stream.close();
+							addOutPacket(packet.errorResult("cancel", null, "internal-server-error", null, false));
+							return;
+						}
+						addOutPacket(packet.okResult((Element) null, 0));
+					} catch (PacketErrorTypeException e) {
+						log.log(Level.FINE, "could not send response to activation request = " + packet, e);
+					}
+				});
+		return true;
+	}
+
+	/**
+	 * Starts bridge used to relay data of streams which connections were made to different nodes
+	 */
+	private synchronized void startBridge() {
+		if (!bridgeEnabled || relayBridge != null) {
+			return;
+		}
+		if (bridgeSecret == null || bridgeSecret.isEmpty()) {
+			log.log(Level.WARNING, "Bridge is enabled but bridge-secret is not set, bridge is not started");
+			return;
+		}
+		RelayBridge relayBridge = new RelayBridge("socks5-bridge", new BridgeHandler(), getBufferPool(),
+												  bridgeSecret.getBytes(StandardCharsets.UTF_8), bridgeConnections,
+												  bridgeTimeout, bridgeWindow);
+		try {
+			relayBridge.start(getBridgeHost(), bridgePort);
+			this.relayBridge = relayBridge;
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "Could not start bridge on port {0}: {1}",
+					new Object[]{bridgePort, ex.getMessage()});
+		}
+	}
+
+	private synchronized void stopBridge() {
+		if (relayBridge != null) {
+			relayBridge.stop();
+			relayBridge = null;
+		}
+	}
+
+	/**
+	 * Returns address on which bridge accepts connections, by default address to which name of this cluster node
+	 * resolves, so bridge is reachable only by other nodes of cluster
+	 *
+	 * @return
+	 */
+	private String getBridgeHost() {
+		return bridgeAddress != null ? bridgeAddress : getComponentId().getDomain();
+	}
+
+	private Element createStreamhost(String jid, String host, int port) {
+		Element streamhost = new Element("streamhost");
+
+		streamhost.setAttribute("jid", jid);
+		streamhost.setAttribute("host", host);
+		streamhost.setAttribute("port", String.valueOf(port));
+
+		return streamhost;
+	}
+
+	/**
+	 * Puts streamhosts of node selected for requester on list of streamhosts, so requesters are spread over nodes of
+	 * cluster. Target of a stream connects to streamhost offered by requester, so both parties end on the same node
+	 * unless each of them asked for streamhosts on its own, in which case streams are joined by relay bridge. If
+	 * loads of nodes are known, streamhosts of other nodes follow in order of their spare capacity and overloaded
+	 * nodes are left out.
+	 *
+	 * @param packet
+	 * @param jid
+	 * @param children
+	 */
+	private void placeStreamhosts(Packet packet, String jid, List<Element> children) {
+		boolean loadAware = loadReportInterval > 0;
+		ConsistentHashRing<JID> placementRing = this.placementRing;
+		if ((streamhostPlacement == StreamhostPlacement.none || placementRing == null) && !loadAware) {
+			return;
+		}
+
+		JID self = getComponentId();
+		long now = System.currentTimeMillis();
+		Set<JID> candidates = new HashSet<>();
+		candidates.add(self);
+		for (JID node : nodeStreamhosts.keySet()) {
+			if (cluster_nodes.contains(node)) {
+				candidates.add(node);
+			}
+		}
+		if (loadAware) {
+			Set<JID> available = new HashSet<>(candidates);
+			available.removeAll(overloadedNodes);
+			if (available.isEmpty()) {
+				// all nodes are overloaded, so least loaded one is used
+				available.add(candidates.stream().min(loadComparator(now)).get());
+			}
+			candidates = available;
+		}
+
+		JID placed = null;
+		if (streamhostPlacement != StreamhostPlacement.none && placementRing != null) {
+			placed = placementRing.get(placementKey(packet), candidates::contains);
+		}
+		final JID placedNode = placed;
+
+		List<JID> nodes = new ArrayList<>();
+		if (placed != null) {
+			nodes.add(placed);
+		}
+		if (placed == null || streamhostPlacement != StreamhostPlacement.only) {
+			if (loadAware) {
+				candidates.stream()
+						.filter(node -> !node.equals(placedNode))
+						.sorted(loadComparator(now))
+						.forEach(nodes::add);
+			} else if (!self.equals(placed)) {
+				nodes.add(self);
+			}
+		}
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Cluster nodes {0} selected for streamhost query = {1}",
+					new Object[]{nodes, packet});
+		}
+
+		List<Element> placedHosts = new ArrayList<>();
+		Set<String> hosts = new HashSet<>();
+		for (JID node : nodes) {
+			if (node.equals(self)) {
+				for (Element streamhost : children) {
+					if (hosts.add(streamhost.getAttributeStaticStr("host") + ":" +
+										  streamhost.getAttributeStaticStr("port"))) {
+						placedHosts.add(streamhost);
+					}
+				}
+				continue;
+			}
+			NodeStreamhosts streamhosts = nodeStreamhosts.get(node);
+			if (streamhosts == null) {
+				continue;
+			}
+			for (String addr : streamhosts.addresses) {
+				for (int port : streamhosts.ports) {
+					if (hosts.add(addr + ":" + port)) {
+						placedHosts.add(createStreamhost(jid, addr, port));
+					}
+				}
+			}
+		}
+		if (!placedHosts.isEmpty()) {
+			children.clear();
+			children.addAll(placedHosts);
+		}
+	}
+
+	/**
+	 * Returns key of requester on placement ring. Target of a stream is not known before activation and queries for
+	 * streamhosts usually do not carry <code>sid</code>, so key is full JID of requester, followed by
+	 * <code>sid</code> only if it is present, and all streams of a single resource are placed on the same node.
+	 *
+	 * @param packet
+	 *
+	 * @return key for placement ring
+	 */
+	private String placementKey(Packet packet) {
+		String sid = packet.getElement().getAttributeStaticStr(Iq.IQ_QUERY_PATH, "sid");
+		return sid == null ? packet.getStanzaFrom().toString() : (packet.getStanzaFrom() + "/" + sid);
+	}
+
+	/**
+	 * Returns comparator ordering nodes from the one with most spare capacity, nodes without recent load report are
+	 * placed last
+	 *
+	 * @param now
+	 *
+	 * @return
+	 */
+	private Comparator<JID> loadComparator(long now) {
+		return Comparator.comparingDouble((JID node) -> {
+			NodeLoad load = node.equals(getComponentId()) ? localLoad : nodeLoads.get(node);
+			if (load == null || now - load.getTimestamp() > loadReportInterval * 3) {
+				return Double.MAX_VALUE;
+			}
+			return load.getUtilization(overloadStreams, overloadBytesPerSecond, overloadBufferedBytes);
+		}).thenComparingLong(node -> {
+			NodeLoad load = node.equals(getComponentId()) ? localLoad : nodeLoads.get(node);
+			return load == null ? Long.MAX_VALUE : load.getBytesPerSecond();
+		}).thenComparingInt(node -> {
+			NodeLoad load = node.equals(getComponentId()) ? localLoad : nodeLoads.get(node);
+			return load == null ? Integer.MAX_VALUE : load.getOpenStreams();
+		});
+	}
+
+	/**
+	 * Handles ad-hoc command of administrator dropping cached transfer limits of a user, of a domain with its users
+	 * or all of them, on all nodes of cluster
+	 *
+	 * @param packet
+	 *
+	 * @throws PacketErrorTypeException
+	 */
+	private void processLimitsInvalidateCommand(Packet packet) throws PacketErrorTypeException {
+		if (!isAdmin(packet.getStanzaFrom())) {
+			addOutPacket(packet.errorResult("auth", null, "forbidden", "You are not authorized for this action", false));
+			return;
+		}
+
+		Element command = packet.getElement().getChild("command", "http://jabber.org/protocol/commands");
+		Element form = command != null ? command.getChild("x", "jabber:x:data") : null;
+		if (form == null || !"submit".equals(form.getAttributeStaticStr("type"))) {
+			Packet result = packet.commandResult(Command.DataType.form);
+			Command.addTextField(result, "Note", "Drops cached transfer limits of user JID, of domain and its users " +
+					"or, if JID is empty, all cached limits");
+			Command.addFieldValue(result, LIMITS_INVALIDATE_JID_KEY, "");
+			addOutPacket(result);
+			return;
+		}
+
+		String jid = Command.getFieldValue(packet, LIMITS_INVALIDATE_JID_KEY);
+		invalidateTransferLimits(jid);
+		ClusterControllerIfc clusterController = this.clusterController;
+		JID[] nodes = getOtherClusterNodes();
+		if (clusterController != null && nodes.length > 0) {
+			Map<String, String> data = new HashMap<>();
+			data.put(LIMITS_INVALIDATE_JID_KEY, jid == null ? "" : jid);
+			clusterController.sendToNodes(LIMITS_INVALIDATE_CMD, data, getComponentId(), nodes);
+		}
+
+		Packet result = packet.commandResult(Command.DataType.result);
+		Command.addTextField(result, "Note", "Cached transfer limits were dropped");
+		addOutPacket(result);
+	}
+
+	/**
+	 * Drops cached transfer limits of user, of domain and its users or all cached limits if jid is empty
+	 *
+	 * @param jid
+	 */
+	private void invalidateTransferLimits(String jid) {
+		Socks5Repository repo = getSock5Repository();
+		if (repo == null) {
+			return;
+		}
+		if (jid == null || jid.trim().isEmpty()) {
+			repo.invalidateTransferLimits();
+			return;
+		}
+		BareJID bareJID = BareJID.bareJIDInstanceNS(jid.trim());
+		if (bareJID.getLocalpart() == null) {
+			repo.invalidateTransferLimits(bareJID.getDomain());
+		} else {
+			repo.invalidateTransferLimits(bareJID);
+		}
+	}
+
+	/**
+	 * Measures load of this node and sends it to other nodes of cluster
+	 */
+	private void publishLoad() {
+		NodeLoad load = getLoad();
+		localLoad = load;
+		updateOverloaded(getComponentId(), load);
+
+		ClusterControllerIfc clusterController = this.clusterController;
+		JID[] nodes = getOtherClusterNodes();
+		if (clusterController == null || nodes.length == 0) {
+			return;
+		}
+		Map<String, String> data = new HashMap<>();
+		data.put(NODE_LOAD_STREAMS_KEY, String.valueOf(load.getOpenStreams()));
+		data.put(NODE_LOAD_RATE_KEY, String.valueOf(load.getBytesPerSecond()));
+		data.put(NODE_LOAD_BUFFERED_KEY, String.valueOf(load.getBufferedBytes()));
+		clusterController.sendToNodes(NODE_LOAD_CMD, data, getComponentId(), nodes);
+	}
+
+	/**
+	 * Marks node as overloaded when its load reaches limits and as recovered when it drops below
+	 * <code>overload-recovery-percent</code> of limits
+	 *
+	 * @param node
+	 * @param load
+	 */
+	private void updateOverloaded(JID node, NodeLoad load) {
+		double utilization = load.getUtilization(overloadStreams, overloadBytesPerSecond, overloadBufferedBytes);
+		if (overloadedNodes.contains(node)) {
+			if (utilization < overloadRecoveryPercent / 100.0) {
+				overloadedNodes.remove(node);
+				log.log(Level.CONFIG, "Cluster node {0} recovered from overload: {1}", new Object[]{node, load});
+			}
+		} else if (utilization >= 1) {
+			overloadedNodes.add(node);
+			log.log(Level.CONFIG, "Cluster node {0} is overloaded: {1}", new Object[]{node, load});
+		}
+	}
+
+	/**
+	 * Sends addresses and ports of streamhosts of this node to other node of cluster
+	 *
+	 * @param node
+	 */
+	private void publishStreamhosts(JID node) {
+		ClusterControllerIfc clusterController = this.clusterController;
+		if (clusterController == null) {
+			return;
+		}
+
+		List<String> addresses;
+		try {
+			addresses = getLocalStreamhostAddresses(getComponentId().getDomain());
+		} catch (UnknownHostException ex) {
+			log.log(Level.WARNING, "Could not resolve addresses of streamhosts of this node: {0}", ex.getMessage());
+			return;
+		}
+
+		StringBuilder ports = new StringBuilder();
+		for (int port : getPorts()) {
+			if (ports.length() > 0) {
+				ports.append(',');
+			}
+			ports.append(port);
+		}
+		Map<String, String> data = new HashMap<>();
+		data.put(NODE_ADDRESSES_KEY, String.join(",", addresses));
+		data.put(NODE_PORTS_KEY, ports.toString());
+		RelayBridge relayBridge = this.relayBridge;
+		if (relayBridge != null && relayBridge.getLocalPort() > 0) {
+			data.put(NODE_BRIDGE_KEY, getBridgeHost() + ":" + relayBridge.getLocalPort());
+		}
+		clusterController.sendToNodes(NODE_STREAMHOSTS_CMD, data, getComponentId(), node);
+	}
+
+	/**
+	 * Rebuilds ring used for placement of streamhosts from this node and nodes which streamhosts are known
+	 */
+	private synchronized void rebuildPlacementRing() {
+		List<JID> nodes = new ArrayList<>(nodeStreamhosts.keySet());
+		if (nodes.isEmpty()) {
+			placementRing = null;
+			return;
+		}
+		nodes.add(getComponentId());
+		placementRing = new ConsistentHashRing<>(nodes, streamhostPlacementVirtualNodes);
+	}
+
 	/**
 	 * Creates unique stream id generated from sid, from and to
 	 *
@@ -442,17 +1263,80 @@ public class Socks5ProxyComponent
 	 *
 	 * @return
 	 */
-	private String createConnId(String sid, String from, String to) {
-		try {
-			String id = sid + from + to;
-			MessageDigest md = MessageDigest.getInstance("SHA-1");
+	private StreamKey createConnId(String sid, String from, String to) {
+		MessageDigest md = SHA1_DIGEST.get();
+		if (md == null) {
+			return null;
+		}
 
-			return Algorithms.hexDigest("", id, "SHA-1");
-		} catch (NoSuchAlgorithmException e) {
-			log.warning(e.getMessage());
+		// digest of concatenated values without concatenating them
+		md.reset();
+		md.update(String.valueOf(sid).getBytes(StandardCharsets.UTF_8));
+		md.update(String.valueOf(from).getBytes(StandardCharsets.UTF_8));
+		md.update(String.valueOf(to).getBytes(StandardCharsets.UTF_8));
 
-			return null;
+		return new StreamKey(md.digest());
+	}
+
+	/**
+	 * Notifies nodes of cluster about streams added to or removed from this node
+	 *
+	 * @param key
+	 * @param sids
+	 * @param nodes
+	 */
+	private void publishStreams(String key, Collection<StreamKey> sids, JID... nodes) {
+		ClusterControllerIfc clusterController = this.clusterController;
+		if (clusterController == null || nodes.length == 0 || sids.isEmpty()) {
+			return;
+		}
+
+		Map<String, String> data = new HashMap<>();
+		data.put(key, joinStreamKeys(sids));
+		clusterController.sendToNodes(STREAM_DIRECTORY_CMD, data, getComponentId(), nodes);
+	}
+
+	/**
+	 * Notifies other nodes of cluster about streams added to and removed from this node since last update, using
+	 * a single command for all of them
+	 */
+	private void publishStreamDirectoryUpdates() {
+		Set<StreamKey> added;
+		Set<StreamKey> removed;
+		synchronized (streamDirectoryUpdateLock) {
+			if (streamDirectoryAdded.isEmpty() && streamDirectoryRemoved.isEmpty()) {
+				return;
+			}
+			added = streamDirectoryAdded;
+			removed = streamDirectoryRemoved;
+			streamDirectoryAdded = new HashSet<>();
+			streamDirectoryRemoved = new HashSet<>();
+		}
+
+		ClusterControllerIfc clusterController = this.clusterController;
+		JID[] nodes = getOtherClusterNodes();
+		if (clusterController == null || nodes.length == 0) {
+			return;
+		}
+		Map<String, String> data = new HashMap<>();
+		if (!added.isEmpty()) {
+			data.put(STREAM_DIRECTORY_ADDED_KEY, joinStreamKeys(added));
+		}
+		if (!removed.isEmpty()) {
+			data.put(STREAM_DIRECTORY_REMOVED_KEY, joinStreamKeys(removed));
+		}
+		clusterController.sendToNodes(STREAM_DIRECTORY_CMD, data, getComponentId(), nodes);
+	}
+
+	private String joinStreamKeys(Collection<StreamKey> sids) {
+		StringBuilder sb = new StringBuilder(sids.size() * (StreamKey.LENGTH * 2 + 1));
+		for (StreamKey sid : sids) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(sid);
 		}
+		return sb.toString();
 	}
 
 	//~--- inner classes --------------------------------------------------------
@@ -477,9 +1361,9 @@ public class Socks5ProxyComponent
 					packet.setPacketFrom(fromNode);
 					packet.setPacketTo(getComponentId());
 
-					String cid = createConnId(el_packet.getAttributeStaticStr(Iq.IQ_QUERY_PATH, "sid"),
-											  el_packet.getAttributeStaticStr(Packet.FROM_ATT),
-											  el_packet.getCDataStaticStr(IQ_QUERY_ACTIVATE_PATH));
+					StreamKey cid = createConnId(el_packet.getAttributeStaticStr(Iq.IQ_QUERY_PATH, "sid"),
+												 el_packet.getAttributeStaticStr(Packet.FROM_ATT),
+												 el_packet.getCDataStaticStr(IQ_QUERY_ACTIVATE_PATH));
 
 					if (cid == null) {
 						addOutPacket(Authorization.INTERNAL_SERVER_ERROR.getResponseMessage(packet,
@@ -490,7 +1374,8 @@ public class Socks5ProxyComponent
 					}
 					if (hasStream(cid)) {
 						processPacket(packet);
-					} else if (!sendToNextNode(fromNode, visitedNodes, data, packet)) {
+					} else if (!sendToStreamNode(cid, packet, fromNode, visitedNodes) &&
+							!sendToNextNode(fromNode, visitedNodes, data, packet)) {
 						addOutPacket(packet.errorResult("cancel", null, "item-not-found", null, true));
 					}
 				} catch (PacketErrorTypeException ex) {
@@ -501,6 +1386,271 @@ public class Socks5ProxyComponent
 			}
 		}
 	}
+
+	/**
+	 * Addresses and ports of streamhosts of other node of cluster
+	 */
+	private static class NodeStreamhosts {
+
+		private final String[] addresses;
+		// addresses of node and its bridge, from which bridge channels are accepted
+		private final Set<InetAddress> allowedAddresses;
+		private final InetSocketAddress bridge;
+		private final int[] ports;
+
+		private NodeStreamhosts(String[] addresses, int[] ports, InetSocketAddress bridge,
+								Set<InetAddress> allowedAddresses) {
+			this.addresses = addresses;
+			this.ports = ports;
+			this.bridge = bridge;
+			this.allowedAddresses = allowedAddresses;
+		}
+	}
+
+	/**
+	 * Queues data received over bridge for writing to connection of stream
+	 */
+	private class BridgeEndpoint
+			implements RelayBridge.Endpoint {
+
+		private final Stream stream;
+
+		private BridgeEndpoint(Stream stream) {
+			this.stream = stream;
+		}
+
+		@Override
+		public void received(ByteBuffer data) throws IOException {
+			Socks5IOService<?> con = stream.getBridgedConnection();
+			if (con == null || con.getState() == Socks5IOService.State.Closed) {
+				throw new IOException("Connection of stream " + stream + " is closed");
+			}
+			con.writeBridgedBytes(data);
+			if (con.waitingToSend()) {
+				// remaining data will be written by SocketThread when socket is ready for writing
+				SocketThread.addSocketService(con);
+			}
+			socketDataProcessed(con);
+		}
+
+		@Override
+		public void writable() {
+			// reading of connection was suspended until other node granted credit
+			Socks5IOService<?> con = stream.getBridgedConnection();
+			if (con != null && con.getState() != Socks5IOService.State.Closed) {
+				SocketThread.addSocketService(con);
+			}
+		}
+
+		@Override
+		public void closed() {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Handles links opened over bridge by other nodes of cluster
+	 */
+	private class BridgeHandler
+			implements RelayBridge.Handler {
+
+		/**
+		 * Activates stream which other connection was made to node which opened link
+		 *
+		 * @param link
+		 *
+		 * @return
+		 */
+		@Override
+		public RelayBridge.Endpoint linkOpened(RelayBridge.Link link) {
+			Stream stream = getStream(link.getKey());
+			if (stream == null || stream.isBridged() || stream.getBridgedConnection() == null) {
+				return null;
+			}
+			BridgeEndpoint endpoint = new BridgeEndpoint(stream);
+			if (!stream.activateBridged(link)) {
+				return null;
+			}
+			return endpoint;
+		}
+
+		/**
+		 * Allows only channels from addresses of connected nodes of cluster or of their bridges, resolved when
+		 * streamhosts of node were received
+		 *
+		 * @param address
+		 *
+		 * @return
+		 */
+		@Override
+		public boolean isAllowed(InetAddress address) {
+			for (JID node : getOtherClusterNodes()) {
+				NodeStreamhosts streamhosts = nodeStreamhosts.get(node);
+				if (streamhosts != null && streamhosts.allowedAddresses.contains(address)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Handles loads reported by other nodes of cluster
+	 */
+	private class NodeLoadListener
+			extends CommandListenerAbstract {
+
+		public NodeLoadListener() {
+			super(NODE_LOAD_CMD, Priority.HIGH);
+		}
+
+		@Override
+		public void executeCommand(JID fromNode, Set<JID> visitedNodes, Map<String, String> data,
+								   Queue<Element> packets) throws ClusterCommandException {
+			if (!cluster_nodes.contains(fromNode)) {
+				return;
+			}
+			NodeLoad load;
+			try {
+				load = new NodeLoad(Integer.parseInt(data.get(NODE_LOAD_STREAMS_KEY)),
+									Long.parseLong(data.get(NODE_LOAD_RATE_KEY)),
+									Long.parseLong(data.get(NODE_LOAD_BUFFERED_KEY)), System.currentTimeMillis());
+			} catch (NumberFormatException ex) {
+				log.log(Level.WARNING, "Invalid load received from {0}: {1}", new Object[]{fromNode, data});
+				return;
+			}
+			nodeLoads.put(fromNode, load);
+			updateOverloaded(fromNode, load);
+		}
+	}
+
+	/**
+	 * Handles dropping of cached transfer limits requested on other node of cluster
+	 */
+	private class LimitsInvalidateListener
+			extends CommandListenerAbstract {
+
+		public LimitsInvalidateListener() {
+			super(LIMITS_INVALIDATE_CMD, Priority.HIGH);
+		}
+
+		@Override
+		public void executeCommand(JID fromNode, Set<JID> visitedNodes, Map<String, String> data,
+								   Queue<Element> packets) throws ClusterCommandException {
+			if (!cluster_nodes.contains(fromNode)) {
+				return;
+			}
+			invalidateTransferLimits(data.get(LIMITS_INVALIDATE_JID_KEY));
+		}
+	}
+
+	/**
+	 * Handles addresses and ports of streamhosts sent by other nodes of cluster
+	 */
+	private class NodeStreamhostsListener
+			extends CommandListenerAbstract {
+
+		public NodeStreamhostsListener() {
+			super(NODE_STREAMHOSTS_CMD, Priority.HIGH);
+		}
+
+		@Override
+		public void executeCommand(JID fromNode, Set<JID> visitedNodes, Map<String, String> data,
+								   Queue<Element> packets) throws ClusterCommandException {
+			String addresses = data.get(NODE_ADDRESSES_KEY);
+			String ports = data.get(NODE_PORTS_KEY);
+			if (addresses == null || addresses.isEmpty() || ports == null || ports.isEmpty()) {
+				return;
+			}
+
+			try {
+				int[] portsArr = Arrays.stream(ports.split(",")).mapToInt(Integer::parseInt).toArray();
+				InetSocketAddress bridgeAddr = parseBridgeAddress(data.get(NODE_BRIDGE_KEY));
+				nodeStreamhosts.put(fromNode, new NodeStreamhosts(addresses.split(","), portsArr, bridgeAddr,
+																  resolveNodeAddresses(fromNode, bridgeAddr)));
+			} catch (NumberFormatException ex) {
+				log.log(Level.WARNING, "Invalid ports of streamhosts received from {0}: {1}",
+						new Object[]{fromNode, ports});
+				return;
+			}
+			if (!cluster_nodes.contains(fromNode)) {
+				// node disconnected before its streamhosts were received
+				nodeStreamhosts.remove(fromNode);
+			}
+			rebuildPlacementRing();
+		}
+
+		/**
+		 * Resolves addresses from which bridge channels of node are accepted, so they are not resolved when channel
+		 * is accepted
+		 */
+		private Set<InetAddress> resolveNodeAddresses(JID node, InetSocketAddress bridge) {
+			Set<InetAddress> result = new HashSet<>();
+			if (bridge != null && bridge.getAddress() != null) {
+				result.add(bridge.getAddress());
+			}
+			try {
+				result.addAll(Arrays.asList(InetAddress.getAllByName(node.getDomain())));
+			} catch (UnknownHostException ex) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "could not resolve address of cluster node {0}", node);
+				}
+			}
+			return result;
+		}
+
+		private InetSocketAddress parseBridgeAddress(String bridge) {
+			int idx = bridge != null ? bridge.lastIndexOf(':') : -1;
+			if (idx <= 0) {
+				return null;
+			}
+			return new InetSocketAddress(bridge.substring(0, idx), Integer.parseInt(bridge.substring(idx + 1)));
+		}
+	}
+
+	/**
+	 * Handles notifications about streams registered on other nodes of cluster
+	 */
+	private class StreamDirectory
+			extends CommandListenerAbstract {
+
+		public StreamDirectory() {
+			super(STREAM_DIRECTORY_CMD, Priority.HIGH);
+		}
+
+		@Override
+		public void executeCommand(JID fromNode, Set<JID> visitedNodes, Map<String, String> data,
+								   Queue<Element> packets) throws ClusterCommandException {
+			String added = data.get(STREAM_DIRECTORY_ADDED_KEY);
+			if (added != null) {
+				for (StreamKey sid : parseStreamKeys(added)) {
+					streamDirectory.put(sid, fromNode);
+				}
+			}
+			String removed = data.get(STREAM_DIRECTORY_REMOVED_KEY);
+			if (removed != null) {
+				for (StreamKey sid : parseStreamKeys(removed)) {
+					streamDirectory.remove(sid, fromNode);
+				}
+			}
+		}
+
+		private List<StreamKey> parseStreamKeys(String value) {
+			List<StreamKey> sids = new ArrayList<>();
+			byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+			int start = 0;
+			for (int i = 0; i <= bytes.length; i++) {
+				if (i == bytes.length || bytes[i] == ',') {
+					StreamKey sid = StreamKey.fromHex(bytes, start, i - start);
+					if (sid != null) {
+						sids.add(sid);
+					}
+					start = i + 1;
+				}
+			}
+			return sids;
+		}
+	}
 }
 
 //~ Formatted in Tigase Code Convention on 13/10/15
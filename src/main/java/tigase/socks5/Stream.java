@@ -17,12 +17,16 @@
  */
 package tigase.socks5;
 
+import tigase.net.SocketThread;
 import tigase.xmpp.jid.JID;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,17 +34,30 @@ public class Stream {
 
 	private static final Logger log = Logger.getLogger(Stream.class.getCanonicalName());
 
+	// set once, so stream is activated only by the first of concurrent activation requests
+	private final AtomicBoolean activated = new AtomicBoolean(false);
 	private final Socks5IOService[] conns = new Socks5IOService[2];
+	private final AtomicInteger connsStopped = new AtomicInteger(0);
 	private final Map<String, Object> data;
 	private final Socks5ConnectionManager manager;
-	private final String sid;
+	private final StreamKey sid;
+	// budgets set for each type of connection, guarded by this
+	private final long[] budgetDeadlines = new long[Socks5ConnectionType.values().length];
+	private final long[] budgetLimits = new long[Socks5ConnectionType.values().length];
+	// the most restrictive of budgets of connections, -1 if any of them was not set
+	private volatile long budgetDeadline = 0;
+	private volatile long budgetLimit = -1;
+	// link to other node of cluster holding the other connection of stream
+	private volatile RelayBridge.Link bridgeLink = null;
+	private volatile boolean closed = false;
 	private JID requester = null;
 	private JID target = null;
 
-	public Stream(String sid, Socks5ConnectionManager manager) {
+	public Stream(StreamKey sid, Socks5ConnectionManager manager) {
 		this.sid = sid;
 		this.manager = manager;
 		this.data = new HashMap<String, Object>();
+		Arrays.fill(budgetLimits, -1);
 	}
 
 	/**
@@ -48,7 +65,7 @@ public class Stream {
 	 *
 	 * @return
 	 */
-	public String getSID() {
+	public StreamKey getSID() {
 		return sid;
 	}
 
@@ -140,6 +157,16 @@ public class Stream {
 	 * @throws IOException
 	 */
 	public void proxy(ByteBuffer buf, Socks5IOService con) throws IOException {
+		RelayBridge.Link bridgeLink = this.bridgeLink;
+		if (bridgeLink != null) {
+			// link sends all data, so buffer is empty after compacting
+			bridgeLink.send(buf);
+			buf.compact();
+			return;
+		}
+
+		RelayBuffers relayBuffers = con.getRelayBuffers();
+
 		if (conns[0] == con) {
 			con = conns[1];
 		} else {
@@ -149,6 +176,13 @@ public class Stream {
 //                if (log.isLoggable(Level.FINEST)) {
 //                        log.log(Level.FINEST, "writing data to connection = {0}", con);
 //                }
+		if (relayBuffers != null) {
+			// buffer is queued for writing even if other connection is still
+			// writing previous one, so we may read next data in the meantime
+			con.writeBytes(buf);
+			relayBuffers.sent(buf);
+			return;
+		}
 		if (!con.waitingToSend()) {
 			con.writeBytes(buf);
 //        } else {
@@ -159,25 +193,103 @@ public class Stream {
 	/**
 	 * Tries to activate stream and each of service
 	 *
-	 * @return
+	 * @return false if stream is not complete, was closed or was already activated
 	 */
 	public boolean activate() {
-		if (conns[0] == null || conns[1] == null) {
+		if (conns[0] == null || conns[1] == null || !isRegistered() || !activated.compareAndSet(false, true)) {
 			return false;
 		}
 
 		conns[0].activate();
 		conns[1].activate();
+		manager.streamActivated(this);
 		return true;
 	}
 
+	/**
+	 * Activates stream which only connection is on this node, relaying its data over link to other node of cluster
+	 * holding the other connection
+	 *
+	 * @param link
+	 *
+	 * @return
+	 */
+	public boolean activateBridged(RelayBridge.Link link) {
+		Socks5IOService con = getBridgedConnection();
+		if (con == null || !isRegistered() || !activated.compareAndSet(false, true)) {
+			return false;
+		}
+
+		bridgeLink = link;
+		con.activate();
+		if (manager.getRelayMode() == RelayMode.blocking) {
+			// connection was not registered again after handshake, as it was meant to be handled by relay engine
+			SocketThread.addSocketService(con);
+		}
+		manager.streamActivated(this);
+		return true;
+	}
+
+	/**
+	 * Returns only connection of stream if other connection was made to other node of cluster
+	 *
+	 * @return
+	 */
+	public Socks5IOService getBridgedConnection() {
+		if ((conns[0] == null) == (conns[1] == null)) {
+			return null;
+		}
+		return conns[0] != null ? conns[0] : conns[1];
+	}
+
+	/**
+	 * Returns link relaying data of stream to other node of cluster or null if stream is not bridged
+	 *
+	 * @return
+	 */
+	public RelayBridge.Link getBridgeLink() {
+		return bridgeLink;
+	}
+
+	/**
+	 * Check if stream was activated
+	 *
+	 * @return
+	 */
+	public boolean isActivated() {
+		return activated.get();
+	}
+
+	/**
+	 * Check if stream was not closed and is still registered in connection manager
+	 *
+	 * @return
+	 */
+	public boolean isRegistered() {
+		return !closed && manager.getStream(sid) == this;
+	}
+
+	/**
+	 * Check if data of stream is relayed to other node of cluster
+	 *
+	 * @return
+	 */
+	public boolean isBridged() {
+		return bridgeLink != null;
+	}
+
 	/**
 	 * Close stream
 	 */
 	public void close() {
 		int bytesRead = 0;
 
+		closed = true;
 		manager.unregisterStream(this);
+		RelayBridge.Link bridgeLink = this.bridgeLink;
+		if (bridgeLink != null) {
+			bridgeLink.close();
+		}
 
 		for (int i = 0; i < conns.length; i++) {
 			if (conns[i] != null) {
@@ -204,6 +316,29 @@ public class Stream {
 		}
 	}
 
+	/**
+	 * Called by connection when it is stopped. When all connections of stream are stopped, relay buffers are
+	 * returned to the pool as none of connections will use them any more.
+	 *
+	 * @param con
+	 */
+	public void connectionStopped(Socks5IOService con) {
+		int count = 0;
+		for (Socks5IOService conn : conns) {
+			if (conn != null) {
+				count++;
+			}
+		}
+		if (connsStopped.incrementAndGet() < count) {
+			return;
+		}
+		for (Socks5IOService conn : conns) {
+			if (conn != null) {
+				conn.releaseRelayBuffer();
+			}
+		}
+	}
+
 	/**
 	 * Returns hashCode for stream
 	 *
@@ -245,8 +380,77 @@ public class Stream {
 		return bytesTransferred;
 	}
 
+	/**
+	 * Sets number of bytes which stream may transfer before connection of specified type needs to be verified again
+	 *
+	 * @param type
+	 * @param bytes
+	 * @param validUntil time after which connection needs to be verified even if budget was not used
+	 */
+	public synchronized void setTransferBudget(Socks5ConnectionType type, long bytes, long validUntil) {
+		long transferred = getTransferredBytesTotal();
+		budgetLimits[type.ordinal()] = bytes > Long.MAX_VALUE - transferred ? Long.MAX_VALUE : transferred + bytes;
+		budgetDeadlines[type.ordinal()] = validUntil;
+
+		long limit = Long.MAX_VALUE;
+		long deadline = Long.MAX_VALUE;
+		for (int i = 0; i < budgetLimits.length; i++) {
+			if (budgetLimits[i] < 0) {
+				limit = -1;
+				break;
+			}
+			limit = Math.min(limit, budgetLimits[i]);
+			deadline = Math.min(deadline, budgetDeadlines[i]);
+		}
+		budgetDeadline = deadline;
+		budgetLimit = limit;
+	}
+
+	/**
+	 * Check if stream may transfer data without verifying its connections
+	 *
+	 * @param now current time in milliseconds
+	 *
+	 * @return
+	 */
+	public boolean isWithinTransferBudget(long now) {
+		long limit = budgetLimit;
+		return limit >= 0 && now < budgetDeadline && getTransferredBytesTotal() < limit;
+	}
+
+	/**
+	 * Check if stream transferred all bytes allowed by its budget, so one of quotas is close to be exceeded
+	 *
+	 * @return
+	 */
+	public boolean isTransferBudgetUsed() {
+		long limit = budgetLimit;
+		return limit >= 0 && getTransferredBytesTotal() >= limit;
+	}
+
+	/**
+	 * Check if transfer budget was set for all connections of stream
+	 *
+	 * @return
+	 */
+	public boolean hasTransferBudget() {
+		return budgetLimit >= 0;
+	}
+
+	private long getTransferredBytesTotal() {
+		long bytesTransferred = 0;
+
+		for (Socks5IOService con : conns) {
+			if (con != null) {
+				bytesTransferred += con.getBytesReceived();
+			}
+		}
+
+		return bytesTransferred;
+	}
+
 	@Override
 	public String toString() {
-		return sid;
+		return sid.toString();
 	}
 }
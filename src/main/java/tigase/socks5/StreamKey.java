@@ -0,0 +1,121 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Identifier of stream used as a key of registry of streams.
+ * <br>
+ * Holds 20 bytes of SHA-1 digest of <code>sid</code>, requester and target instead of its 40 characters long hex
+ * representation sent by clients as DST.ADDR. Hash code is calculated once when key is created and hex form is
+ * created only when needed, ie. for logging.
+ *
+ * @author andrzej
+ */
+public final class StreamKey {
+
+	public static final int LENGTH = 20;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final byte[] digest;
+	private final int hash;
+
+	/**
+	 * Creates key from hex representation of digest, as sent by client in DST.ADDR
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 *
+	 * @return key or null if data is not a valid hex encoded SHA-1 digest
+	 */
+	public static StreamKey fromHex(byte[] data, int offset, int length) {
+		if (length != LENGTH * 2) {
+			return null;
+		}
+		byte[] digest = new byte[LENGTH];
+		for (int i = 0; i < LENGTH; i++) {
+			int hi = Character.digit(data[offset + 2 * i], 16);
+			int lo = Character.digit(data[offset + 2 * i + 1], 16);
+			if (hi < 0 || lo < 0) {
+				return null;
+			}
+			digest[i] = (byte) ((hi << 4) | lo);
+		}
+		return new StreamKey(digest);
+	}
+
+	/**
+	 * Creates key from digest, which should not be modified later
+	 *
+	 * @param digest
+	 */
+	public StreamKey(byte[] digest) {
+		if (digest.length != LENGTH) {
+			throw new IllegalArgumentException("Invalid length of digest: " + digest.length);
+		}
+		this.digest = digest;
+		// digest is uniformly distributed, so its first bytes are good enough as hash
+		this.hash = ((digest[0] & 0xFF) << 24) | ((digest[1] & 0xFF) << 16) | ((digest[2] & 0xFF) << 8) |
+				(digest[3] & 0xFF);
+	}
+
+	/**
+	 * Puts digest of key to buffer
+	 *
+	 * @param buf
+	 */
+	public void writeTo(ByteBuffer buf) {
+		buf.put(digest);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof StreamKey)) {
+			return false;
+		}
+		StreamKey other = (StreamKey) obj;
+		return hash == other.hash && Arrays.equals(digest, other.digest);
+	}
+
+	/**
+	 * Returns hex representation of key, as used in DST.ADDR
+	 *
+	 * @return
+	 */
+	@Override
+	public String toString() {
+		char[] result = new char[LENGTH * 2];
+		for (int i = 0; i < LENGTH; i++) {
+			result[2 * i] = HEX[(digest[i] >> 4) & 0x0F];
+			result[2 * i + 1] = HEX[digest[i] & 0x0F];
+		}
+		return new String(result);
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.xml.Element;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of streamhosts of this node returned in responses to bytestreams queries.
+ * <br>
+ * Addresses and ports of streamhosts are resolved once and kept until their DNS TTL (bounded by maximal TTL of
+ * cache) passes or cache is invalidated. Expired addresses are still used while they are resolved again by
+ * a background thread, so only the first query waits for resolution. For each domain of component a list of prebuilt
+ * <code>streamhost</code> elements is kept, which is copied to a response. Number of cached domains is bounded, so
+ * queries sent to many addresses cannot make the cache grow without limit.
+ *
+ * @author andrzej
+ */
+public class StreamhostCache {
+
+	private static final Logger log = Logger.getLogger(StreamhostCache.class.getCanonicalName());
+
+	private static final int MAX_DOMAINS = 1024;
+	private static final long MIN_TTL = 1000;
+
+	private ExecutorService executor = null;
+	private final AtomicBoolean invalidated = new AtomicBoolean(false);
+	private final long maxTtl;
+	private final AtomicBoolean refreshing = new AtomicBoolean(false);
+	private volatile Streamhosts resolved = null;
+	private final Resolver resolver;
+	private final ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates cache
+	 *
+	 * @param resolver
+	 * @param maxTtl maximal time in milliseconds for which resolved streamhosts are used
+	 */
+	public StreamhostCache(Resolver resolver, long maxTtl) {
+		this.resolver = resolver;
+		this.maxTtl = maxTtl;
+	}
+
+	/**
+	 * Starts background resolution of streamhosts
+	 */
+	public synchronized void start() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "socks5-streamhost-resolver");
+				thread.setDaemon(true);
+				return thread;
+			});
+			invalidate();
+		}
+	}
+
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Returns new list of <code>streamhost</code> elements of this node for address of component
+	 *
+	 * @param domain domain of component, which needs to be one of domains served by component
+	 * @param jid address of component put in <code>streamhost</code> elements
+	 *
+	 * @return
+	 *
+	 * @throws UnknownHostException if streamhosts were never resolved and could not be resolved now
+	 */
+	public List<Element> getStreamhosts(String domain, String jid) throws UnknownHostException {
+		Streamhosts resolved = this.resolved;
+		if (resolved == null) {
+			resolved = resolveFirst();
+		} else if (resolved.expiresAt < System.currentTimeMillis()) {
+			refresh();
+		}
+
+		Template template = templates.get(domain);
+		if (template == null || template.streamhosts != resolved) {
+			template = new Template(resolved);
+			if (templates.size() < MAX_DOMAINS || templates.containsKey(domain)) {
+				templates.put(domain, template);
+			}
+		}
+
+		List<Element> children = new ArrayList<>(template.elements.size());
+		for (Element streamhost : template.elements) {
+			Element child = streamhost.clone();
+			child.setAttribute("jid", jid);
+			children.add(child);
+		}
+		return children;
+	}
+
+	/**
+	 * Resolves streamhosts again in background, ie. after change of ports or addresses
+	 */
+	public void invalidate() {
+		invalidated.set(true);
+		refresh();
+	}
+
+	private void refresh() {
+		ExecutorService executor = this.executor;
+		if (executor == null || !refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					do {
+						// invalidation during resolution may come after ports or addresses were read
+						invalidated.set(false);
+						resolve();
+					} while (invalidated.get());
+				} catch (UnknownHostException ex) {
+					log.log(Level.WARNING, "Could not resolve addresses of streamhosts: {0}", ex.getMessage());
+					Streamhosts resolved = this.resolved;
+					if (resolved != null) {
+						// stale streamhosts are used until next attempt
+						this.resolved = new Streamhosts(resolved.addresses, resolved.ports, resolved.ttl,
+														System.currentTimeMillis() + MIN_TTL);
+					}
+				} catch (RuntimeException ex) {
+					log.log(Level.WARNING, "Could not resolve addresses of streamhosts", ex);
+				} finally {
+					refreshing.set(false);
+				}
+				if (invalidated.get()) {
+					refresh();
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			refreshing.set(false);
+		}
+	}
+
+	/**
+	 * Resolves streamhosts for the first query, concurrent queries wait for a single resolution
+	 */
+	private synchronized Streamhosts resolveFirst() throws UnknownHostException {
+		Streamhosts resolved = this.resolved;
+		return resolved != null ? resolved : resolve();
+	}
+
+	private Streamhosts resolve() throws UnknownHostException {
+		Streamhosts streamhosts = resolver.resolve();
+		long ttl = streamhosts.ttl > 0 ? Math.min(streamhosts.ttl, maxTtl) : maxTtl;
+		streamhosts = new Streamhosts(streamhosts.addresses, streamhosts.ports, streamhosts.ttl,
+									  System.currentTimeMillis() + Math.max(ttl, MIN_TTL));
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "resolved streamhosts {0} with ports {1}",
+					new Object[]{streamhosts.addresses, streamhosts.ports.length});
+		}
+		this.resolved = streamhosts;
+		return streamhosts;
+	}
+
+	/**
+	 * Resolves addresses and ports of streamhosts of this node
+	 */
+	public interface Resolver {
+
+		Streamhosts resolve() throws UnknownHostException;
+
+	}
+
+	/**
+	 * Addresses and ports of streamhosts
+	 */
+	public static class Streamhosts {
+
+		private final List<String> addresses;
+		private final long expiresAt;
+		private final int[] ports;
+		private final long ttl;
+
+		/**
+		 * Creates resolved streamhosts
+		 *
+		 * @param addresses
+		 * @param ports
+		 * @param ttl time in milliseconds for which addresses are valid, 0 if not known
+		 */
+		public Streamhosts(List<String> addresses, int[] ports, long ttl) {
+			this.addresses = Collections.unmodifiableList(new ArrayList<>(addresses));
+			this.ports = ports;
+			this.ttl = ttl;
+			this.expiresAt = 0;
+		}
+
+		private Streamhosts(List<String> addresses, int[] ports, long ttl, long expiresAt) {
+			this.addresses = addresses;
+			this.ports = ports;
+			this.ttl = ttl;
+			this.expiresAt = expiresAt;
+		}
+
+		public List<String> getAddresses() {
+			return addresses;
+		}
+
+		public int[] getPorts() {
+			return ports;
+		}
+	}
+
+	private static class Template {
+
+		private final List<Element> elements = new ArrayList<>();
+		private final Streamhosts streamhosts;
+
+		private Template(Streamhosts streamhosts) {
+			this.streamhosts = streamhosts;
+			for (String addr : streamhosts.addresses) {
+				for (int port : streamhosts.ports) {
+					Element streamhost = new Element("streamhost");
+
+					streamhost.setAttribute("host", addr);
+					streamhost.setAttribute("port", String.valueOf(port));
+					elements.add(streamhost);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+/**
+ * Modes of placing streamhost of node selected for a requester in the list of advertised streamhosts
+ */
+public enum StreamhostPlacement {
+
+	/**
+	 * Streamhosts are advertised without considering which node should handle the stream
+	 */
+	none,
+	/**
+	 * Streamhosts of node selected for requester are advertised before all other streamhosts
+	 */
+	first,
+	/**
+	 * Only streamhosts of node selected for requester are advertised
+	 */
+	only
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.stats.StatisticsList;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel used to expire connections which were not authenticated, paired or used within specified
+ * time.
+ * <br>
+ * Each {@link Timeout} is a node of doubly linked list of a slot of the wheel, so scheduling and cancelling it is
+ * O(1) and does not allocate any objects. The same node may be scheduled again for the next phase of the connection,
+ * which moves it to the other slot. Single thread advances the wheel with each tick and calls
+ * {@link Timeout#expired()} for nodes which deadline passed.
+ *
+ * @author andrzej
+ */
+public class TimingWheel
+		implements Runnable {
+
+	private static final Logger log = Logger.getLogger(TimingWheel.class.getCanonicalName());
+
+	private final AtomicLong expired = new AtomicLong(0);
+	private final ReentrantLock lock = new ReentrantLock();
+	private final int mask;
+	private final String name;
+	private final AtomicLong scheduled = new AtomicLong(0);
+	private final long tickDuration;
+	private final Timeout[] wheel;
+	private volatile long now = System.currentTimeMillis();
+	private volatile boolean running = false;
+	private Thread thread = null;
+	// number of ticks since start of the wheel, guarded by lock
+	private long tick = 0;
+
+	/**
+	 * Creates wheel
+	 *
+	 * @param name name of the thread of the wheel
+	 * @param tickDuration duration of tick in milliseconds
+	 * @param wheelSize number of slots of the wheel, rounded up to power of two
+	 */
+	public TimingWheel(String name, long tickDuration, int wheelSize) {
+		this.name = name;
+		this.tickDuration = tickDuration;
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.mask = size - 1;
+		this.wheel = new Timeout[size];
+		for (int i = 0; i < size; i++) {
+			// sentinel of list of slot
+			Timeout head = new Timeout();
+			head.next = head;
+			head.prev = head;
+			wheel[i] = head;
+		}
+	}
+
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * Returns time in milliseconds cached by the wheel with each tick
+	 *
+	 * @return
+	 */
+	public long now() {
+		return now;
+	}
+
+	/**
+	 * Schedules node to expire after delay, replacing its previous deadline if it was already scheduled
+	 *
+	 * @param timeout
+	 * @param delay in milliseconds
+	 */
+	public void schedule(Timeout timeout, long delay) {
+		long ticks = Math.max(1, (delay + tickDuration - 1) / tickDuration);
+		lock.lock();
+		try {
+			unlink(timeout);
+			timeout.deadline = tick + ticks;
+			timeout.generation++;
+			Timeout head = wheel[(int) (timeout.deadline & mask)];
+			timeout.prev = head.prev;
+			timeout.next = head;
+			head.prev.next = timeout;
+			head.prev = timeout;
+		} finally {
+			lock.unlock();
+		}
+		scheduled.incrementAndGet();
+	}
+
+	/**
+	 * Removes node from the wheel if it was scheduled
+	 *
+	 * @param timeout
+	 */
+	public void cancel(Timeout timeout) {
+		lock.lock();
+		try {
+			unlink(timeout);
+			timeout.generation++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void run() {
+		long startTime = System.nanoTime();
+		long ticks = 0;
+		while (running) {
+			long sleep = TimeUnit.NANOSECONDS.toMillis(
+					startTime + TimeUnit.MILLISECONDS.toNanos((ticks + 1) * tickDuration) - System.nanoTime());
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException ex) {
+					continue;
+				}
+			}
+			ticks++;
+			now = System.currentTimeMillis();
+			expireTimeouts();
+		}
+	}
+
+	/**
+	 * Fill statistics list with statistics of the wheel
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Timeouts scheduled", scheduled.get(), Level.FINE);
+		list.add(compName, "Timeouts expired", expired.get(), Level.FINE);
+	}
+
+	private void expireTimeouts() {
+		// expired nodes are moved to a list linked by their nextExpired field
+		Timeout expiredHead = null;
+		lock.lock();
+		try {
+			tick++;
+			Timeout head = wheel[(int) (tick & mask)];
+			Timeout timeout = head.next;
+			while (timeout != head) {
+				Timeout next = timeout.next;
+				if (timeout.deadline <= tick) {
+					unlink(timeout);
+					timeout.expiredGeneration = timeout.generation;
+					timeout.nextExpired = expiredHead;
+					expiredHead = timeout;
+				}
+				timeout = next;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		while (expiredHead != null) {
+			Timeout timeout = expiredHead;
+			expiredHead = timeout.nextExpired;
+			timeout.nextExpired = null;
+			boolean current;
+			lock.lock();
+			try {
+				// node was not scheduled again after it was removed from the wheel
+				current = timeout.prev == null && timeout.expiredGeneration == timeout.generation;
+			} finally {
+				lock.unlock();
+			}
+			if (!current) {
+				continue;
+			}
+			expired.incrementAndGet();
+			try {
+				timeout.expired();
+			} catch (Exception ex) {
+				log.log(Level.WARNING, "exception while processing expired timeout " + timeout, ex);
+			}
+		}
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev == null) {
+			return;
+		}
+		timeout.prev.next = timeout.next;
+		timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+	}
+
+	/**
+	 * Node of the wheel, which may be scheduled many times
+	 */
+	public static class Timeout {
+
+		private long deadline;
+		private long expiredGeneration;
+		private long generation;
+		private Timeout next;
+		private Timeout nextExpired;
+		private Timeout prev;
+
+		/**
+		 * Called by thread of the wheel when node expired
+		 */
+		protected void expired() {
+		}
+
+	}
+}
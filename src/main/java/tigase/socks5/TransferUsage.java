@@ -0,0 +1,57 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+/**
+ * Bytes transferred in current month by user, its domain, instance and globally, as read from repository at the
+ * same time.
+ *
+ * @author andrzej
+ */
+public class TransferUsage {
+
+	private final long transferUsed;
+	private final long transferUsedByDomain;
+	private final long transferUsedByInstance;
+	private final long transferUsedByUser;
+
+	public TransferUsage(long transferUsedByUser, long transferUsedByDomain, long transferUsedByInstance,
+						 long transferUsed) {
+		this.transferUsedByUser = transferUsedByUser;
+		this.transferUsedByDomain = transferUsedByDomain;
+		this.transferUsedByInstance = transferUsedByInstance;
+		this.transferUsed = transferUsed;
+	}
+
+	public long getTransferUsed() {
+		return transferUsed;
+	}
+
+	public long getTransferUsedByDomain() {
+		return transferUsedByDomain;
+	}
+
+	public long getTransferUsedByInstance() {
+		return transferUsedByInstance;
+	}
+
+	public long getTransferUsedByUser() {
+		return transferUsedByUser;
+	}
+
+}
@@ -23,6 +23,8 @@ package tigase.socks5;
 
 import tigase.db.TigaseDBException;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * @author andrzej
  */
@@ -32,4 +34,54 @@ public interface VerifierIfc {
 
 	void updateTransfer(Socks5IOService service, boolean force) throws TigaseDBException, QuotaException;
 
+	/**
+	 * Checks if stream may be activated without blocking calling thread. Default implementation calls
+	 * {@link #isAllowed(Stream)} in calling thread.
+	 *
+	 * @param stream
+	 *
+	 * @return future completed with result of verification
+	 */
+	default CompletableFuture<Boolean> isAllowedAsync(Stream stream) {
+		CompletableFuture<Boolean> future = new CompletableFuture<>();
+		try {
+			future.complete(isAllowed(stream));
+		} catch (Exception ex) {
+			future.completeExceptionally(ex);
+		}
+		return future;
+	}
+
+	/**
+	 * Updates transfer of service without blocking calling thread. Default implementation calls
+	 * {@link #updateTransfer(Socks5IOService, boolean)} in calling thread.
+	 *
+	 * @param service
+	 * @param force
+	 *
+	 * @return future completed exceptionally with <code>QuotaException</code> if quota was exceeded
+	 */
+	default CompletableFuture<Void> updateTransferAsync(Socks5IOService service, boolean force) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		try {
+			updateTransfer(service, force);
+			future.complete(null);
+		} catch (Exception ex) {
+			future.completeExceptionally(ex);
+		}
+		return future;
+	}
+
+	/**
+	 * Called when component is started
+	 */
+	default void start() {
+	}
+
+	/**
+	 * Called when component is stopped, verifier should store all pending data
+	 */
+	default void stop() {
+	}
+
 }
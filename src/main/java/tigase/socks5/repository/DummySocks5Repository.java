@@ -23,11 +23,13 @@ import tigase.socks5.Limits;
 import tigase.socks5.Socks5ConnectionType;
 import tigase.xmpp.jid.BareJID;
 
+import java.util.Map;
+
 /**
  * @author andrzej
  */
 public class DummySocks5Repository
-		implements Socks5Repository {
+		implements Socks5Repository<DataSource> {
 
 	private final Limits limits = new Limits();
 
@@ -81,4 +83,9 @@ public class DummySocks5Repository
 			throws TigaseDBException {
 	}
 
+	@Override
+	public void updateTransferUsedByConnections(String domain, Map<Long, Long> transferred_bytes)
+			throws TigaseDBException {
+	}
+
 }
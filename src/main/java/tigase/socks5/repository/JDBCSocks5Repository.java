@@ -29,16 +29,29 @@ import tigase.db.Repository;
 import tigase.db.TigaseDBException;
 import tigase.db.UserExistsException;
 import tigase.db.util.RepositoryVersionAware;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.socks5.Limits;
 import tigase.socks5.Socks5ConnectionType;
+import tigase.socks5.TransferUsage;
+import tigase.stats.StatisticsList;
 import tigase.xmpp.jid.BareJID;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Timestamp;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,12 +63,14 @@ import java.util.logging.Logger;
 @Repository.Meta(supportedUris = {"jdbc:.*"})
 @Repository.SchemaId(id = Schema.SOCKS5_SCHEMA_ID, name = Schema.SOCKS5_SCHEMA_NAME)
 public class JDBCSocks5Repository
-		implements Socks5Repository<DataRepository>, RepositoryVersionAware {
+		implements Socks5Repository<DataRepository>, RepositoryVersionAware, UnregisterAware {
 
+	private static final String DEF_CHECK_QUOTA_QUERY = "{ call TigSocks5CheckQuota(?, ?) }";
 	private static final String DEF_CREATE_TRANSFER_USED_BY_CONNECTION_QUERY = "{ call TigSocks5CreateTransferUsed(?, ?, ?) }";
 	private static final String DEF_CREATE_UID_QUERY = "{ call TigSocks5CreateUid(?, ?) }";
 	private static final String DEF_GET_UID_QUERY = "{ call TigSocks5GetUid(?) }";
 	private static final String DEF_GLOBAL_SETTINGS = "socks5-global";
+	private static final String DEF_PURGE_CONNECTIONS_QUERY = "{ call TigSocks5PurgeConnections(?, ?) }";
 	private static final String DEF_TRANSFER_LIMITS_DOMAIN_QUERY = "{ call TigSocks5GetTransferLimits(?) }";
 	private static final String DEF_TRANSFER_LIMITS_GENERAL_QUERY = "{ call TigSocks5GetTransferLimits(?) }";
 	private static final String DEF_TRANSFER_LIMITS_USER_QUERY = "{ call TigSocks5GetTransferLimits(?) }";
@@ -65,16 +80,48 @@ public class JDBCSocks5Repository
 	private static final String DEF_TRANSFER_USED_USER_QUERY = "{ call TigSocks5TransferUsedUser(?) }";
 	private static final String DEF_UPDATE_TRANSFER_USED_BY_CONNECTION_QUERY = "{ call TigSocks5UpdateTransferUsed(?, ?) }";
 	private static final Logger log = Logger.getLogger(Socks5Repository.class.getCanonicalName());
+	// time in milliseconds for which missing UID of user is cached
+	private static final long NEGATIVE_UID_TTL = TimeUnit.MINUTES.toMillis(1);
+	// waiting longer than this for a statement is reported as contention
+	private static final long STATEMENT_CONTENTION_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
 
 	//~--- fields ---------------------------------------------------------------
 
 	protected DataRepository data_repo;
+	@ConfigField(desc = "Query to update transfer used by connection and get transfer used by user, domain, instance and globally", alias = "check-quota")
+	private String checkQuota_query = DEF_CHECK_QUOTA_QUERY;
+	@ConfigField(desc = "Number of connection entries removed by a single purge query", alias = "connections-purge-chunk-size")
+	private int connectionsPurgeChunkSize = 1000;
+	@ConfigField(desc = "Interval in milliseconds between purges of expired connection entries", alias = "connections-purge-interval")
+	private long connectionsPurgeInterval = 60 * 60 * 1000;
+	@ConfigField(desc = "Number of days for which entries of data transferred over connections are kept, 0 - forever", alias = "connections-retention-days")
+	private int connectionsRetentionDays = 0;
 	@ConfigField(desc = "Query to create an entry for data transferred over connection", alias = "create-transfer-used-by-connection")
 	private String createTransferUsedByConnection_query = DEF_CREATE_TRANSFER_USED_BY_CONNECTION_QUERY;
 	@ConfigField(desc = "Query to create UID", alias = "create-uid")
 	private String createUid_query = DEF_CREATE_UID_QUERY;
 	@ConfigField(desc = "Query to retrieve UID", alias = "get-uid")
 	private String getUid_query = DEF_GET_UID_QUERY;
+	@ConfigField(desc = "Query to remove entries of data transferred over connections before timestamp", alias = "purge-connections")
+	private String purgeConnections_query = DEF_PURGE_CONNECTIONS_QUERY;
+	private ScheduledExecutorService purgeExecutor = null;
+	private final AtomicInteger nextStripe = new AtomicInteger();
+	private final LongAdder statementAcquisitions = new LongAdder();
+	private final LongAdder statementContentions = new LongAdder();
+	private final AtomicLong statementMaxWaitNanos = new AtomicLong();
+	private final LongAdder statementWaitNanos = new LongAdder();
+	@ConfigField(desc = "Number of keys spreading queries not related to a single user over connections of data source, at most pool-size of data source is used", alias = "statement-stripes")
+	private int statementStripes = 8;
+	// keys spreading queries not related to a single user over connections of data source, which selects its
+	// connection by hash of the key; queries of a user are keyed by JID of the user instead, which already spreads
+	// users over all connections of data source and keeps queries of a single user on a single connection, in order
+	private BareJID[] stripeKeys = new BareJID[0];
+	@ConfigField(desc = "Maximal number of cached UIDs of users, 0 - disabled", alias = "uid-cache-size")
+	private int uidCacheSize = 10000;
+	// UIDs never change, so entries are only evicted when cache is full, except for users without UID
+	private final TTLCache<BareJID, Long> uidCache = new TTLCache<>(() -> uidCacheSize, () -> Long.MAX_VALUE);
+	// UIDs being loaded or created, so concurrent first transfers of a user wait for a single lookup
+	private final ConcurrentHashMap<BareJID, CompletableFuture<Long>> uidLoads = new ConcurrentHashMap<>();
 	@ConfigField(desc = "Query to get file transfer limit for domain", alias = "file-size-limit-domain")
 	private String transferLimitsDomain_query = DEF_TRANSFER_LIMITS_DOMAIN_QUERY;
 	@ConfigField(desc = "Query to get file transfer limit", alias = "file-size-limit-general")
@@ -103,7 +150,9 @@ public class JDBCSocks5Repository
 			PreparedStatement createTransferUsedByConnection = data_repo.getPreparedStatement(user,
 																							  createTransferUsedByConnection_query);
 
+			long waitStart = System.nanoTime();
 			synchronized (createTransferUsedByConnection) {
+				statementAcquired(waitStart);
 				try {
 					createTransferUsedByConnection.setLong(1, uid);
 					createTransferUsedByConnection.setInt(2, (type == Socks5ConnectionType.Requester) ? 0 : 1);
@@ -136,6 +185,12 @@ public class JDBCSocks5Repository
 
 	@Override
 	public void setDataSource(DataRepository data_repo) {
+		this.data_repo = data_repo;
+		BareJID[] stripeKeys = new BareJID[Math.max(statementStripes, 1)];
+		for (int i = 0; i < stripeKeys.length; i++) {
+			stripeKeys[i] = BareJID.bareJIDInstanceNS("socks5-stripe-" + i);
+		}
+		this.stripeKeys = stripeKeys;
 		try {
 			data_repo.initPreparedStatement(createUid_query, createUid_query);
 			data_repo.initPreparedStatement(getUid_query, getUid_query);
@@ -148,9 +203,110 @@ public class JDBCSocks5Repository
 			data_repo.initPreparedStatement(transferUsedUser_query, transferUsedUser_query);
 			data_repo.initPreparedStatement(createTransferUsedByConnection_query, createTransferUsedByConnection_query);
 			data_repo.initPreparedStatement(updateTransferUsedByConnection_query, updateTransferUsedByConnection_query);
+			data_repo.initPreparedStatement(checkQuota_query, checkQuota_query);
+			if (connectionsRetentionDays > 0) {
+				data_repo.initPreparedStatement(purgeConnections_query, purgeConnections_query);
+			}
 		} catch (Exception ex) {
 			throw new RuntimeException(ex.getMessage(), ex);
 		}
+		startPurge();
+	}
+
+	@Override
+	public TransferUsage checkQuota(BareJID user_id, long stream_id, long transferred_bytes, String instance)
+			throws TigaseDBException {
+		TransferUsage usage = null;
+
+		try {
+			ResultSet rs = null;
+			PreparedStatement checkQuota = data_repo.getPreparedStatement(user_id, checkQuota_query);
+
+			long waitStart = System.nanoTime();
+			synchronized (checkQuota) {
+				statementAcquired(waitStart);
+				try {
+					checkQuota.setLong(1, stream_id);
+					checkQuota.setLong(2, transferred_bytes);
+					rs = checkQuota.executeQuery();
+					if (rs.next()) {
+						usage = new TransferUsage(rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getLong(4));
+					}
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+		} catch (SQLException e) {
+			throw new TigaseDBException("Problem accessing repository.", e);
+		}
+
+		if (usage == null) {
+			// there is no such connection, so usage is read separately
+			return Socks5Repository.super.checkQuota(user_id, stream_id, transferred_bytes, instance);
+		}
+		return usage;
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		// values are added to ones of other repositories of the component
+		long acquisitions = statementAcquisitions.sum();
+		long contentions = statementContentions.sum();
+		long waitMillis = TimeUnit.NANOSECONDS.toMillis(statementWaitNanos.sum());
+		long maxWaitMillis = TimeUnit.NANOSECONDS.toMillis(statementMaxWaitNanos.get());
+		list.add(compName, "Repository statement acquisitions",
+				 list.getValue(compName, "Repository statement acquisitions", 0L) + acquisitions, Level.FINE);
+		list.add(compName, "Repository statement contentions",
+				 list.getValue(compName, "Repository statement contentions", 0L) + contentions, Level.FINE);
+		list.add(compName, "Repository statement wait time ms",
+				 list.getValue(compName, "Repository statement wait time ms", 0L) + waitMillis, Level.FINE);
+		list.add(compName, "Repository statement max wait time ms",
+				 Math.max(list.getValue(compName, "Repository statement max wait time ms", 0L), maxWaitMillis),
+				 Level.FINE);
+	}
+
+	@Override
+	public void beforeUnregister() {
+		stopPurge();
+	}
+
+	/**
+	 * Removes entries of data transferred over connections which were not updated since timestamp. Monthly usage
+	 * counters are not modified.
+	 *
+	 * @param before
+	 * @param limit maximal number of entries to remove
+	 *
+	 * @return number of removed entries
+	 *
+	 * @throws TigaseDBException
+	 */
+	public int purgeTransferUsedByConnections(Timestamp before, int limit) throws TigaseDBException {
+		int removed = 0;
+
+		try {
+			ResultSet rs = null;
+			PreparedStatement purgeConnections = data_repo.getPreparedStatement(stripeKey(), purgeConnections_query);
+
+			long waitStart = System.nanoTime();
+			synchronized (purgeConnections) {
+				statementAcquired(waitStart);
+				try {
+					purgeConnections.setTimestamp(1, before);
+					purgeConnections.setInt(2, limit);
+					rs = purgeConnections.executeQuery();
+					if (rs.next()) {
+						removed = rs.getInt(1);
+					}
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+		} catch (SQLException e) {
+			throw new TigaseDBException("Problem accessing repository.", e);
+		}
+
+		return removed;
 	}
 
 	@Override
@@ -160,7 +316,9 @@ public class JDBCSocks5Repository
 			PreparedStatement updateTransferUsedByConnection = data_repo.getPreparedStatement(user_id,
 																							  updateTransferUsedByConnection_query);
 
+			long waitStart = System.nanoTime();
 			synchronized (updateTransferUsedByConnection) {
+				statementAcquired(waitStart);
 				updateTransferUsedByConnection.setLong(1, stream_id);
 				updateTransferUsedByConnection.setLong(2, transferred_bytes);
 				updateTransferUsedByConnection.executeUpdate();
@@ -172,15 +330,48 @@ public class JDBCSocks5Repository
 		}
 	}
 
+	@Override
+	public void updateTransferUsedByConnections(String domain, Map<Long, Long> transferred_bytes)
+			throws TigaseDBException {
+		if (transferred_bytes.isEmpty()) {
+			return;
+		}
+
+		try {
+			PreparedStatement updateTransferUsedByConnection = data_repo.getPreparedStatement(stripeKey(domain),
+																							  updateTransferUsedByConnection_query);
+
+			long waitStart = System.nanoTime();
+			synchronized (updateTransferUsedByConnection) {
+				statementAcquired(waitStart);
+				try {
+					for (Map.Entry<Long, Long> e : transferred_bytes.entrySet()) {
+						updateTransferUsedByConnection.setLong(1, e.getKey());
+						updateTransferUsedByConnection.setLong(2, e.getValue());
+						updateTransferUsedByConnection.addBatch();
+					}
+					updateTransferUsedByConnection.executeBatch();
+				} finally {
+					updateTransferUsedByConnection.clearBatch();
+				}
+			}
+		} catch (SQLException e) {
+			throw new TigaseDBException("Problem accessing repository.", e);
+		}
+	}
+
 	@Override
 	public Limits getTransferLimits() throws TigaseDBException {
 		Limits limits = new Limits();
 
 		try {
 			ResultSet rs = null;
-			PreparedStatement transferLimitsGeneral = data_repo.getPreparedStatement(null, transferLimitsGeneral_query);
+			PreparedStatement transferLimitsGeneral = data_repo.getPreparedStatement(stripeKey(),
+						transferLimitsGeneral_query);
 
+			long waitStart = System.nanoTime();
 			synchronized (transferLimitsGeneral) {
+				statementAcquired(waitStart);
 				try {
 					transferLimitsGeneral.setString(1, DEF_GLOBAL_SETTINGS);
 					rs = transferLimitsGeneral.executeQuery();
@@ -208,9 +399,12 @@ public class JDBCSocks5Repository
 
 		try {
 			ResultSet rs = null;
-			PreparedStatement transferLimitsDomain = data_repo.getPreparedStatement(null, transferLimitsDomain_query);
+			PreparedStatement transferLimitsDomain = data_repo.getPreparedStatement(stripeKey(domain),
+						transferLimitsDomain_query);
 
+			long waitStart = System.nanoTime();
 			synchronized (transferLimitsDomain) {
+				statementAcquired(waitStart);
 				try {
 					transferLimitsDomain.setString(1, domain);
 					rs = transferLimitsDomain.executeQuery();
@@ -240,7 +434,9 @@ public class JDBCSocks5Repository
 			ResultSet rs = null;
 			PreparedStatement transferLimitsUser = data_repo.getPreparedStatement(user, transferLimitsUser_query);
 
+			long waitStart = System.nanoTime();
 			synchronized (transferLimitsUser) {
+				statementAcquired(waitStart);
 				try {
 					transferLimitsUser.setString(1, user.toString());
 					rs = transferLimitsUser.executeQuery();
@@ -269,9 +465,12 @@ public class JDBCSocks5Repository
 
 		try {
 			ResultSet rs = null;
-			PreparedStatement transferUsedGeneral = data_repo.getPreparedStatement(null, transferUsedGeneral_query);
+			PreparedStatement transferUsedGeneral = data_repo.getPreparedStatement(stripeKey(),
+						transferUsedGeneral_query);
 
+			long waitStart = System.nanoTime();
 			synchronized (transferUsedGeneral) {
+				statementAcquired(waitStart);
 				try {
 					rs = transferUsedGeneral.executeQuery();
 					if (rs.next()) {
@@ -297,9 +496,12 @@ public class JDBCSocks5Repository
 
 		try {
 			ResultSet rs = null;
-			PreparedStatement transferUsedDomain = data_repo.getPreparedStatement(null, transferUsedDomain_query);
+			PreparedStatement transferUsedDomain = data_repo.getPreparedStatement(stripeKey(domain),
+						transferUsedDomain_query);
 
+			long waitStart = System.nanoTime();
 			synchronized (transferUsedDomain) {
+				statementAcquired(waitStart);
 				try {
 					transferUsedDomain.setString(1, domain);
 					rs = transferUsedDomain.executeQuery();
@@ -325,9 +527,12 @@ public class JDBCSocks5Repository
 
 		try {
 			ResultSet rs = null;
-			PreparedStatement transferUsedInstance = data_repo.getPreparedStatement(null, transferUsedInstance_query);
+			PreparedStatement transferUsedInstance = data_repo.getPreparedStatement(stripeKey(),
+						transferUsedInstance_query);
 
+			long waitStart = System.nanoTime();
 			synchronized (transferUsedInstance) {
+				statementAcquired(waitStart);
 				try {
 					transferUsedInstance.setString(1, instance);
 					rs = transferUsedInstance.executeQuery();
@@ -356,7 +561,9 @@ public class JDBCSocks5Repository
 			ResultSet rs = null;
 			PreparedStatement transferUsedUser = data_repo.getPreparedStatement(user, transferUsedUser_query);
 
+			long waitStart = System.nanoTime();
 			synchronized (transferUsedUser) {
+				statementAcquired(waitStart);
 				try {
 					transferUsedUser.setLong(1, uid);
 					rs = transferUsedUser.executeQuery();
@@ -390,7 +597,9 @@ public class JDBCSocks5Repository
 			ResultSet rs = null;
 			PreparedStatement create_uid = data_repo.getPreparedStatement(user, createUid_query);
 
+			long waitStart = System.nanoTime();
 			synchronized (create_uid) {
+				statementAcquired(waitStart);
 				try {
 					create_uid.setString(1, user.toString());
 					create_uid.setString(2, user.getDomain());
@@ -420,6 +629,67 @@ public class JDBCSocks5Repository
 		return uid;
 	}
 
+	private void statementAcquired(long waitStart) {
+		long wait = System.nanoTime() - waitStart;
+		statementAcquisitions.increment();
+		if (wait > STATEMENT_CONTENTION_NANOS) {
+			statementContentions.increment();
+			statementWaitNanos.add(wait);
+			statementMaxWaitNanos.accumulateAndGet(wait, Math::max);
+		}
+	}
+
+	private BareJID stripeKey() {
+		BareJID[] stripeKeys = this.stripeKeys;
+		return stripeKeys[Math.floorMod(nextStripe.getAndIncrement(), stripeKeys.length)];
+	}
+
+	private BareJID stripeKey(String domain) {
+		BareJID[] stripeKeys = this.stripeKeys;
+		if (domain == null) {
+			return stripeKey();
+		}
+		return stripeKeys[Math.floorMod(domain.hashCode(), stripeKeys.length)];
+	}
+
+	private void purgeExpiredConnections() {
+		Timestamp before = new Timestamp(
+				System.currentTimeMillis() - TimeUnit.DAYS.toMillis(connectionsRetentionDays));
+		long removed = 0;
+		try {
+			int chunk;
+			do {
+				chunk = purgeTransferUsedByConnections(before, connectionsPurgeChunkSize);
+				removed += chunk;
+			} while (chunk >= connectionsPurgeChunkSize && !Thread.currentThread().isInterrupted());
+		} catch (TigaseDBException ex) {
+			log.log(Level.WARNING, "Could not purge expired connection entries", ex);
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "removed {0} connection entries not updated since {1}", new Object[]{removed, before});
+		}
+	}
+
+	private synchronized void startPurge() {
+		if (connectionsRetentionDays <= 0 || connectionsPurgeChunkSize <= 0 || purgeExecutor != null) {
+			return;
+		}
+		purgeExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "socks5-connections-purge");
+			thread.setDaemon(true);
+			return thread;
+		});
+		purgeExecutor.scheduleWithFixedDelay(this::purgeExpiredConnections, 0, connectionsPurgeInterval,
+											 TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void stopPurge() {
+		if (purgeExecutor != null) {
+			purgeExecutor.shutdownNow();
+			purgeExecutor = null;
+		}
+	}
+
 	private String getParamWithDef(Map<String, String> params, String key, String defValue) {
 		if (params == null) {
 			return defValue;
@@ -447,27 +717,72 @@ public class JDBCSocks5Repository
 			return 0;
 		}
 
+		Long cached = uidCache.get(user);
+		if (cached != null) {
+			return cached;
+		}
+
+		CompletableFuture<Long> future = new CompletableFuture<>();
+		CompletableFuture<Long> loading = uidLoads.putIfAbsent(user, future);
+		if (loading != null) {
+			try {
+				return loading.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new TigaseDBException("Interrupted while waiting for UID of " + user, ex);
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof TigaseDBException) {
+					throw (TigaseDBException) ex.getCause();
+				}
+				throw new TigaseDBException("Problem accessing repository.", ex.getCause());
+			}
+		}
+
+		try {
+			long uid = loadUID(user);
+			if (uid == 0) {
+				try {
+					uid = createUID(user);
+				} catch (UserExistsException ex) {
+					// created in the meantime by other cluster node
+					uid = loadUID(user);
+					if (uid == 0) {
+						throw ex;
+					}
+				}
+			}
+			// user which UID could not be created is retried only after a while
+			uidCache.put(user, uid, uid != 0 ? Long.MAX_VALUE : NEGATIVE_UID_TTL);
+			future.complete(uid);
+			return uid;
+		} catch (TigaseDBException | RuntimeException ex) {
+			future.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			uidLoads.remove(user, future);
+		}
+	}
+
+	private long loadUID(BareJID user) throws TigaseDBException {
 		long uid = 0;
 
 		try {
 			ResultSet rs = null;
 			PreparedStatement get_uid = data_repo.getPreparedStatement(user, getUid_query);
 
+			long waitStart = System.nanoTime();
 			synchronized (get_uid) {
+				statementAcquired(waitStart);
 				try {
 					get_uid.setString(1, user.toString());
 					rs = get_uid.executeQuery();
 					if (rs.next()) {
 						uid = rs.getLong(1);
-					} else {
-						return createUID(user);
 					}
 				} finally {
 					data_repo.release(null, rs);
 				}
 			}
-		} catch (SQLIntegrityConstraintViolationException e) {
-			throw new UserExistsException("Error while adding user to repository, user exists?", e);
 		} catch (SQLException e) {
 			throw new TigaseDBException("Problem accessing repository.", e);
 		}
@@ -22,8 +22,12 @@ import tigase.db.DataSourceAware;
 import tigase.db.TigaseDBException;
 import tigase.socks5.Limits;
 import tigase.socks5.Socks5ConnectionType;
+import tigase.socks5.TransferUsage;
+import tigase.stats.StatisticsList;
 import tigase.xmpp.jid.BareJID;
 
+import java.util.Map;
+
 /**
  * @author andrzej
  */
@@ -49,4 +53,57 @@ public interface Socks5Repository<DS extends DataSource>
 
 	void updateTransferUsedByConnection(BareJID user_id, long stream_id, long transferred_bytes)
 			throws TigaseDBException;
+
+	void updateTransferUsedByConnections(String domain, Map<Long, Long> transferred_bytes) throws TigaseDBException;
+
+	/**
+	 * Updates transfer used by a single connection and returns transfer used in current month by user, its domain,
+	 * instance and globally, including updated value.
+	 *
+	 * @param user_id
+	 * @param stream_id
+	 * @param transferred_bytes
+	 * @param instance
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 */
+	default TransferUsage checkQuota(BareJID user_id, long stream_id, long transferred_bytes, String instance)
+			throws TigaseDBException {
+		updateTransferUsedByConnection(user_id, stream_id, transferred_bytes);
+		return new TransferUsage(getTransferUsedByUser(user_id), getTransferUsedByDomain(user_id.getDomain()),
+								 getTransferUsedByInstance(instance), getTransferUsed());
+	}
+
+	/**
+	 * Drops all cached transfer limits
+	 */
+	default void invalidateTransferLimits() {
+	}
+
+	/**
+	 * Drops cached transfer limits of domain and its users
+	 *
+	 * @param domain
+	 */
+	default void invalidateTransferLimits(String domain) {
+	}
+
+	/**
+	 * Drops cached transfer limits of user
+	 *
+	 * @param user_id
+	 */
+	default void invalidateTransferLimits(BareJID user_id) {
+	}
+
+	/**
+	 * Fill statistics list with statistics of the repository
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	default void getStatistics(String compName, StatisticsList list) {
+	}
 }
@@ -24,14 +24,24 @@ import tigase.db.TigaseDBException;
 import tigase.db.beans.MDRepositoryBean;
 import tigase.db.beans.MDRepositoryBeanWithStatistics;
 import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.osgi.ModulesManagerImpl;
 import tigase.socks5.Limits;
 import tigase.socks5.Socks5ConnectionType;
 import tigase.socks5.Socks5ProxyComponent;
+import tigase.socks5.TransferUsage;
+import tigase.stats.StatisticsList;
 import tigase.xmpp.jid.BareJID;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 /**
  * Created by andrzej on 06.03.2017.
@@ -39,9 +49,36 @@ import java.util.logging.Logger;
 @Bean(name = "repository", parent = Socks5ProxyComponent.class, active = true)
 public class Socks5RepositoryMDBean
 		extends MDRepositoryBeanWithStatistics<Socks5Repository>
-		implements Socks5Repository {
+		implements Socks5Repository<DataSource>, UnregisterAware {
 
 	private static final Logger log = Logger.getLogger(Socks5RepositoryMDBean.class.getCanonicalName());
+	private static final int AGGREGATE_QUERY_QUEUE_PER_THREAD = 16;
+	private static final Object GLOBAL_LIMITS_KEY = new Object();
+
+	@ConfigField(desc = "Maximal number of cached transfer limits", alias = "limits-cache-size")
+	private int limitsCacheSize = 10000;
+	@ConfigField(desc = "Time in milliseconds for which transfer limits are cached, 0 - disabled", alias = "limits-cache-ttl")
+	private long limitsCacheTtl = TimeUnit.MINUTES.toMillis(5);
+	// keys are BareJID for users, String for domains and GLOBAL_LIMITS_KEY for global limits
+	private final TTLCache<Object, Limits> limitsCache = new TTLCache<>(() -> limitsCacheSize, () -> limitsCacheTtl);
+	@ConfigField(desc = "Number of threads querying repositories in parallel for transfer used by all domains", alias = "aggregate-query-threads")
+	private int aggregateQueryThreads = 8;
+	@ConfigField(desc = "Time in milliseconds to wait for transfer used from a repository before last value is used", alias = "aggregate-query-timeout")
+	private long aggregateQueryTimeout = 1000;
+	private ThreadPoolExecutor aggregateQueryExecutor = null;
+	private final AggregatedUsage transferUsed = new AggregatedUsage();
+	private final ConcurrentHashMap<String, AggregatedUsage> transferUsedByInstance = new ConcurrentHashMap<>();
+
+	@Override
+	public void beforeUnregister() {
+		super.beforeUnregister();
+		synchronized (this) {
+			if (aggregateQueryExecutor != null) {
+				aggregateQueryExecutor.shutdownNow();
+				aggregateQueryExecutor = null;
+			}
+		}
+	}
 
 	@Override
 	public Class<?> getDefaultBeanClass() {
@@ -50,41 +87,70 @@ public class Socks5RepositoryMDBean
 
 	@Override
 	public Limits getTransferLimits() throws TigaseDBException {
-		return getRepository("default").getTransferLimits();
+		Limits limits = limitsCache.get(GLOBAL_LIMITS_KEY);
+		if (limits == null) {
+			limits = getRepository("default").getTransferLimits();
+			limitsCache.put(GLOBAL_LIMITS_KEY, new Limits(limits));
+			return limits;
+		}
+		// limits are modified by verifiers, so cached instance is never returned
+		return new Limits(limits);
 	}
 
 	@Override
 	public Limits getTransferLimits(String domain) throws TigaseDBException {
-		return getRepository(domain).getTransferLimits(domain);
+		Limits limits = limitsCache.get(domain);
+		if (limits == null) {
+			limits = getRepository(domain).getTransferLimits(domain);
+			limitsCache.put(domain, new Limits(limits));
+			return limits;
+		}
+		return new Limits(limits);
 	}
 
 	@Override
 	public Limits getTransferLimits(BareJID user_id) throws TigaseDBException {
-		return getRepository(user_id.getDomain()).getTransferLimits();
+		Limits limits = limitsCache.get(user_id);
+		if (limits == null) {
+			limits = getRepository(user_id.getDomain()).getTransferLimits(user_id);
+			limitsCache.put(user_id, new Limits(limits));
+			return limits;
+		}
+		return new Limits(limits);
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		super.getStatistics(compName, list);
+		repositoriesStream().forEach(repo -> repo.getStatistics(compName, list));
+	}
+
+	@Override
+	public void invalidateTransferLimits() {
+		limitsCache.clear();
+	}
+
+	@Override
+	public void invalidateTransferLimits(String domain) {
+		limitsCache.remove(domain);
+		limitsCache.removeIf(key -> key instanceof BareJID && domain.equals(((BareJID) key).getDomain()));
+	}
+
+	@Override
+	public void invalidateTransferLimits(BareJID user_id) {
+		limitsCache.remove(user_id);
 	}
 
 	@Override
 	public long getTransferUsed() throws TigaseDBException {
-		return repositoriesStream().mapToLong(repo -> {
-			try {
-				return repo.getTransferUsed();
-			} catch (TigaseDBException ex) {
-				log.log(Level.WARNING, "Could not retrieve transfer used", ex);
-				return 0;
-			}
-		}).sum();
+		return sumOverRepositories("transfer used", transferUsed, Socks5Repository::getTransferUsed);
 	}
 
 	@Override
 	public long getTransferUsedByInstance(String instance) throws TigaseDBException {
-		return repositoriesStream().mapToLong(repo -> {
-			try {
-				return repo.getTransferUsedByInstance(instance);
-			} catch (TigaseDBException ex) {
-				log.log(Level.WARNING, "Could not retrieve transfer used", ex);
-				return 0;
-			}
-		}).sum();
+		return sumOverRepositories("transfer used by " + instance,
+								   transferUsedByInstance.computeIfAbsent(instance, key -> new AggregatedUsage()),
+								   repo -> repo.getTransferUsedByInstance(instance));
 	}
 
 	@Override
@@ -109,16 +175,167 @@ public class Socks5RepositoryMDBean
 		getRepository(user_id.getDomain()).updateTransferUsedByConnection(user_id, stream_id, transferred_bytes);
 	}
 
+	@Override
+	public void updateTransferUsedByConnections(String domain, Map<Long, Long> transferred_bytes)
+			throws TigaseDBException {
+		getRepository(domain).updateTransferUsedByConnections(domain, transferred_bytes);
+	}
+
+	@Override
+	public TransferUsage checkQuota(BareJID user_id, long stream_id, long transferred_bytes, String instance)
+			throws TigaseDBException {
+		TransferUsage usage = getRepository(user_id.getDomain()).checkQuota(user_id, stream_id, transferred_bytes,
+																			instance);
+		if (repositoriesStream().count() > 1) {
+			// usage of instance and global usage are stored in all repositories
+			return new TransferUsage(usage.getTransferUsedByUser(), usage.getTransferUsedByDomain(),
+									 getTransferUsedByInstance(instance), getTransferUsed());
+		}
+		return usage;
+	}
+
 	@Override
 	public void setDataSource(DataSource dataSource) {
 		// nothing to do here...
 	}
 
+	/**
+	 * Queries all repositories in parallel and sums results. If a repository fails or does not respond within
+	 * timeout, last value retrieved from it is used instead. Query of a repository which is still running after
+	 * previous call is awaited again instead of starting a new one, so a hung repository holds at most one thread.
+	 *
+	 * @param name
+	 * @param usage
+	 * @param query
+	 *
+	 * @return
+	 */
+	private long sumOverRepositories(String name, AggregatedUsage usage, UsageQuery query) {
+		List<Socks5Repository> repositories = repositoriesStream().collect(Collectors.toList());
+		Map<Socks5Repository, Long> lastValues = usage.lastValues;
+		lastValues.keySet().retainAll(repositories);
+		usage.inFlight.keySet().retainAll(repositories);
+
+		Executor executor = repositories.size() > 1 ? getAggregateQueryExecutor() : null;
+		if (executor == null) {
+			long sum = 0;
+			for (Socks5Repository repo : repositories) {
+				sum += query(name, repo, lastValues, query);
+			}
+			return sum;
+		}
+
+		Map<Socks5Repository, Future<Long>> futures = new HashMap<>();
+		for (Socks5Repository repo : repositories) {
+			Future<Long> future = usage.inFlight.compute(repo, (key, running) -> {
+				if (running != null && !running.isDone()) {
+					return running;
+				}
+				FutureTask<Long> task = new FutureTask<>(() -> query.query(repo));
+				try {
+					executor.execute(task);
+				} catch (RejectedExecutionException ex) {
+					return null;
+				}
+				return task;
+			});
+			if (future == null) {
+				log.log(Level.WARNING, "Too many pending queries for " + name + ", using last known value");
+				continue;
+			}
+			futures.put(repo, future);
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(aggregateQueryTimeout);
+		long sum = 0;
+		for (Socks5Repository repo : repositories) {
+			if (!futures.containsKey(repo)) {
+				sum += lastValues.getOrDefault(repo, 0L);
+			}
+		}
+		for (Map.Entry<Socks5Repository, Future<Long>> e : futures.entrySet()) {
+			Socks5Repository repo = e.getKey();
+			try {
+				long value = e.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				lastValues.put(repo, value);
+				sum += value;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				sum += lastValues.getOrDefault(repo, 0L);
+			} catch (ExecutionException ex) {
+				log.log(Level.WARNING, "Could not retrieve " + name + ", using last known value", ex.getCause());
+				sum += lastValues.getOrDefault(repo, 0L);
+			} catch (TimeoutException ex) {
+				// query is left running and awaited again by next call instead of starting a new one
+				log.log(Level.WARNING, "Timeout while retrieving " + name + ", using last known value");
+				sum += lastValues.getOrDefault(repo, 0L);
+			}
+		}
+		return sum;
+	}
+
+	private long query(String name, Socks5Repository repo, Map<Socks5Repository, Long> lastValues,
+					   UsageQuery query) {
+		try {
+			long value = query.query(repo);
+			lastValues.put(repo, value);
+			return value;
+		} catch (TigaseDBException ex) {
+			log.log(Level.WARNING, "Could not retrieve " + name + ", using last known value", ex);
+			return lastValues.getOrDefault(repo, 0L);
+		}
+	}
+
+	private synchronized Executor getAggregateQueryExecutor() {
+		if (aggregateQueryThreads <= 0) {
+			return null;
+		}
+		if (aggregateQueryExecutor == null) {
+			AtomicInteger threadNo = new AtomicInteger(0);
+			aggregateQueryExecutor = new ThreadPoolExecutor(aggregateQueryThreads, aggregateQueryThreads, 60,
+															TimeUnit.SECONDS, new ArrayBlockingQueue<>(
+					aggregateQueryThreads * AGGREGATE_QUERY_QUEUE_PER_THREAD), r -> {
+				Thread thread = new Thread(r, "socks5-repository-query-" + threadNo.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			});
+			// threads are not kept when there is nothing to query
+			aggregateQueryExecutor.allowCoreThreadTimeOut(true);
+		} else if (aggregateQueryExecutor.getMaximumPoolSize() != aggregateQueryThreads) {
+			if (aggregateQueryThreads > aggregateQueryExecutor.getMaximumPoolSize()) {
+				aggregateQueryExecutor.setMaximumPoolSize(aggregateQueryThreads);
+				aggregateQueryExecutor.setCorePoolSize(aggregateQueryThreads);
+			} else {
+				aggregateQueryExecutor.setCorePoolSize(aggregateQueryThreads);
+				aggregateQueryExecutor.setMaximumPoolSize(aggregateQueryThreads);
+			}
+		}
+		return aggregateQueryExecutor;
+	}
+
 	@Override
 	protected Class<? extends Socks5Repository> findClassForDataSource(DataSource dataSource) throws DBInitException {
 		return DataSourceHelper.getDefaultClass(Socks5Repository.class, dataSource.getResourceUri());
 	}
 
+	/**
+	 * State of aggregated query of all repositories
+	 */
+	private static class AggregatedUsage {
+
+		// queries which did not complete within timeout, awaited again by next aggregation
+		private final ConcurrentHashMap<Socks5Repository, Future<Long>> inFlight = new ConcurrentHashMap<>();
+		// last values successfully retrieved from each repository, used when repository fails or is too slow
+		private final ConcurrentHashMap<Socks5Repository, Long> lastValues = new ConcurrentHashMap<>();
+
+	}
+
+	private interface UsageQuery {
+
+		long query(Socks5Repository repo) throws TigaseDBException;
+
+	}
+
 	public static class Socks5RepositoryConfigBean
 			extends MDRepositoryBean.MDRepositoryConfigBean<Socks5Repository> {
 
@@ -0,0 +1,201 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Bounded cache which entries expire after specified time. If cache is full, least recently used entries are evicted.
+ * <br>
+ * Entries are kept in a concurrent map, so reads do not take any lock. Each entry remembers time when it was used
+ * for the last time and when cache grows over its maximal size, a single thread evicts a batch of least recently used
+ * entries, so recency is approximate and cache may briefly exceed its size, up to twice, while other thread is
+ * evicting.
+ * <br>
+ * Maximal size and time to live are read from suppliers each time they are needed, so cache follows changes of
+ * configuration of its owner.
+ *
+ * @author andrzej
+ */
+public class TTLCache<K, V> {
+
+	// part of maximal size evicted at once, so eviction is not done on every insertion to a full cache
+	private static final int EVICTION_BATCH_DIVISOR = 16;
+
+	private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final IntSupplier maxSize;
+	private final LongSupplier ttl;
+
+	/**
+	 * Creates cache
+	 *
+	 * @param maxSize supplier of maximal number of entries
+	 * @param ttl supplier of time in milliseconds after which entry expires, 0 disables caching
+	 */
+	public TTLCache(IntSupplier maxSize, LongSupplier ttl) {
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Returns cached value or null if there is no value or it expired
+	 *
+	 * @param key
+	 *
+	 * @return
+	 */
+	public V get(K key) {
+		Entry<V> entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expiresAt <= System.currentTimeMillis()) {
+			entries.remove(key, entry);
+			return null;
+		}
+		entry.accessed = System.nanoTime();
+		return entry.value;
+	}
+
+	/**
+	 * Stores value in cache, evicting least recently used entries if cache is full
+	 *
+	 * @param key
+	 * @param value
+	 */
+	public void put(K key, V value) {
+		put(key, value, this.ttl.getAsLong());
+	}
+
+	/**
+	 * Stores value in cache for specified time, evicting least recently used entries if cache is full
+	 *
+	 * @param key
+	 * @param value
+	 * @param ttl time in milliseconds after which entry expires
+	 */
+	public void put(K key, V value, long ttl) {
+		int maxSize = this.maxSize.getAsInt();
+		if (ttl <= 0 || maxSize <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		entries.put(key, new Entry<>(value, ttl > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttl));
+		if (entries.size() > maxSize) {
+			evict(maxSize);
+		}
+	}
+
+	/**
+	 * Removes entry from cache
+	 *
+	 * @param key
+	 */
+	public void remove(K key) {
+		entries.remove(key);
+	}
+
+	/**
+	 * Removes all entries with keys matching predicate
+	 *
+	 * @param predicate
+	 */
+	public void removeIf(Predicate<K> predicate) {
+		entries.keySet().removeIf(predicate);
+	}
+
+	/**
+	 * Removes all entries from cache
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	private void evict(int maxSize) {
+		// other thread is already evicting entries, unless cache grew too much in the meantime
+		if (entries.size() > 2 * maxSize) {
+			evictionLock.lock();
+		} else if (!evictionLock.tryLock()) {
+			return;
+		}
+		try {
+			long now = System.currentTimeMillis();
+			List<Candidate<K, V>> candidates = new ArrayList<>(entries.size());
+			for (Map.Entry<K, Entry<V>> e : entries.entrySet()) {
+				if (e.getValue().expiresAt <= now) {
+					entries.remove(e.getKey(), e.getValue());
+				} else {
+					candidates.add(new Candidate<>(e.getKey(), e.getValue()));
+				}
+			}
+			int excess = entries.size() - maxSize;
+			if (excess <= 0) {
+				return;
+			}
+			int batch = Math.min(candidates.size(), excess + maxSize / EVICTION_BATCH_DIVISOR);
+			candidates.sort((c1, c2) -> Long.compare(c1.accessed, c2.accessed));
+			for (int i = 0; i < batch; i++) {
+				Candidate<K, V> candidate = candidates.get(i);
+				entries.remove(candidate.key, candidate.entry);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Entry considered for eviction with time of its last use captured before sorting
+	 */
+	private static class Candidate<K, V> {
+
+		private final long accessed;
+		private final Entry<V> entry;
+		private final K key;
+
+		private Candidate(K key, Entry<V> entry) {
+			this.key = key;
+			this.entry = entry;
+			this.accessed = entry.accessed;
+		}
+	}
+
+	private static class Entry<V> {
+
+		private final long expiresAt;
+		private final V value;
+		// time of last use, read when least recently used entries are evicted
+		private volatile long accessed = System.nanoTime();
+
+		private Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
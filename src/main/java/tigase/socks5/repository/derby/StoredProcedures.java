@@ -28,6 +28,43 @@ import java.sql.*;
  */
 public class StoredProcedures {
 
+	private static final String CURRENT_PERIOD = "(YEAR(CURRENT_DATE) * 100 + MONTH(CURRENT_DATE))";
+	private static final String DUPLICATE_KEY_SQL_STATE = "23505";
+	private static final int INSTANCE_USAGE_SHARDS = 16;
+
+	public static void tigSocks5CheckQuota(long cid, long transferredBytes, ResultSet[] data) throws SQLException {
+		tigSocks5UpdateTransferUsed(cid, transferredBytes);
+
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"select coalesce((select uu.transferred_bytes from tig_socks5_usage_users uu " +
+							"where uu.uid = c.uid and uu.period = " + CURRENT_PERIOD + "), 0), " +
+							"coalesce((select ud.transferred_bytes from tig_socks5_usage_domains ud " +
+							"where ud.\"domain\" = u.\"domain\" and ud.period = " + CURRENT_PERIOD + "), 0), " +
+							"coalesce((select sum(ui.transferred_bytes) from tig_socks5_usage_instances ui " +
+							"where ui.period = " + CURRENT_PERIOD + " and ui.instance = c.instance), 0), " +
+							"coalesce((select sum(ug.transferred_bytes) from tig_socks5_usage_instances ug " +
+							"where ug.period = " + CURRENT_PERIOD + "), 0) " +
+							"from tig_socks5_connections c inner join tig_socks5_users u on u.uid = c.uid " +
+							"where c.conn_id=?");
+
+			ps.setLong(1, cid);
+
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigSocks5CreateTransferUsed(long uid, int direction, String instance, ResultSet[] data)
 			throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -122,17 +159,53 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigSocks5PurgeConnections(Timestamp before, int limit, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement select = conn.prepareStatement(
+					"select conn_id from tig_socks5_connections where transfer_timestamp < ?");
+			PreparedStatement delete = conn.prepareStatement("delete from tig_socks5_connections where conn_id=?");
+
+			select.setTimestamp(1, before);
+			select.setMaxRows(limit);
+
+			try (ResultSet rs = select.executeQuery()) {
+				while (rs.next()) {
+					delete.setLong(1, rs.getLong(1));
+					delete.addBatch();
+				}
+			}
+
+			int deleted = 0;
+			for (int count : delete.executeBatch()) {
+				deleted += Math.max(count, 0);
+			}
+
+			PreparedStatement result = conn.prepareStatement("values cast(? as int)");
+			result.setInt(1, deleted);
+			data[0] = result.executeQuery();
+		} catch (SQLException e) {
+
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigSocks5TransferUsedDomain(String domain, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			PreparedStatement ps = conn.prepareStatement("select sum(transferred_bytes) from tig_socks5_connections " +
-																 "where MONTH(transfer_timestamp) = MONTH(CURRENT_DATE) " +
-																 "and YEAR(transfer_timestamp) = YEAR(CURRENT_DATE) and uid IN (" +
-																 "select uid from tig_socks5_users where \"domain\"=?" +
-																 ")");
+			PreparedStatement ps = conn.prepareStatement("select sum(transferred_bytes) from tig_socks5_usage_domains " +
+																 "where \"domain\"=? and period=" + CURRENT_PERIOD);
 
 			ps.setString(1, domain);
 
@@ -153,9 +226,8 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			PreparedStatement ps = conn.prepareStatement("select sum(transferred_bytes) from tig_socks5_connections " +
-																 "where MONTH(transfer_timestamp) = MONTH(CURRENT_DATE) " +
-																 "and YEAR(transfer_timestamp) = YEAR(CURRENT_DATE)");
+			PreparedStatement ps = conn.prepareStatement("select sum(transferred_bytes) from tig_socks5_usage_instances " +
+																 "where period=" + CURRENT_PERIOD);
 
 			data[0] = ps.executeQuery();
 		} catch (SQLException e) {
@@ -174,9 +246,8 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			PreparedStatement ps = conn.prepareStatement("select sum(transferred_bytes) from tig_socks5_connections " +
-																 "where MONTH(transfer_timestamp) = MONTH(CURRENT_DATE) " +
-																 "and YEAR(transfer_timestamp) = YEAR(CURRENT_DATE) and instance=?");
+			PreparedStatement ps = conn.prepareStatement("select sum(transferred_bytes) from tig_socks5_usage_instances " +
+																 "where period=" + CURRENT_PERIOD + " and instance=?");
 
 			ps.setString(1, instance);
 
@@ -197,9 +268,8 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			PreparedStatement ps = conn.prepareStatement("select sum(transferred_bytes) from tig_socks5_connections " +
-																 "where MONTH(transfer_timestamp) = MONTH(CURRENT_DATE) " +
-																 "and YEAR(transfer_timestamp) = YEAR(CURRENT_DATE) and uid=?");
+			PreparedStatement ps = conn.prepareStatement("select sum(transferred_bytes) from tig_socks5_usage_users " +
+																 "where uid=? and period=" + CURRENT_PERIOD);
 
 			ps.setLong(1, uid);
 
@@ -220,13 +290,53 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			PreparedStatement ps = conn.prepareStatement(
-					"update tig_socks5_connections set transferred_bytes=? " + "where conn_id=?");
-
-			ps.setLong(1, transferredBytes);
-			ps.setLong(2, cid);
-
-			ps.executeUpdate();
+			PreparedStatement select = conn.prepareStatement(
+					"select c.uid, u.\"domain\", c.instance, c.transferred_bytes from tig_socks5_connections c " +
+							"inner join tig_socks5_users u on u.uid = c.uid where c.conn_id=?");
+			PreparedStatement update = conn.prepareStatement(
+					"update tig_socks5_connections set transferred_bytes=?, transfer_timestamp=CURRENT_TIMESTAMP " +
+							"where conn_id=? and transferred_bytes=?");
+
+			select.setLong(1, cid);
+
+			// compare-and-set on transferred_bytes, so concurrent updates of the same
+			// connection will not add the same delta to the usage counters twice
+			while (true) {
+				long uid;
+				String domain;
+				String instance;
+				long previous;
+				try (ResultSet rs = select.executeQuery()) {
+					if (!rs.next()) {
+						return;
+					}
+					uid = rs.getLong(1);
+					domain = rs.getString(2);
+					instance = rs.getString(3);
+					previous = rs.getLong(4);
+				}
+
+				update.setLong(1, transferredBytes);
+				update.setLong(2, cid);
+				update.setLong(3, previous);
+				if (update.executeUpdate() == 0) {
+					continue;
+				}
+
+				long delta = transferredBytes - previous;
+				if (delta != 0) {
+					int period = currentPeriod(conn);
+					addTransferUsed(conn, "tig_socks5_usage_users", new String[]{"uid"}, new Object[]{uid}, period,
+									delta);
+					addTransferUsed(conn, "tig_socks5_usage_domains", new String[]{"\"domain\""},
+									new Object[]{domain}, period, delta);
+					// instance counter is split into shards (global usage is sum of all of them),
+					// so concurrent updates do not serialize on a single row
+					addTransferUsed(conn, "tig_socks5_usage_instances", new String[]{"instance", "shard"},
+									new Object[]{instance, (short) (cid % INSTANCE_USAGE_SHARDS)}, period, delta);
+				}
+				return;
+			}
 		} catch (SQLException e) {
 
 			// e.printStackTrace();
@@ -237,4 +347,54 @@ public class StoredProcedures {
 		}
 	}
 
+	private static void addTransferUsed(Connection conn, String table, String[] keyColumns, Object[] keys,
+										int period, long delta) throws SQLException {
+		StringBuilder keyCondition = new StringBuilder();
+		StringBuilder insertColumns = new StringBuilder();
+		StringBuilder insertValues = new StringBuilder();
+		for (String keyColumn : keyColumns) {
+			keyCondition.append(keyColumn).append("=? and ");
+			insertColumns.append(keyColumn).append(", ");
+			insertValues.append("?, ");
+		}
+		PreparedStatement update = conn.prepareStatement(
+				"update " + table + " set transferred_bytes = transferred_bytes + ? where " + keyCondition +
+						"period=?");
+		int idx = 1;
+		update.setLong(idx++, delta);
+		for (Object key : keys) {
+			update.setObject(idx++, key);
+		}
+		update.setInt(idx, period);
+		if (update.executeUpdate() > 0) {
+			return;
+		}
+
+		PreparedStatement insert = conn.prepareStatement(
+				"insert into " + table + " (" + insertColumns + "period, transferred_bytes) values (" + insertValues +
+						"?, ?)");
+		idx = 1;
+		for (Object key : keys) {
+			insert.setObject(idx++, key);
+		}
+		insert.setInt(idx++, period);
+		insert.setLong(idx, delta);
+		try {
+			insert.executeUpdate();
+		} catch (SQLException e) {
+			if (!DUPLICATE_KEY_SQL_STATE.equals(e.getSQLState())) {
+				throw e;
+			}
+			// row was created concurrently, so it is now safe to update it
+			update.executeUpdate();
+		}
+	}
+
+	private static int currentPeriod(Connection conn) throws SQLException {
+		try (ResultSet rs = conn.createStatement().executeQuery("values " + CURRENT_PERIOD)) {
+			rs.next();
+			return rs.getInt(1);
+		}
+	}
+
 }
@@ -29,6 +29,10 @@ import tigase.socks5.repository.Socks5Repository;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,6 +46,7 @@ public class LimitsVerifier
 
 	private static final String CONN_ID_KEY = "conn-id-key";
 	private static final String LAST_TRANSFERRED_BYTES_KEY = "last-transferred-bytes";
+	private static final String PENDING_TRANSFER_KEY = "pending-transfer";
 
 	private static final int MB = 1024 * 1024;
 
@@ -52,6 +57,10 @@ public class LimitsVerifier
 	private static final long DEFAULT_TRANSFER_LIMIT_PER_DOMAIN_VAL = 0 * MB;
 	private static final long TRANSFER_GLOBAL_LIMIT_VAL = 0 * MB;
 	private static final long TRANSFER_INSTANCE_LIMIT_VAL = 0 * MB;
+	private static final long TRANSFER_UPDATE_INTERVAL_VAL = 1000;
+	private static final long TRANSFER_BUDGET_REFRESH_INTERVAL_VAL = TimeUnit.SECONDS.toMillis(5);
+	private static final long USAGE_RESYNC_INTERVAL_VAL = TimeUnit.MINUTES.toMillis(5);
+	private static final long USAGE_ROLLOVER_CHECK_INTERVAL = TimeUnit.MINUTES.toMillis(1);
 	@ConfigField(desc = "Transfer limit per domain", alias = "default-domain-limit")
 	private long defaultTransferLimitPerDomain = DEFAULT_TRANSFER_LIMIT_PER_DOMAIN_VAL;
 	@ConfigField(desc = "Transfer limit per file", alias = "default-file-limit")
@@ -67,6 +76,66 @@ public class LimitsVerifier
 	private long transferInstanceLimit = TRANSFER_INSTANCE_LIMIT_VAL;
 	@ConfigField(desc = "Quantization", alias = "transfer-update-quantization")
 	private int transferUpdateQuantization = TRANSFER_UPDATE_QUANTIZATION_VAL;
+	@ConfigField(desc = "Interval in milliseconds between writes of transfer used by connections, 0 - write immediately", alias = "transfer-update-interval")
+	private long transferUpdateInterval = TRANSFER_UPDATE_INTERVAL_VAL;
+	@ConfigField(desc = "Interval in milliseconds between synchronizations of transfer used with database, 0 - disabled", alias = "usage-resync-interval")
+	private long usageResyncInterval = USAGE_RESYNC_INTERVAL_VAL;
+	private final UsageLedger ledger = new UsageLedger(() -> proxyComponent.getSock5Repository(),
+													   () -> proxyComponent.getDefHostName().toString());
+	@ConfigField(desc = "Time in milliseconds after which transfer budget of stream is calculated again, 0 - disabled", alias = "transfer-budget-refresh-interval")
+	private long transferBudgetRefreshInterval = TRANSFER_BUDGET_REFRESH_INTERVAL_VAL;
+	@ConfigField(desc = "Number of threads verifying streams before activation", alias = "verification-threads")
+	private int verificationThreads = 4;
+	private final Queue<PendingTransfer> pendingTransfers = new ConcurrentLinkedQueue<>();
+	private ScheduledExecutorService transferUpdateExecutor = null;
+	private ExecutorService verificationExecutor = null;
+
+	@Override
+	public synchronized void start() {
+		if (verificationThreads > 0 && verificationExecutor == null) {
+			AtomicInteger threadNo = new AtomicInteger(0);
+			verificationExecutor = Executors.newFixedThreadPool(verificationThreads, r -> {
+				Thread thread = new Thread(r, "socks5-verification-" + threadNo.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		if (transferUpdateExecutor == null) {
+			transferUpdateExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "socks5-transfer-updates");
+				thread.setDaemon(true);
+				return thread;
+			});
+			if (transferUpdateInterval > 0) {
+				transferUpdateExecutor.scheduleWithFixedDelay(this::flushPendingTransfers, transferUpdateInterval,
+															  transferUpdateInterval, TimeUnit.MILLISECONDS);
+			}
+			transferUpdateExecutor.scheduleWithFixedDelay(ledger::rollover, USAGE_ROLLOVER_CHECK_INTERVAL,
+														  USAGE_ROLLOVER_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+			if (usageResyncInterval > 0) {
+				transferUpdateExecutor.scheduleWithFixedDelay(this::resyncUsage, usageResyncInterval,
+															  usageResyncInterval, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (verificationExecutor != null) {
+			verificationExecutor.shutdown();
+			verificationExecutor = null;
+		}
+		if (transferUpdateExecutor != null) {
+			transferUpdateExecutor.shutdown();
+			try {
+				transferUpdateExecutor.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			transferUpdateExecutor = null;
+		}
+		flushPendingTransfers();
+	}
 
 	@Override
 	public boolean isAllowed(Stream stream) throws TigaseDBException {
@@ -84,6 +153,28 @@ public class LimitsVerifier
 		}
 	}
 
+	@Override
+	public CompletableFuture<Boolean> isAllowedAsync(Stream stream) {
+		ExecutorService verificationExecutor = this.verificationExecutor;
+		if (verificationExecutor == null) {
+			return VerifierIfc.super.isAllowedAsync(stream);
+		}
+
+		CompletableFuture<Boolean> future = new CompletableFuture<>();
+		try {
+			verificationExecutor.execute(() -> {
+				try {
+					future.complete(isAllowed(stream));
+				} catch (Exception ex) {
+					future.completeExceptionally(ex);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			return VerifierIfc.super.isAllowedAsync(stream);
+		}
+		return future;
+	}
+
 	@Override
 	public void updateTransfer(Socks5IOService service, boolean force) throws TigaseDBException, QuotaException {
 		if (service == null) {
@@ -132,11 +223,14 @@ public class LimitsVerifier
 		}
 
 		if (!updateTransferUsedByConnection(repo, service, transferred, force)) {
+			if (!force) {
+				updateTransferBudget(service, limits, transferred);
+			}
 			return;
 		}
 
 		if (limits.getTransferLimitPerUser() != 0 &&
-				limits.getTransferLimitPerUser() < repo.getTransferUsedByUser(jid)) {
+				limits.getTransferLimitPerUser() < ledger.getTransferUsedByUser(jid)) {
 
 			if (!force) {
 				throw new QuotaException("Stream closed due to exceeded transfer quota for user " + jid.toString());
@@ -144,7 +238,7 @@ public class LimitsVerifier
 		}
 
 		if (limits.getTransferLimitPerDomain() != 0 &&
-				limits.getTransferLimitPerDomain() < repo.getTransferUsedByDomain(jid.getDomain())) {
+				limits.getTransferLimitPerDomain() < ledger.getTransferUsedByDomain(jid.getDomain())) {
 
 			if (!force) {
 				throw new QuotaException("Stream closed due to exceeded transfer quota for domain " + jid.getDomain());
@@ -152,7 +246,7 @@ public class LimitsVerifier
 		}
 
 		if (transferInstanceLimit != 0 &&
-				transferInstanceLimit < repo.getTransferUsedByInstance(proxyComponent.getDefHostName().toString())) {
+				transferInstanceLimit < ledger.getTransferUsedByInstance()) {
 
 			if (!force) {
 				throw new QuotaException(
@@ -160,11 +254,55 @@ public class LimitsVerifier
 			}
 		}
 
-		if (transferGlobalLimit != 0 && transferGlobalLimit < repo.getTransferUsed()) {
+		if (transferGlobalLimit != 0 && transferGlobalLimit < ledger.getTransferUsed()) {
 			if (!force) {
 				throw new QuotaException("Stream closed due to exceeded global transfer quota");
 			}
 		}
+
+		if (!force) {
+			updateTransferBudget(service, limits, transferred);
+		}
+	}
+
+	/**
+	 * Sets number of bytes which stream may transfer before its connection needs to be verified again, as minimum
+	 * of remaining quotas applicable to connection
+	 *
+	 * @param service
+	 * @param limits
+	 * @param transferred
+	 *
+	 * @throws TigaseDBException
+	 */
+	private void updateTransferBudget(Socks5IOService service, Limits limits, long transferred)
+			throws TigaseDBException {
+		Stream stream = service.getStream();
+		if (stream == null || transferBudgetRefreshInterval <= 0) {
+			return;
+		}
+
+		BareJID jid = service.getJID().getBareJID();
+		long remaining = Long.MAX_VALUE;
+		if (limits.getTransferLimitPerFile() != 0) {
+			remaining = Math.min(remaining, limits.getTransferLimitPerFile() - transferred);
+		}
+		if (limits.getTransferLimitPerUser() != 0) {
+			remaining = Math.min(remaining, limits.getTransferLimitPerUser() - ledger.getTransferUsedByUser(jid));
+		}
+		if (limits.getTransferLimitPerDomain() != 0) {
+			remaining = Math.min(remaining,
+								 limits.getTransferLimitPerDomain() - ledger.getTransferUsedByDomain(jid.getDomain()));
+		}
+		if (transferInstanceLimit != 0) {
+			remaining = Math.min(remaining, transferInstanceLimit - ledger.getTransferUsedByInstance());
+		}
+		if (transferGlobalLimit != 0) {
+			remaining = Math.min(remaining, transferGlobalLimit - ledger.getTransferUsed());
+		}
+
+		stream.setTransferBudget(service.getSocks5ConnectionType(), Math.max(0, remaining),
+								 System.currentTimeMillis() + transferBudgetRefreshInterval);
 	}
 
 	private void updateTransfer(Stream stream) throws TigaseDBException, QuotaException {
@@ -211,14 +349,88 @@ public class LimitsVerifier
 		}
 
 		if (!isNew || force) {
-			repo.updateTransferUsedByConnection(service.getJID().getBareJID(), conn_id, transferred);
+			PendingTransfer pending = (PendingTransfer) service.getSessionData().get(PENDING_TRANSFER_KEY);
+			// stream which used its budget is close to a quota, so its usage is checked against database at once
+			// instead of local counters, which may not include transfers of other nodes yet
+			Stream stream = service.getStream();
+			boolean budgetUsed = !force && stream != null && stream.isTransferBudgetUsed();
+			if (transferUpdateInterval > 0 && !budgetUsed) {
+				// stored later by background flush, only newest value of connection is written
+				if (pending == null) {
+					// previous values of connection were written at once
+					pending = new PendingTransfer(conn_id, service.getJID().getBareJID(), lastTransferred);
+					service.getSessionData().put(PENDING_TRANSFER_KEY, pending);
+				}
+				pending.update(transferred);
+			} else {
+				if (pending != null) {
+					// queued value would otherwise overwrite newer one stored below
+					pending.transferred = transferred;
+				}
+				// single call stores transfer and returns usage already including it
+				TransferUsage usage = repo.checkQuota(service.getJID().getBareJID(), conn_id, transferred,
+													  proxyComponent.getDefHostName().toString());
+				// bytes of connection already added to ledger, but not written before
+				long unstored = pending == null ? 0 : Math.max(0, lastTransferred - pending.markStored(transferred));
+				service.getSessionData().put(LAST_TRANSFERRED_BYTES_KEY, transferred);
+				ledger.update(service.getJID().getBareJID(), usage, unstored);
+				return true;
+			}
 		}
 
 		service.getSessionData().put(LAST_TRANSFERRED_BYTES_KEY, transferred);
+		ledger.add(service.getJID().getBareJID(), transferred - lastTransferred);
 
 		return true;
 	}
 
+	/**
+	 * Writes transfer used by connections queued since last flush, grouped by domain
+	 */
+	protected void flushPendingTransfers() {
+		Map<String, List<PendingTransfer>> byDomain = new HashMap<>();
+		PendingTransfer pending;
+		while ((pending = pendingTransfers.poll()) != null) {
+			// cleared before value is read, so newer value will be queued again
+			pending.queued.set(false);
+			byDomain.computeIfAbsent(pending.user.getDomain(), domain -> new ArrayList<>()).add(pending);
+		}
+
+		if (byDomain.isEmpty()) {
+			return;
+		}
+
+		Socks5Repository repo = proxyComponent.getSock5Repository();
+		for (Map.Entry<String, List<PendingTransfer>> e : byDomain.entrySet()) {
+			Map<Long, Long> transferred = new HashMap<>();
+			for (PendingTransfer p : e.getValue()) {
+				transferred.put(p.connId, p.transferred);
+			}
+			try {
+				repo.updateTransferUsedByConnections(e.getKey(), transferred);
+				// only bytes written now may be dropped from ledger during next synchronization
+				for (PendingTransfer p : e.getValue()) {
+					long value = transferred.get(p.connId);
+					ledger.stored(p.user, Math.max(0, value - p.markStored(value)));
+				}
+			} catch (Exception ex) {
+				log.log(Level.WARNING, "could not update transfer used by " + transferred.size() +
+						" connections of domain " + e.getKey() + ", will retry", ex);
+				for (PendingTransfer p : e.getValue()) {
+					p.enqueue();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Synchronizes usage ledger with database after storing pending transfers
+	 */
+	protected void resyncUsage() {
+		flushPendingTransfers();
+		ledger.resync();
+	}
+
 	private Limits getLimits(BareJID jid) throws TigaseDBException {
 		Socks5Repository repo = proxyComponent.getSock5Repository();
 		// get limits for user
@@ -259,4 +471,45 @@ public class LimitsVerifier
 
 		return limits;
 	}
+
+	/**
+	 * Newest value of transfer used by connection waiting to be written to repository
+	 */
+	private class PendingTransfer {
+
+		private final long connId;
+		private final AtomicBoolean queued = new AtomicBoolean(false);
+		private final BareJID user;
+		// highest value of transfer known to be written to repository
+		private long stored;
+		private volatile long transferred = 0;
+
+		private PendingTransfer(long connId, BareJID user, long stored) {
+			this.connId = connId;
+			this.user = user;
+			this.stored = stored;
+		}
+
+		/**
+		 * Marks value as written to repository
+		 *
+		 * @return value written before
+		 */
+		private synchronized long markStored(long value) {
+			long prev = stored;
+			stored = Math.max(stored, value);
+			return prev;
+		}
+
+		private void update(long transferred) {
+			this.transferred = transferred;
+			enqueue();
+		}
+
+		private void enqueue() {
+			if (queued.compareAndSet(false, true)) {
+				pendingTransfers.offer(this);
+			}
+		}
+	}
 }
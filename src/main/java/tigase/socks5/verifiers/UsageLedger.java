@@ -0,0 +1,296 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5.verifiers;
+
+import tigase.db.TigaseDBException;
+import tigase.socks5.TransferUsage;
+import tigase.socks5.repository.Socks5Repository;
+import tigase.xmpp.jid.BareJID;
+
+import java.time.YearMonth;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory ledger of bytes transferred in current month by users, domains, this instance and globally.
+ * <br>
+ * Each counter is loaded from repository when it is used for the first time in a month and later it is increased
+ * locally as bytes are transferred, so quota checks do not need to sum transfers in database. Counters are
+ * periodically synchronized with repository to include transfers made by other cluster nodes, while counters not
+ * used since previous synchronization are dropped. All counters are cleared when month changes.
+ * <br>
+ * Bytes recorded locally are dropped from counter only after they were reported as written to repository and
+ * counter was loaded again, so bytes still waiting in write-behind queue are not lost from quota checks.
+ *
+ * @author andrzej
+ */
+public class UsageLedger {
+
+	private static final Logger log = Logger.getLogger(UsageLedger.class.getCanonicalName());
+
+	private final ConcurrentHashMap<String, Counter> domains = new ConcurrentHashMap<>();
+	private final Supplier<String> instanceName;
+	private final Supplier<Socks5Repository> repository;
+	private final ConcurrentHashMap<BareJID, Counter> users = new ConcurrentHashMap<>();
+	private volatile Counter global = null;
+	private volatile Counter instance = null;
+	private volatile YearMonth period = YearMonth.now();
+
+	public UsageLedger(Supplier<Socks5Repository> repository, Supplier<String> instanceName) {
+		this.repository = repository;
+		this.instanceName = instanceName;
+	}
+
+	/**
+	 * Records bytes transferred by connection of user
+	 *
+	 * @param user
+	 * @param bytes
+	 */
+	public void add(BareJID user, long bytes) {
+		if (bytes <= 0) {
+			return;
+		}
+		// counters which were not loaded yet will be loaded with bytes stored in repository
+		add(users.get(user), bytes);
+		add(domains.get(user.getDomain()), bytes);
+		add(instance, bytes);
+		add(global, bytes);
+	}
+
+	/**
+	 * Records bytes previously added by connection of user which were written to repository
+	 *
+	 * @param user
+	 * @param bytes
+	 */
+	public void stored(BareJID user, long bytes) {
+		if (bytes <= 0) {
+			return;
+		}
+		stored(users.get(user), bytes);
+		stored(domains.get(user.getDomain()), bytes);
+		stored(instance, bytes);
+		stored(global, bytes);
+	}
+
+	/**
+	 * Replaces counters of user, its domain, this instance and global counter with values read from repository,
+	 * which already include bytes transferred by connection of user
+	 *
+	 * @param user
+	 * @param usage
+	 * @param unstored bytes of connection added locally before, which were written to repository with this usage
+	 */
+	public void update(BareJID user, TransferUsage usage, long unstored) {
+		users.compute(user, (key, counter) -> update(counter, usage.getTransferUsedByUser(), unstored));
+		domains.compute(user.getDomain(),
+						(key, counter) -> update(counter, usage.getTransferUsedByDomain(), unstored));
+		instance = update(instance, usage.getTransferUsedByInstance(), unstored);
+		global = update(global, usage.getTransferUsed(), unstored);
+	}
+
+	public long getTransferUsedByUser(BareJID user) throws TigaseDBException {
+		Counter counter = users.get(user);
+		if (counter == null) {
+			counter = new Counter(repository.get().getTransferUsedByUser(user));
+			Counter existing = users.putIfAbsent(user, counter);
+			if (existing != null) {
+				counter = existing;
+			}
+		}
+		return counter.get();
+	}
+
+	public long getTransferUsedByDomain(String domain) throws TigaseDBException {
+		Counter counter = domains.get(domain);
+		if (counter == null) {
+			counter = new Counter(repository.get().getTransferUsedByDomain(domain));
+			Counter existing = domains.putIfAbsent(domain, counter);
+			if (existing != null) {
+				counter = existing;
+			}
+		}
+		return counter.get();
+	}
+
+	public long getTransferUsedByInstance() throws TigaseDBException {
+		Counter counter = instance;
+		if (counter == null) {
+			counter = new Counter(repository.get().getTransferUsedByInstance(instanceName.get()));
+			instance = counter;
+		}
+		return counter.get();
+	}
+
+	public long getTransferUsed() throws TigaseDBException {
+		Counter counter = global;
+		if (counter == null) {
+			counter = new Counter(repository.get().getTransferUsed());
+			global = counter;
+		}
+		return counter.get();
+	}
+
+	/**
+	 * Clears all counters if month changed since they were loaded
+	 *
+	 * @return true if counters were cleared
+	 */
+	public boolean rollover() {
+		YearMonth now = YearMonth.now();
+		if (now.equals(period)) {
+			return false;
+		}
+		period = now;
+		clear();
+		return true;
+	}
+
+	/**
+	 * Drops all counters, so they will be loaded again from repository
+	 */
+	public void clear() {
+		users.clear();
+		domains.clear();
+		instance = null;
+		global = null;
+	}
+
+	/**
+	 * Loads again values of counters used since previous synchronization and drops other counters. Should be called
+	 * after transfers recorded locally were stored in repository.
+	 */
+	public void resync() {
+		Socks5Repository repo = repository.get();
+		resync(users, repo::getTransferUsedByUser);
+		resync(domains, repo::getTransferUsedByDomain);
+		Counter instance = this.instance;
+		if (instance != null) {
+			try {
+				resync(instance, () -> repo.getTransferUsedByInstance(instanceName.get()));
+			} catch (TigaseDBException ex) {
+				log.log(Level.WARNING, "could not synchronize transfer used by instance", ex);
+			}
+		}
+		Counter global = this.global;
+		if (global != null) {
+			try {
+				resync(global, repo::getTransferUsed);
+			} catch (TigaseDBException ex) {
+				log.log(Level.WARNING, "could not synchronize transfer used", ex);
+			}
+		}
+	}
+
+	private <K> void resync(Map<K, Counter> counters, KeyLoader<K> loader) {
+		Iterator<Map.Entry<K, Counter>> it = counters.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<K, Counter> e = it.next();
+			Counter counter = e.getValue();
+			if (!counter.used) {
+				it.remove();
+				continue;
+			}
+			counter.used = false;
+			try {
+				resync(counter, () -> loader.load(e.getKey()));
+			} catch (TigaseDBException ex) {
+				log.log(Level.WARNING, "could not synchronize transfer used by " + e.getKey(), ex);
+			}
+		}
+	}
+
+	private void resync(Counter counter, Loader loader) throws TigaseDBException {
+		// only bytes known to be written before value is loaded are dropped, other bytes are kept as local
+		long flushed = counter.flushed.getAndSet(0);
+		long stored;
+		try {
+			stored = loader.load();
+		} catch (TigaseDBException ex) {
+			counter.flushed.addAndGet(flushed);
+			throw ex;
+		}
+		counter.stored = stored;
+		counter.dropLocal(flushed);
+	}
+
+	private Counter update(Counter counter, long stored, long unstored) {
+		if (counter == null) {
+			return new Counter(stored);
+		}
+		long flushed = counter.flushed.getAndSet(0);
+		counter.stored = stored;
+		counter.dropLocal(flushed + unstored);
+		return counter;
+	}
+
+	private void add(Counter counter, long bytes) {
+		if (counter != null) {
+			counter.local.addAndGet(bytes);
+		}
+	}
+
+	private void stored(Counter counter, long bytes) {
+		if (counter != null) {
+			counter.flushed.addAndGet(bytes);
+		}
+	}
+
+	private interface Loader {
+
+		long load() throws TigaseDBException;
+
+	}
+
+	private interface KeyLoader<K> {
+
+		long load(K key) throws TigaseDBException;
+
+	}
+
+	private static class Counter {
+
+		// bytes of local which were written to repository since value was loaded
+		private final AtomicLong flushed = new AtomicLong(0);
+		// bytes transferred locally and not included in stored value
+		private final AtomicLong local = new AtomicLong(0);
+		// bytes stored in repository when value was loaded
+		private volatile long stored;
+		private volatile boolean used = true;
+
+		private Counter(long stored) {
+			this.stored = stored;
+		}
+
+		private long get() {
+			used = true;
+			return stored + local.get();
+		}
+
+		private void dropLocal(long bytes) {
+			// bytes written before counter was created were never added to it
+			local.accumulateAndGet(bytes, (value, dropped) -> Math.max(0, value - dropped));
+		}
+	}
+}
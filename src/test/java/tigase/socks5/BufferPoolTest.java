@@ -0,0 +1,109 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+	@Test
+	public void testSizeIsRoundedToSizeClass() {
+		BufferPool pool = new BufferPool(1024 * 1024);
+
+		ByteBuffer buf = pool.acquire(1);
+		assertTrue(buf.isDirect());
+		assertEquals(1024, buf.capacity());
+		assertEquals(4096, pool.acquire(4096).capacity());
+		assertEquals(8192, pool.acquire(4097).capacity());
+		assertEquals(1024 * 1024, pool.acquire(1024 * 1024).capacity());
+	}
+
+	@Test
+	public void testReleasedBufferIsReused() {
+		BufferPool pool = new BufferPool(1024 * 1024);
+
+		ByteBuffer buf = pool.acquire(2000);
+		buf.putInt(1).flip();
+		pool.release(buf);
+
+		ByteBuffer reused = pool.acquire(1500);
+		assertSame(buf, reused);
+		assertEquals(0, reused.position());
+		assertEquals(reused.capacity(), reused.limit());
+		assertNotSame(buf, pool.acquire(1500));
+	}
+
+	@Test
+	public void testBuffersOfDifferentClassesAreNotMixed() {
+		BufferPool pool = new BufferPool(1024 * 1024);
+
+		ByteBuffer small = pool.acquire(1024);
+		pool.release(small);
+		ByteBuffer big = pool.acquire(2048);
+		assertNotSame(small, big);
+		assertSame(small, pool.acquire(1024));
+	}
+
+	@Test
+	public void testOversizedBufferIsNotPooled() {
+		BufferPool pool = new BufferPool(16 * 1024 * 1024);
+
+		ByteBuffer buf = pool.acquire(1024 * 1024 + 1);
+		assertEquals(1024 * 1024 + 1, buf.capacity());
+		pool.release(buf);
+		assertNotSame(buf, pool.acquire(1024 * 1024 + 1));
+	}
+
+	@Test
+	public void testForeignBuffersAreNotPooled() {
+		BufferPool pool = new BufferPool(1024 * 1024);
+
+		ByteBuffer heap = ByteBuffer.allocate(1024);
+		pool.release(heap);
+		assertNotSame(heap, pool.acquire(1024));
+
+		// capacity which is not a size class
+		ByteBuffer odd = ByteBuffer.allocateDirect(1500);
+		pool.release(odd);
+		assertNotSame(odd, pool.acquire(1500));
+	}
+
+	@Test
+	public void testPooledBytesAreLimited() {
+		BufferPool pool = new BufferPool(2048);
+
+		ByteBuffer first = pool.acquire(1024);
+		ByteBuffer second = pool.acquire(1024);
+		ByteBuffer third = pool.acquire(1024);
+		pool.release(first);
+		pool.release(second);
+		// pool is full, so this buffer is dropped
+		pool.release(third);
+
+		ByteBuffer a = pool.acquire(1024);
+		ByteBuffer b = pool.acquire(1024);
+		ByteBuffer c = pool.acquire(1024);
+		assertTrue(a == first || a == second);
+		assertTrue(b == first || b == second);
+		assertNotSame(third, c);
+	}
+}
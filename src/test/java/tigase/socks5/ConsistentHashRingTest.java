@@ -0,0 +1,96 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ConsistentHashRingTest {
+
+	private static final List<String> NODES = Arrays.asList("node1", "node2", "node3", "node4");
+	private static final int KEYS = 10000;
+
+	@Test
+	public void testEmptyRing() {
+		ConsistentHashRing<String> ring = new ConsistentHashRing<>(Collections.<String>emptyList(), 128);
+		assertTrue(ring.isEmpty());
+		assertNull(ring.get("key"));
+		assertNull(ring.get("key", node -> true));
+	}
+
+	@Test
+	public void testRingsWithSameNodesAgree() {
+		ConsistentHashRing<String> ring = new ConsistentHashRing<>(NODES, 128);
+		List<String> reversed = Arrays.asList("node4", "node3", "node2", "node1");
+		ConsistentHashRing<String> other = new ConsistentHashRing<>(reversed, 128);
+
+		for (int i = 0; i < KEYS; i++) {
+			assertEquals(ring.get("key" + i), other.get("key" + i));
+		}
+	}
+
+	@Test
+	public void testKeysAreSpreadOverNodes() {
+		ConsistentHashRing<String> ring = new ConsistentHashRing<>(NODES, 128);
+		Map<String, Integer> counts = new HashMap<>();
+		for (int i = 0; i < KEYS; i++) {
+			counts.merge(ring.get("user" + i + "@example.com/resource"), 1, Integer::sum);
+		}
+
+		assertEquals(NODES.size(), counts.size());
+		for (int count : counts.values()) {
+			// each node should get roughly a quarter of keys
+			assertTrue("node got " + count + " keys", count > KEYS / NODES.size() / 2);
+		}
+	}
+
+	@Test
+	public void testRemovingNodeMovesOnlyItsKeys() {
+		ConsistentHashRing<String> ring = new ConsistentHashRing<>(NODES, 128);
+		ConsistentHashRing<String> reduced = new ConsistentHashRing<>(NODES.subList(0, 3), 128);
+
+		for (int i = 0; i < KEYS; i++) {
+			String key = "key" + i;
+			String node = ring.get(key);
+			if (!"node4".equals(node)) {
+				assertEquals(node, reduced.get(key));
+			}
+		}
+	}
+
+	@Test
+	public void testFilterSkipsToNextAcceptedNode() {
+		ConsistentHashRing<String> ring = new ConsistentHashRing<>(NODES, 128);
+		ConsistentHashRing<String> reduced = new ConsistentHashRing<>(NODES.subList(0, 3), 128);
+
+		for (int i = 0; i < KEYS; i++) {
+			String key = "key" + i;
+			assertEquals(ring.get(key), ring.get(key, node -> true));
+			// skipping a node is the same as removing it from the ring
+			assertEquals(reduced.get(key), ring.get(key, node -> !"node4".equals(node)));
+		}
+		assertNull(ring.get("key", node -> false));
+	}
+}
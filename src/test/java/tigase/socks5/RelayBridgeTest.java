@@ -0,0 +1,287 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs two bridges in a single JVM connected over loopback interface
+ */
+public class RelayBridgeTest {
+
+	private static final byte[] SECRET = "secret".getBytes(StandardCharsets.UTF_8);
+	private static final int WINDOW = 256 * 1024;
+
+	private final List<RelayBridge> bridges = new ArrayList<>();
+	private final BufferPool pool = new BufferPool(64L * 1024 * 1024);
+	private RelayBridge local;
+	private RemoteHandler remoteHandler;
+	private InetSocketAddress remoteAddress;
+
+	@Before
+	public void setUp() throws Exception {
+		remoteHandler = new RemoteHandler();
+		RelayBridge remote = start(remoteHandler, SECRET);
+		remoteAddress = new InetSocketAddress("127.0.0.1", remote.getLocalPort());
+		local = start(new RemoteHandler(), SECRET);
+	}
+
+	@After
+	public void tearDown() {
+		for (RelayBridge bridge : bridges) {
+			bridge.stop();
+		}
+	}
+
+	@Test
+	public void testDataIsSentWithinCredit() throws Exception {
+		StreamKey key = key(1);
+		remoteHandler.stalled.put(key, Boolean.TRUE);
+		TestEndpoint endpoint = new TestEndpoint();
+		RelayBridge.Link link = open(key, endpoint);
+
+		ByteBuffer data = ByteBuffer.allocate(16 * 1024);
+		long sent = 0;
+		while (link.isWritable()) {
+			data.clear();
+			for (int i = 0; data.hasRemaining(); i++) {
+				data.put((byte) (sent + i));
+			}
+			data.flip();
+			link.send(data);
+			sent += data.capacity();
+		}
+		assertEquals(WINDOW, sent);
+
+		TestEndpoint remote = remoteHandler.await(key);
+		remote.awaitReceived(sent);
+		long offset = 0;
+		for (ByteBuffer buf : remote.held) {
+			while (buf.hasRemaining()) {
+				assertEquals((byte) offset++, buf.get());
+			}
+			buf.rewind();
+		}
+		assertFalse(endpoint.writable.tryAcquire(100, TimeUnit.MILLISECONDS));
+
+		// acknowledged data grants credit back to sender
+		remote.acknowledgeHeld();
+		assertTrue(endpoint.writable.tryAcquire(5, TimeUnit.SECONDS));
+		assertTrue(link.isWritable());
+	}
+
+	@Test
+	public void testStalledLinkDoesNotBlockChannel() throws Exception {
+		StreamKey stalledKey = key(1);
+		StreamKey flowingKey = key(2);
+		remoteHandler.stalled.put(stalledKey, Boolean.TRUE);
+		RelayBridge.Link stalled = open(stalledKey, new TestEndpoint());
+		TestEndpoint flowingEndpoint = new TestEndpoint();
+		RelayBridge.Link flowing = open(flowingKey, flowingEndpoint);
+
+		ByteBuffer data = ByteBuffer.allocate(64 * 1024);
+		while (stalled.isWritable()) {
+			data.clear();
+			stalled.send(data);
+		}
+
+		long total = 16L * WINDOW;
+		long sent = 0;
+		while (sent < total) {
+			if (!flowing.isWritable()) {
+				assertTrue(flowingEndpoint.writable.tryAcquire(5, TimeUnit.SECONDS));
+				continue;
+			}
+			data.clear();
+			flowing.send(data);
+			sent += data.capacity();
+		}
+		remoteHandler.await(flowingKey).awaitReceived(total);
+		assertEquals(WINDOW, remoteHandler.await(stalledKey).received.get());
+	}
+
+	@Test
+	public void testDataIsSentByAcceptingNode() throws Exception {
+		StreamKey key = key(1);
+		TestEndpoint endpoint = new TestEndpoint();
+		open(key, endpoint);
+
+		remoteHandler.await(key).link.send(ByteBuffer.wrap(new byte[200000]));
+		endpoint.awaitReceived(200000);
+	}
+
+	@Test
+	public void testCloseIsPropagated() throws Exception {
+		StreamKey key = key(1);
+		RelayBridge.Link link = open(key, new TestEndpoint());
+		TestEndpoint remote = remoteHandler.await(key);
+
+		link.close();
+		assertTrue(remote.closed.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testUnknownStreamIsRejected() throws Exception {
+		remoteHandler.unknown = true;
+		assertRejected(local);
+	}
+
+	@Test
+	public void testWrongSecretIsRejected() throws Exception {
+		assertRejected(start(new RemoteHandler(), "other".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void testNotAllowedAddressIsRejected() throws Exception {
+		remoteHandler.allowed = false;
+		assertRejected(local);
+	}
+
+	private void assertRejected(RelayBridge bridge) throws Exception {
+		try {
+			bridge.open(remoteAddress, key(1), new TestEndpoint()).get(5, TimeUnit.SECONDS);
+			fail("Link should be rejected");
+		} catch (ExecutionException ex) {
+			// expected
+		}
+	}
+
+	private RelayBridge.Link open(StreamKey key, TestEndpoint endpoint) throws Exception {
+		RelayBridge.Link link = local.open(remoteAddress, key, endpoint).get(5, TimeUnit.SECONDS);
+		endpoint.link = link;
+		return link;
+	}
+
+	private RelayBridge start(RelayBridge.Handler handler, byte[] secret) throws Exception {
+		RelayBridge bridge = new RelayBridge("test-bridge", handler, pool, secret, 1, 2000, WINDOW);
+		bridges.add(bridge);
+		bridge.start("127.0.0.1", 0);
+		return bridge;
+	}
+
+	private StreamKey key(int id) {
+		byte[] digest = new byte[StreamKey.LENGTH];
+		digest[0] = (byte) id;
+		return new StreamKey(digest);
+	}
+
+	private class RemoteHandler
+			implements RelayBridge.Handler {
+
+		private final ConcurrentHashMap<StreamKey, TestEndpoint> endpoints = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<StreamKey, Boolean> stalled = new ConcurrentHashMap<>();
+		private volatile boolean allowed = true;
+		private volatile boolean unknown = false;
+
+		@Override
+		public RelayBridge.Endpoint linkOpened(RelayBridge.Link link) {
+			if (unknown) {
+				return null;
+			}
+			TestEndpoint endpoint = new TestEndpoint();
+			endpoint.link = link;
+			endpoint.stalled = stalled.containsKey(link.getKey());
+			endpoints.put(link.getKey(), endpoint);
+			return endpoint;
+		}
+
+		@Override
+		public boolean isAllowed(InetAddress address) {
+			return allowed;
+		}
+
+		private TestEndpoint await(StreamKey key) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			TestEndpoint endpoint;
+			while ((endpoint = endpoints.get(key)) == null) {
+				assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(1);
+			}
+			return endpoint;
+		}
+	}
+
+	private class TestEndpoint
+			implements RelayBridge.Endpoint {
+
+		private final CountDownLatch closed = new CountDownLatch(1);
+		private final ConcurrentLinkedQueue<ByteBuffer> held = new ConcurrentLinkedQueue<>();
+		private final AtomicLong received = new AtomicLong(0);
+		private final Semaphore writable = new Semaphore(0);
+		private volatile RelayBridge.Link link;
+		private volatile boolean stalled = false;
+
+		@Override
+		public void received(ByteBuffer data) {
+			int length = data.remaining();
+			if (stalled) {
+				held.add(data);
+			} else {
+				pool.release(data);
+				link.acknowledge(length);
+			}
+			received.addAndGet(length);
+		}
+
+		@Override
+		public void writable() {
+			writable.release();
+		}
+
+		@Override
+		public void closed() {
+			closed.countDown();
+		}
+
+		private void acknowledgeHeld() {
+			stalled = false;
+			ByteBuffer data;
+			while ((data = held.poll()) != null) {
+				int length = data.limit();
+				pool.release(data);
+				link.acknowledge(length);
+			}
+		}
+
+		private void awaitReceived(long bytes) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (received.get() < bytes) {
+				assertTrue("received " + received.get() + " of " + bytes, System.currentTimeMillis() < deadline);
+				Thread.sleep(1);
+			}
+		}
+	}
+}
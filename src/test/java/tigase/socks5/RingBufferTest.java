@@ -0,0 +1,195 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RingBufferTest {
+
+	@Test
+	public void testReadIsLimitedByFreeSpace() throws Exception {
+		RingBuffer ring = new RingBuffer(ByteBuffer.allocate(16));
+		Source source = new Source(40, 100);
+
+		assertEquals(16, ring.readFrom(source));
+		assertEquals(16, ring.size());
+		assertEquals(0, ring.free());
+		assertEquals(0, ring.readFrom(source));
+
+		Sink sink = new Sink(100);
+		assertEquals(16, ring.writeTo(sink));
+		assertTrue(ring.isEmpty());
+		assertEquals(16, ring.free());
+		sink.assertSequence(16);
+	}
+
+	@Test
+	public void testDataWrapsAroundEndOfStorage() throws Exception {
+		RingBuffer ring = new RingBuffer(ByteBuffer.allocate(16));
+		Source source = new Source(1000, 5);
+		Sink sink = new Sink(3);
+
+		for (int i = 0; i < 1000 && sink.size() < 1000; i++) {
+			ring.readFrom(source);
+			assertTrue(ring.size() <= ring.capacity());
+			ring.writeTo(sink);
+		}
+		assertTrue(ring.isEmpty());
+		sink.assertSequence(1000);
+	}
+
+	@Test
+	public void testEndOfStream() throws Exception {
+		RingBuffer ring = new RingBuffer(ByteBuffer.allocate(16));
+		Source source = new Source(4, 100);
+
+		assertEquals(4, ring.readFrom(source));
+		assertEquals(-1, ring.readFrom(source));
+		assertEquals(4, ring.size());
+	}
+
+	@Test
+	public void testWriteStopsWhenChannelIsFull() throws Exception {
+		RingBuffer ring = new RingBuffer(ByteBuffer.allocate(16));
+		ring.readFrom(new Source(10, 100));
+
+		Sink sink = new Sink(0);
+		assertEquals(0, ring.writeTo(sink));
+		assertEquals(10, ring.size());
+	}
+
+	@Test
+	public void testSingleProducerSingleConsumer() throws Exception {
+		int total = 4 * 1024 * 1024;
+		RingBuffer ring = new RingBuffer(ByteBuffer.allocateDirect(4096));
+		Source source = new Source(total, 1500);
+		Sink sink = new Sink(1000);
+		AtomicReference<Throwable> error = new AtomicReference<>();
+
+		Thread producer = new Thread(() -> {
+			try {
+				while (ring.readFrom(source) >= 0) {
+					Thread.yield();
+				}
+			} catch (Throwable ex) {
+				error.set(ex);
+			}
+		});
+		producer.start();
+
+		long deadline = System.currentTimeMillis() + 30000;
+		while (sink.size() < total) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			if (ring.writeTo(sink) == 0) {
+				Thread.yield();
+			}
+		}
+		producer.join();
+		assertNull(error.get());
+		sink.assertSequence(total);
+	}
+
+	/**
+	 * Channel producing sequence of bytes, returning at most <code>chunk</code> bytes for each read
+	 */
+	private static class Source
+			implements ReadableByteChannel {
+
+		private final int chunk;
+		private final int total;
+		private int produced = 0;
+
+		private Source(int total, int chunk) {
+			this.total = total;
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			if (produced == total) {
+				return -1;
+			}
+			int length = Math.min(Math.min(chunk, dst.remaining()), total - produced);
+			for (int i = 0; i < length; i++) {
+				dst.put((byte) produced++);
+			}
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Channel accepting at most <code>chunk</code> bytes for each write
+	 */
+	private static class Sink
+			implements WritableByteChannel {
+
+		private final int chunk;
+		private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+		private Sink(int chunk) {
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			int length = Math.min(chunk, src.remaining());
+			for (int i = 0; i < length; i++) {
+				data.write(src.get());
+			}
+			return length;
+		}
+
+		private int size() {
+			return data.size();
+		}
+
+		private void assertSequence(int length) {
+			byte[] bytes = data.toByteArray();
+			assertEquals(length, bytes.length);
+			for (int i = 0; i < length; i++) {
+				assertEquals("byte " + i, (byte) i, bytes[i]);
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class Socks5HandshakeTest {
+
+	private static final String SID_HASH = "0123456789abcdef0123456789abcdef01234567";
+
+	@Test
+	public void testCompleteHandshake() {
+		Socks5Handshake handshake = new Socks5Handshake();
+
+		ByteBuffer in = ByteBuffer.wrap(greeting());
+		assertEquals(Socks5Handshake.Result.Welcome, handshake.parse(in));
+		assertFalse(in.hasRemaining());
+		ByteBuffer welcome = handshake.getWelcomeReply();
+		assertEquals(2, welcome.remaining());
+		assertEquals(0x05, welcome.get(0));
+		assertEquals(0x00, welcome.get(1));
+
+		in = ByteBuffer.wrap(command(SID_HASH));
+		assertEquals(Socks5Handshake.Result.Command, handshake.parse(in));
+		assertFalse(in.hasRemaining());
+		assertEquals(SID_HASH, handshake.getStreamKey().toString());
+
+		ByteBuffer reply = handshake.getCommandReply();
+		byte[] expected = command(SID_HASH);
+		expected[1] = 0x00;
+		expected[expected.length - 2] = 0x00;
+		expected[expected.length - 1] = 0x00;
+		assertEquals(ByteBuffer.wrap(expected), reply);
+	}
+
+	@Test
+	public void testFragmentedHandshake() {
+		Socks5Handshake handshake = new Socks5Handshake();
+		byte[] data = concat(greeting(), command(SID_HASH));
+
+		int welcomes = 0;
+		Socks5Handshake.Result result = null;
+		for (byte b : data) {
+			ByteBuffer in = ByteBuffer.wrap(new byte[]{b});
+			result = handshake.parse(in);
+			assertFalse(in.hasRemaining());
+			if (result == Socks5Handshake.Result.Welcome) {
+				welcomes++;
+			} else if (result != Socks5Handshake.Result.Command) {
+				assertEquals(Socks5Handshake.Result.NeedMore, result);
+			}
+		}
+		assertEquals(1, welcomes);
+		assertEquals(Socks5Handshake.Result.Command, result);
+		assertEquals(SID_HASH, handshake.getStreamKey().toString());
+	}
+
+	@Test
+	public void testPipelinedHandshake() {
+		Socks5Handshake handshake = new Socks5Handshake();
+		byte[] command = command(SID_HASH);
+		ByteBuffer in = ByteBuffer.wrap(concat(greeting(), command));
+
+		assertEquals(Socks5Handshake.Result.Welcome, handshake.parse(in));
+		assertEquals(command.length, in.remaining());
+		assertEquals(Socks5Handshake.Result.Command, handshake.parse(in));
+		assertFalse(in.hasRemaining());
+	}
+
+	@Test
+	public void testUnsupportedVersion() {
+		Socks5Handshake handshake = new Socks5Handshake();
+		assertEquals(Socks5Handshake.Result.Failed, handshake.parse(ByteBuffer.wrap(new byte[]{0x04, 0x01, 0x00})));
+		assertNotNull(handshake.getError());
+		// parser stays failed for any data received later
+		assertEquals(Socks5Handshake.Result.Failed, handshake.parse(ByteBuffer.wrap(greeting())));
+	}
+
+	@Test
+	public void testNoAuthMethodNotOffered() {
+		Socks5Handshake handshake = new Socks5Handshake();
+		assertEquals(Socks5Handshake.Result.Failed, handshake.parse(ByteBuffer.wrap(new byte[]{0x05, 0x01, 0x02})));
+	}
+
+	@Test
+	public void testUnsupportedCommand() {
+		Socks5Handshake handshake = new Socks5Handshake();
+		assertEquals(Socks5Handshake.Result.Welcome, handshake.parse(ByteBuffer.wrap(greeting())));
+		byte[] command = command(SID_HASH);
+		// BIND
+		command[1] = 0x02;
+		assertEquals(Socks5Handshake.Result.Failed, handshake.parse(ByteBuffer.wrap(command)));
+	}
+
+	@Test
+	public void testInvalidStreamId() {
+		Socks5Handshake handshake = new Socks5Handshake();
+		assertEquals(Socks5Handshake.Result.Welcome, handshake.parse(ByteBuffer.wrap(greeting())));
+		assertEquals(Socks5Handshake.Result.Failed,
+					 handshake.parse(ByteBuffer.wrap(command(SID_HASH.replace('a', 'x')))));
+		assertNull(handshake.getStreamKey());
+	}
+
+	@Test
+	public void testInvalidLengthOfStreamId() {
+		Socks5Handshake handshake = new Socks5Handshake();
+		assertEquals(Socks5Handshake.Result.Welcome, handshake.parse(ByteBuffer.wrap(greeting())));
+		assertEquals(Socks5Handshake.Result.Failed, handshake.parse(ByteBuffer.wrap(command("0123"))));
+	}
+
+	private static byte[] greeting() {
+		// version 5, methods: username/password, no authentication
+		return new byte[]{0x05, 0x02, 0x02, 0x00};
+	}
+
+	private static byte[] command(String addr) {
+		byte[] host = addr.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer buf = ByteBuffer.allocate(7 + host.length);
+		buf.put((byte) 0x05).put((byte) 0x01).put((byte) 0x00).put((byte) 0x03).put((byte) host.length);
+		buf.put(host);
+		buf.putShort((short) 0);
+		return buf.array();
+	}
+
+	private static byte[] concat(byte[] first, byte[] second) {
+		byte[] result = new byte[first.length + second.length];
+		System.arraycopy(first, 0, result, 0, first.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+}
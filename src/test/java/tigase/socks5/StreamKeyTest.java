@@ -0,0 +1,85 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class StreamKeyTest {
+
+	private static final String HEX = "00ff10a0b1c2d3e4f5061728394a5b6c7d8e9faf";
+
+	@Test
+	public void testHexRoundTrip() {
+		StreamKey key = fromHex(HEX);
+		assertNotNull(key);
+		assertEquals(HEX, key.toString());
+
+		ByteBuffer buf = ByteBuffer.allocate(StreamKey.LENGTH);
+		key.writeTo(buf);
+		assertEquals(0x00, buf.get(0));
+		assertEquals((byte) 0xff, buf.get(1));
+		assertEquals((byte) 0xaf, buf.get(StreamKey.LENGTH - 1));
+	}
+
+	@Test
+	public void testUpperCaseHex() {
+		assertEquals(fromHex(HEX), fromHex(HEX.toUpperCase()));
+	}
+
+	@Test
+	public void testFromHexWithOffset() {
+		byte[] data = ("xx" + HEX + "yy").getBytes(StandardCharsets.US_ASCII);
+		assertEquals(fromHex(HEX), StreamKey.fromHex(data, 2, HEX.length()));
+	}
+
+	@Test
+	public void testInvalidHex() {
+		assertNull(fromHex(HEX.substring(2)));
+		assertNull(fromHex(HEX + "00"));
+		assertNull(fromHex(HEX.replace('f', 'g')));
+	}
+
+	@Test
+	public void testEqualsAndHashCode() {
+		StreamKey key = fromHex(HEX);
+		StreamKey same = fromHex(HEX);
+		StreamKey other = fromHex(HEX.substring(0, HEX.length() - 1) + "0");
+
+		assertEquals(key, same);
+		assertEquals(key.hashCode(), same.hashCode());
+		// keys differing only in last byte have the same hash, but are not equal
+		assertEquals(key.hashCode(), other.hashCode());
+		assertNotEquals(key, other);
+		assertNotEquals(key, HEX);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidLengthOfDigest() {
+		new StreamKey(new byte[StreamKey.LENGTH - 1]);
+	}
+
+	private static StreamKey fromHex(String hex) {
+		byte[] data = hex.getBytes(StandardCharsets.US_ASCII);
+		return StreamKey.fromHex(data, 0, data.length);
+	}
+}
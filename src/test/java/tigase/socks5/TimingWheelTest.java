@@ -0,0 +1,133 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+	private static final long TICK = 10;
+
+	private TimingWheel wheel;
+
+	@Before
+	public void setUp() {
+		// small wheel, so longer delays need more than one round
+		wheel = new TimingWheel("test-timing-wheel", TICK, 8);
+		wheel.start();
+	}
+
+	@After
+	public void tearDown() {
+		wheel.stop();
+	}
+
+	@Test
+	public void testTimeoutExpiresAfterDelay() throws Exception {
+		TestTimeout timeout = new TestTimeout();
+		long start = System.nanoTime();
+		wheel.schedule(timeout, 200);
+
+		assertTrue(timeout.latch.await(5, TimeUnit.SECONDS));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("expired after " + elapsed + "ms", elapsed >= 200 - TICK);
+		Thread.sleep(10 * TICK);
+		assertEquals(1, timeout.count.get());
+	}
+
+	@Test
+	public void testCancelledTimeoutDoesNotExpire() throws Exception {
+		TestTimeout timeout = new TestTimeout();
+		wheel.schedule(timeout, 50);
+		wheel.cancel(timeout);
+
+		assertFalse(timeout.latch.await(300, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testRescheduleReplacesDeadline() throws Exception {
+		TestTimeout timeout = new TestTimeout();
+		wheel.schedule(timeout, 50);
+		long start = System.nanoTime();
+		wheel.schedule(timeout, 300);
+
+		assertTrue(timeout.latch.await(5, TimeUnit.SECONDS));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("expired after " + elapsed + "ms", elapsed >= 300 - TICK);
+		Thread.sleep(10 * TICK);
+		assertEquals(1, timeout.count.get());
+	}
+
+	@Test
+	public void testTimeoutMayBeScheduledAgainAfterExpiration() throws Exception {
+		TestTimeout timeout = new TestTimeout();
+		wheel.schedule(timeout, TICK);
+		assertTrue(timeout.latch.await(5, TimeUnit.SECONDS));
+
+		timeout.latch = new CountDownLatch(1);
+		wheel.schedule(timeout, TICK);
+		assertTrue(timeout.latch.await(5, TimeUnit.SECONDS));
+		assertEquals(2, timeout.count.get());
+	}
+
+	@Test
+	public void testManyTimeoutsExpireOnce() throws Exception {
+		int count = 1000;
+		CountDownLatch latch = new CountDownLatch(count);
+		TestTimeout[] timeouts = new TestTimeout[count];
+		for (int i = 0; i < count; i++) {
+			timeouts[i] = new TestTimeout(latch);
+			wheel.schedule(timeouts[i], TICK * (1 + i % 20));
+		}
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Thread.sleep(5 * TICK);
+		for (TestTimeout timeout : timeouts) {
+			assertEquals(1, timeout.count.get());
+		}
+	}
+
+	private static class TestTimeout
+			extends TimingWheel.Timeout {
+
+		private final AtomicInteger count = new AtomicInteger(0);
+		private volatile CountDownLatch latch;
+
+		private TestTimeout() {
+			this(new CountDownLatch(1));
+		}
+
+		private TestTimeout(CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		@Override
+		protected void expired() {
+			count.incrementAndGet();
+			latch.countDown();
+		}
+	}
+}
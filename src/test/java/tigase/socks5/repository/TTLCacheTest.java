@@ -0,0 +1,143 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5.repository;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class TTLCacheTest {
+
+	@Test
+	public void testValueIsCached() {
+		TTLCache<String, String> cache = new TTLCache<>(() -> 10, () -> 60000);
+		assertNull(cache.get("key"));
+
+		cache.put("key", "value");
+		assertEquals("value", cache.get("key"));
+		assertEquals(1, cache.size());
+
+		cache.remove("key");
+		assertNull(cache.get("key"));
+	}
+
+	@Test
+	public void testValueExpires() throws Exception {
+		TTLCache<String, String> cache = new TTLCache<>(() -> 10, () -> 50);
+		cache.put("key", "value");
+		cache.put("long", "value", 60000);
+
+		Thread.sleep(100);
+		assertNull(cache.get("key"));
+		assertEquals("value", cache.get("long"));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testCachingIsDisabled() {
+		TTLCache<String, String> cache = new TTLCache<>(() -> 10, () -> 0);
+		cache.put("key", "value");
+		assertNull(cache.get("key"));
+
+		cache = new TTLCache<>(() -> 0, () -> 60000);
+		cache.put("key", "value");
+		assertNull(cache.get("key"));
+	}
+
+	@Test
+	public void testUnlimitedTtlDoesNotOverflow() {
+		TTLCache<String, String> cache = new TTLCache<>(() -> 10, () -> 60000);
+		cache.put("key", "value", Long.MAX_VALUE);
+		assertEquals("value", cache.get("key"));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+		int maxSize = 32;
+		TTLCache<Integer, Integer> cache = new TTLCache<>(() -> maxSize, () -> 60000);
+		for (int i = 0; i < maxSize; i++) {
+			cache.put(i, i);
+		}
+		Thread.sleep(2);
+		// first half of entries is used again, so entries of second half are least recently used
+		for (int i = 0; i < maxSize / 2; i++) {
+			assertEquals(Integer.valueOf(i), cache.get(i));
+		}
+		Thread.sleep(2);
+		cache.put(maxSize, maxSize);
+
+		assertTrue(cache.size() <= maxSize);
+		assertEquals(Integer.valueOf(maxSize), cache.get(maxSize));
+		for (int i = 0; i < maxSize / 2; i++) {
+			assertEquals(Integer.valueOf(i), cache.get(i));
+		}
+		assertNull(cache.get(maxSize / 2));
+	}
+
+	@Test
+	public void testRemoveIfAndClear() {
+		TTLCache<String, String> cache = new TTLCache<>(() -> 10, () -> 60000);
+		cache.put("example.com", "domain");
+		cache.put("user@example.com", "user");
+		cache.put("user@other.com", "user");
+
+		cache.removeIf(key -> key.endsWith("@example.com"));
+		assertNull(cache.get("user@example.com"));
+		assertEquals("domain", cache.get("example.com"));
+		assertEquals("user", cache.get("user@other.com"));
+
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testSizeIsBoundedUnderConcurrentUse() throws Exception {
+		int maxSize = 1000;
+		TTLCache<Integer, Integer> cache = new TTLCache<>(() -> maxSize, () -> 60000);
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			int offset = t * 1000000;
+			Thread thread = new Thread(() -> {
+				try {
+					for (int i = 0; i < 50000; i++) {
+						cache.put(offset + i, i);
+						Integer value = cache.get(offset + i);
+						if (value != null && value != i) {
+							throw new AssertionError("invalid value " + value + " for " + (offset + i));
+						}
+					}
+				} catch (Throwable ex) {
+					error.set(ex);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertNull(error.get());
+		assertTrue("size " + cache.size(), cache.size() <= 2 * maxSize);
+	}
+}
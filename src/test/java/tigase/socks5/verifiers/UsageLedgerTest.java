@@ -0,0 +1,217 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5.verifiers;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.db.TigaseDBException;
+import tigase.socks5.TransferUsage;
+import tigase.socks5.repository.DummySocks5Repository;
+import tigase.xmpp.jid.BareJID;
+
+import static org.junit.Assert.*;
+
+public class UsageLedgerTest {
+
+	private final BareJID user = BareJID.bareJIDInstanceNS("user", "example.com");
+	private UsageLedger ledger;
+	private TestRepository repository;
+
+	@Before
+	public void setUp() {
+		repository = new TestRepository();
+		ledger = new UsageLedger(() -> repository, () -> "node1");
+	}
+
+	@Test
+	public void testCountersAreLoadedFromRepository() throws Exception {
+		repository.setStored(1000);
+
+		assertEquals(1000, ledger.getTransferUsedByUser(user));
+		assertEquals(1000, ledger.getTransferUsedByDomain("example.com"));
+		assertEquals(1000, ledger.getTransferUsedByInstance());
+		assertEquals(1000, ledger.getTransferUsed());
+		assertEquals(4, repository.loads);
+
+		// loaded counters are not read again from repository
+		ledger.getTransferUsedByUser(user);
+		ledger.getTransferUsed();
+		assertEquals(4, repository.loads);
+	}
+
+	@Test
+	public void testBytesAreAddedToLoadedCounters() throws Exception {
+		BareJID other = BareJID.bareJIDInstanceNS("other", "example.com");
+		loadAll();
+
+		ledger.add(user, 100);
+		ledger.add(other, 50);
+		ledger.add(user, 0);
+
+		assertEquals(100, ledger.getTransferUsedByUser(user));
+		assertEquals(150, ledger.getTransferUsedByDomain("example.com"));
+		assertEquals(150, ledger.getTransferUsedByInstance());
+		assertEquals(150, ledger.getTransferUsed());
+		// counter of other user was not loaded, so it holds only value from repository
+		assertEquals(0, ledger.getTransferUsedByUser(other));
+	}
+
+	@Test
+	public void testResyncDropsOnlyStoredBytes() throws Exception {
+		loadAll();
+		ledger.add(user, 100);
+
+		// only 60 bytes were written to repository so far
+		repository.setStored(60);
+		ledger.stored(user, 60);
+		ledger.resync();
+
+		assertEquals(100, ledger.getTransferUsedByUser(user));
+		assertEquals(100, ledger.getTransferUsedByDomain("example.com"));
+		assertEquals(100, ledger.getTransferUsedByInstance());
+		assertEquals(100, ledger.getTransferUsed());
+
+		repository.setStored(100);
+		ledger.stored(user, 40);
+		ledger.resync();
+		assertEquals(100, ledger.getTransferUsedByUser(user));
+	}
+
+	@Test
+	public void testResyncIncludesTransfersOfOtherNodes() throws Exception {
+		loadAll();
+		ledger.add(user, 100);
+
+		repository.setStored(5000);
+		ledger.resync();
+
+		assertEquals(5100, ledger.getTransferUsedByUser(user));
+		assertEquals(5100, ledger.getTransferUsed());
+	}
+
+	@Test
+	public void testFailedResyncKeepsStoredBytes() throws Exception {
+		loadAll();
+		ledger.add(user, 100);
+		ledger.stored(user, 100);
+
+		repository.failing = true;
+		ledger.resync();
+		assertEquals(100, ledger.getTransferUsedByUser(user));
+		assertEquals(100, ledger.getTransferUsed());
+
+		repository.failing = false;
+		repository.setStored(100);
+		ledger.resync();
+		assertEquals(100, ledger.getTransferUsedByUser(user));
+		assertEquals(100, ledger.getTransferUsed());
+	}
+
+	@Test
+	public void testUpdateReplacesCounters() throws Exception {
+		loadAll();
+		ledger.add(user, 100);
+		ledger.add(user, 30);
+
+		// first 100 bytes are written together with usage returned by repository
+		ledger.update(user, new TransferUsage(1100, 2100, 3100, 4100), 100);
+
+		assertEquals(1130, ledger.getTransferUsedByUser(user));
+		assertEquals(2130, ledger.getTransferUsedByDomain("example.com"));
+		assertEquals(3130, ledger.getTransferUsedByInstance());
+		assertEquals(4130, ledger.getTransferUsed());
+	}
+
+	@Test
+	public void testUnusedCountersAreDropped() throws Exception {
+		loadAll();
+		ledger.add(user, 100);
+
+		// counter is used, so it is kept
+		ledger.resync();
+		assertEquals(100, ledger.getTransferUsedByUser(user));
+		ledger.resync();
+		// counter was not used since previous synchronization
+		ledger.resync();
+
+		repository.setStored(700);
+		int loads = repository.loads;
+		assertEquals(700, ledger.getTransferUsedByUser(user));
+		assertEquals(loads + 1, repository.loads);
+	}
+
+	@Test
+	public void testClear() throws Exception {
+		loadAll();
+		ledger.add(user, 100);
+
+		ledger.clear();
+		assertEquals(0, ledger.getTransferUsedByUser(user));
+		assertEquals(0, ledger.getTransferUsed());
+		assertFalse(ledger.rollover());
+	}
+
+	private void loadAll() throws TigaseDBException {
+		ledger.getTransferUsedByUser(user);
+		ledger.getTransferUsedByDomain(user.getDomain());
+		ledger.getTransferUsedByInstance();
+		ledger.getTransferUsed();
+	}
+
+	private static class TestRepository
+			extends DummySocks5Repository {
+
+		private volatile boolean failing = false;
+		private int loads = 0;
+		private long stored = 0;
+
+		private void setStored(long stored) {
+			this.stored = stored;
+		}
+
+		@Override
+		public long getTransferUsed() throws TigaseDBException {
+			return load();
+		}
+
+		@Override
+		public long getTransferUsedByInstance(String instance) throws TigaseDBException {
+			assertEquals("node1", instance);
+			return load();
+		}
+
+		@Override
+		public long getTransferUsedByDomain(String domain) throws TigaseDBException {
+			assertEquals("example.com", domain);
+			return load();
+		}
+
+		@Override
+		public long getTransferUsedByUser(BareJID user_id) throws TigaseDBException {
+			return load();
+		}
+
+		private synchronized long load() throws TigaseDBException {
+			if (failing) {
+				throw new TigaseDBException("repository is not available");
+			}
+			loads++;
+			return stored;
+		}
+	}
+}